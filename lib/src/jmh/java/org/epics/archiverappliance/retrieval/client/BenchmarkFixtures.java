@@ -0,0 +1,122 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Fixtures for the benchmarks.
+ * Sample data files are read from the test resources into memory so that the benchmarks measure decoding and not disk I/O.
+ * Synthetic streams are generated using the same framing as the server and are used to scale up the small sample files.
+ * @author mshankar
+ *
+ */
+final class BenchmarkFixtures {
+    /**
+     * Prefix for a benchmark parameter that asks for a synthetic stream; for example <code>synthetic:SCALAR_DOUBLE</code>.
+     */
+    static final String SYNTHETIC_PREFIX = "synthetic:";
+    /**
+     * Approximate size of the generated synthetic streams.
+     */
+    static final int SYNTHETIC_TARGET_BYTES = 64 * 1024 * 1024;
+
+    static final int WAVEFORM_ELEMENT_COUNT = 4096;
+
+    private static final int SYNTHETIC_YEAR = 2024;
+
+    private BenchmarkFixtures() {}
+
+    /**
+     * Load either a sample data file or a synthetic stream.
+     * @param name - Either the name of a file in the sampledata folder or <code>synthetic:</code> followed by a PayloadType.
+     * @return The bytes as they would be sent over the wire.
+     * @throws IOException
+     */
+    static byte[] load(String name) throws IOException {
+        if (name.startsWith(SYNTHETIC_PREFIX)) {
+            return synthetic(PayloadType.valueOf(name.substring(SYNTHETIC_PREFIX.length())));
+        }
+        String folder = System.getProperty("pbrawclient.sampledata", "src/test/resources/sampledata");
+        return Files.readAllBytes(Paths.get(folder, name));
+    }
+
+    /**
+     * Count the events in a stream; the benchmarks use this to normalize their results.
+     */
+    static int countEvents(byte[] data) throws IOException {
+        int count = 0;
+        try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data))) {
+            for (EpicsMessage msg : strm) {
+                msg.getTimestamp();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Generate a stream of roughly {@link #SYNTHETIC_TARGET_BYTES} bytes for a PV sampled at 1KHz.
+     */
+    static byte[] synthetic(PayloadType type) throws IOException {
+        Random random = new Random(SYNTHETIC_YEAR);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(SYNTHETIC_TARGET_BYTES + 1024 * 1024);
+        int elementCount = type.getNumber() >= PayloadType.WAVEFORM_STRING.getNumber() ? WAVEFORM_ELEMENT_COUNT : 1;
+        PayloadInfo info = PayloadInfo.newBuilder()
+                .setType(type)
+                .setPvname("SYNTHETIC:" + type)
+                .setYear(SYNTHETIC_YEAR)
+                .setElementCount(elementCount)
+                .build();
+        PBStreamWriter writer = new PBStreamWriter(out);
+        writer.writeInfo(info);
+        byte[] waveformBytes = new byte[WAVEFORM_ELEMENT_COUNT];
+        for (int i = 0; out.size() < SYNTHETIC_TARGET_BYTES; i++) {
+            int secondsIntoYear = i / 1000;
+            int nanos = (i % 1000) * 1_000_000;
+            Message msg;
+            switch (type) {
+                case SCALAR_DOUBLE -> msg = ScalarDouble.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal(Math.sin(i / 1000.0) + random.nextGaussian() * 0.01)
+                        .build();
+                case SCALAR_INT -> msg = ScalarInt.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal(random.nextInt())
+                        .build();
+                case WAVEFORM_DOUBLE -> {
+                    VectorDouble.Builder builder =
+                            VectorDouble.newBuilder().setSecondsintoyear(secondsIntoYear).setNano(nanos);
+                    for (int j = 0; j < WAVEFORM_ELEMENT_COUNT; j++) {
+                        builder.addVal(random.nextGaussian());
+                    }
+                    msg = builder.build();
+                }
+                case WAVEFORM_BYTE -> {
+                    random.nextBytes(waveformBytes);
+                    msg = VectorChar.newBuilder()
+                            .setSecondsintoyear(secondsIntoYear)
+                            .setNano(nanos)
+                            .setVal(ByteString.copyFrom(waveformBytes))
+                            .build();
+                }
+                default -> throw new UnsupportedOperationException("No synthetic generator for " + type);
+            }
+            writer.writeEvent(msg);
+        }
+        return out.toByteArray();
+    }
+}
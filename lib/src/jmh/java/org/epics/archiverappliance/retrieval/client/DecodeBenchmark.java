@@ -0,0 +1,133 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * End to end decode of a PB/HTTP stream held in memory; unescaping, PayloadInfo parsing and per type parseFrom.
+ * Each operation is one event so the primary score is events/sec and <code>gc.alloc.rate.norm</code> is bytes allocated per event.
+ * The <code>bytes</code> counter reports the throughput in bytes/sec of the wire format.
+ * Run using <code>./gradlew :lib:jmh</code>
+ * @author mshankar
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    static final int EVENTS_PER_INVOCATION = 100_000;
+
+    @Param({
+        "onedaysdbrdouble",
+        "WAVEFORM_BYTE_sampledata",
+        "synthetic:SCALAR_DOUBLE",
+        "synthetic:WAVEFORM_BYTE",
+        "synthetic:WAVEFORM_DOUBLE"
+    })
+    public String source;
+
+    private byte[] data;
+    private double bytesPerEvent;
+    private InputStreamBackedGenMsg strm;
+    private Iterator<EpicsMessage> it;
+    private ParallelGenMsg parallelStrm;
+    private Iterator<EpicsMessage> parallelIt;
+    private final EventBatch batch = new EventBatch(1024);
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void loadData() throws IOException {
+        data = BenchmarkFixtures.load(source);
+        bytesPerEvent = (double) data.length / BenchmarkFixtures.countEvents(data);
+    }
+
+    /**
+     * Decode a fixed number of events; the stream is reopened when exhausted so that the small sample files can also be used.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void decode(Throughput throughput, Blackhole bh) throws IOException {
+        for (int i = 0; i < EVENTS_PER_INVOCATION; i++) {
+            if (it == null || !it.hasNext()) {
+                reopen();
+            }
+            bh.consume(it.next().getTimestamp());
+        }
+        throughput.bytes += (long) (EVENTS_PER_INVOCATION * bytesPerEvent);
+    }
+
+    /**
+     * The same as decode but using the columnar batch API.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void decodeBatches(Throughput throughput, Blackhole bh) throws IOException {
+        int remaining = EVENTS_PER_INVOCATION;
+        while (remaining > 0) {
+            if (strm == null || strm.nextBatch(batch) == 0) {
+                reopen();
+                continue;
+            }
+            bh.consume(batch.getValues());
+            remaining -= batch.size();
+        }
+        throughput.bytes += (long) (EVENTS_PER_INVOCATION * bytesPerEvent);
+    }
+
+    /**
+     * The same as decode but parsing the events in the common fork join pool using ParallelGenMsg.
+     */
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_INVOCATION)
+    public void decodeParallel(Throughput throughput, Blackhole bh) throws IOException {
+        for (int i = 0; i < EVENTS_PER_INVOCATION; i++) {
+            if (parallelIt == null || !parallelIt.hasNext()) {
+                if (parallelStrm != null) {
+                    parallelStrm.close();
+                }
+                parallelStrm = new ParallelGenMsg(new ByteArrayInputStream(data));
+                parallelIt = parallelStrm.iterator();
+            }
+            bh.consume(parallelIt.next().getTimestamp());
+        }
+        throughput.bytes += (long) (EVENTS_PER_INVOCATION * bytesPerEvent);
+    }
+
+    private void reopen() throws IOException {
+        if (strm != null) {
+            strm.close();
+        }
+        strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data));
+        it = strm.iterator();
+    }
+}
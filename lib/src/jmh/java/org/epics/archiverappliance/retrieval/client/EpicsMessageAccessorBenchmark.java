@@ -0,0 +1,123 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the EpicsMessage accessors on already decoded events.
+ * Each operation is one call to the accessor; so <code>gc.alloc.rate.norm</code> is the bytes allocated per call.
+ * @author mshankar
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EpicsMessageAccessorBenchmark {
+    static final int MESSAGE_COUNT = 1000;
+
+    @Param({"onedaysdbrdouble", "synthetic:WAVEFORM_DOUBLE"})
+    public String source;
+
+    private final EpicsMessage[] messages = new EpicsMessage[MESSAGE_COUNT];
+    private int index;
+    private double[] values;
+
+    @Setup(Level.Trial)
+    public void loadMessages() throws IOException {
+        byte[] data = BenchmarkFixtures.load(source);
+        int count = 0;
+        while (count < MESSAGE_COUNT) {
+            int countBefore = count;
+            try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data))) {
+                for (EpicsMessage msg : strm) {
+                    if (count >= MESSAGE_COUNT) break;
+                    messages[count++] = msg;
+                }
+            }
+            if (count == countBefore) {
+                throw new IOException("No events in " + source);
+            }
+        }
+        index = messages[0].getElementCount() / 2;
+        values = new double[Math.max(1, messages[0].getElementCount())];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getTimestamp(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getTimestamp());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getNumberValue(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getNumberValue());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getNumberAt(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getNumberAt(index));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getEpochSecondsAndNanos(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getEpochSeconds());
+            bh.consume(msg.getNanos());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getDouble(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getDouble(index));
+        }
+    }
+
+    /**
+     * All the elements of each event; compare with getNumberAt and getDouble times the element count.
+     */
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void copyDoubles(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.copyDoubles(values));
+        }
+        bh.consume(values);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void getFieldValues(Blackhole bh) {
+        for (EpicsMessage msg : messages) {
+            bh.consume(msg.getFieldValues());
+        }
+    }
+}
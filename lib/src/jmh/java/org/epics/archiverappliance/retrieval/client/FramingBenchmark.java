@@ -0,0 +1,152 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Framing and unescaping of a whole stream held in memory, without parsing the events; this compares a byte at a time loop with the word at a time ByteScanner.
+ * Each operation is one pass over the stream; the <code>bytes</code> counter reports the throughput in bytes/sec of the wire format.
+ * The sample files are small and mostly fit in the L2 cache; the synthetic streams are closer to a large retrieval.
+ * @author mshankar
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    @Param({
+        "onedaysdbrdouble",
+        "WAVEFORM_DOUBLE_sampledata",
+        "synthetic:SCALAR_DOUBLE",
+        "synthetic:WAVEFORM_BYTE",
+        "synthetic:WAVEFORM_DOUBLE"
+    })
+    public String source;
+
+    private byte[] data;
+    private ByteBuffer line;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void loadData() throws IOException {
+        data = BenchmarkFixtures.load(source);
+        line = ByteBuffer.allocate(data.length);
+    }
+
+    /**
+     * Find the lines and count the escape characters a byte at a time.
+     * @return The number of lines plus the number of escape characters
+     */
+    @Benchmark
+    public long scanByteAtATime(Throughput throughput) {
+        long count = 0;
+        for (byte b : data) {
+            if (b == LineFramedGenMsg.NEWLINE_CHAR || b == LineFramedGenMsg.ESCAPE_CHAR) {
+                count++;
+            }
+        }
+        throughput.bytes += data.length;
+        return count;
+    }
+
+    /**
+     * The same as scanByteAtATime using ByteScanner.
+     */
+    @Benchmark
+    public long scanWordAtATime(Throughput throughput) {
+        long count = 0;
+        int i = 0;
+        while ((i = ByteScanner.indexOfNewlineOrEscape(data, i, data.length)) < data.length) {
+            count++;
+            i++;
+        }
+        throughput.bytes += data.length;
+        return count;
+    }
+
+    /**
+     * Unescape each line a byte at a time; this is the loop that InputStreamBackedGenMsg used for lines with escape characters.
+     * @return The total length of the unescaped lines
+     */
+    @Benchmark
+    public long unescapeByteAtATime(Throughput throughput) {
+        long total = 0;
+        line.clear();
+        for (int i = 0; i < data.length; i++) {
+            byte b = data[i];
+            if (b == LineFramedGenMsg.ESCAPE_CHAR) {
+                b = data[++i];
+                switch (b) {
+                    case LineFramedGenMsg.ESCAPE_ESCAPE_CHAR -> line.put(LineFramedGenMsg.ESCAPE_CHAR);
+                    case LineFramedGenMsg.NEWLINE_ESCAPE_CHAR -> line.put(LineFramedGenMsg.NEWLINE_CHAR);
+                    case LineFramedGenMsg.CARRIAGERETURN_ESCAPE_CHAR -> line.put(LineFramedGenMsg.CARRIAGERETURN_CHAR);
+                    default -> line.put(b);
+                }
+            } else if (b == LineFramedGenMsg.NEWLINE_CHAR) {
+                total += line.position();
+                line.clear();
+            } else {
+                line.put(b);
+            }
+        }
+        throughput.bytes += data.length;
+        return total;
+    }
+
+    /**
+     * The same as unescapeByteAtATime; the runs between the escape characters and newlines are found using ByteScanner and copied in bulk.
+     */
+    @Benchmark
+    public long unescapeWordAtATime(Throughput throughput) {
+        long total = 0;
+        line.clear();
+        int runStart = 0;
+        int i;
+        while ((i = ByteScanner.indexOfNewlineOrEscape(data, runStart, data.length)) < data.length) {
+            line.put(data, runStart, i - runStart);
+            if (data[i] == LineFramedGenMsg.NEWLINE_CHAR) {
+                total += line.position();
+                line.clear();
+                runStart = i + 1;
+                continue;
+            }
+            byte b = data[i + 1];
+            switch (b) {
+                case LineFramedGenMsg.ESCAPE_ESCAPE_CHAR -> line.put(LineFramedGenMsg.ESCAPE_CHAR);
+                case LineFramedGenMsg.NEWLINE_ESCAPE_CHAR -> line.put(LineFramedGenMsg.NEWLINE_CHAR);
+                case LineFramedGenMsg.CARRIAGERETURN_ESCAPE_CHAR -> line.put(LineFramedGenMsg.CARRIAGERETURN_CHAR);
+                default -> line.put(b);
+            }
+            runStart = i + 2;
+        }
+        throughput.bytes += data.length;
+        return total;
+    }
+}
@@ -0,0 +1,342 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Statistics of the events of a PV in fixed time bins; for example, hourly statistics for alarm reviews.
+ * For each bin, this computes the count, mean, variance (using Welford's algorithm), minimum, maximum, first and last values and the number of events with each severity and status.
+ * The accumulators are primitive arrays that are sized by the number of bins; nothing is allocated per event.
+ * Events outside the time range are skipped; events that have no numeric value (see EventBatch) are included in the severity and status counts only.
+ * This is a PVSink; use it with {@link PVDemultiplexer#demultiplex} to compute the statistics for several PVs in one pass.
+ * Batches only have the first element of waveforms; use {@link #aggregate} or {@link #accept(EpicsMessage)} to include all the elements.
+ * @author mshankar
+ *
+ */
+public final class BinnedStatistics implements PVDemultiplexer.PVSink {
+    /**
+     * How the elements of a waveform contribute to the statistics.
+     */
+    public enum WaveformReduction {
+        /**
+         * Use the first element; this is what EventBatch has.
+         */
+        FIRST_ELEMENT,
+        /**
+         * Use the mean of the elements as the value of the event.
+         */
+        MEAN,
+        /**
+         * Every element is a sample; so the count is the number of elements.
+         */
+        EVERY_ELEMENT
+    }
+
+    /**
+     * The number of EPICS alarm severities; NO_ALARM, MINOR, MAJOR and INVALID.
+     */
+    public static final int SEVERITY_COUNT = 4;
+    /**
+     * The number of EPICS alarm status values; statuses outside this range are not counted.
+     */
+    public static final int STATUS_COUNT = 22;
+
+    private final int binCount;
+    private final long startEpochSeconds;
+    private final int startNanos;
+    private final long binNanos;
+    private final long rangeNanos;
+    private final WaveformReduction waveformReduction;
+    private PayloadInfo info;
+    // Whether the events of the chunk in info have a numeric value; see EventBatch.hasNumericValue.
+    private boolean numericValues = false;
+    private final long[] counts;
+    private final double[] means;
+    private final double[] m2s;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] firsts;
+    private final double[] lasts;
+    // Indexed by bin * SEVERITY_COUNT + severity and bin * STATUS_COUNT + status
+    private final long[] severityCounts;
+    private final long[] statusCounts;
+
+    /**
+     * @param startTime - The start of the first bin
+     * @param endTime - The end of the last bin; the last bin is shorter if the range is not a multiple of the bin size.
+     * @param binSize - The length of each bin
+     * @param waveformReduction - How the elements of waveforms are used.
+     */
+    public BinnedStatistics(
+            Timestamp startTime, Timestamp endTime, Duration binSize, WaveformReduction waveformReduction) {
+        this.startEpochSeconds = Math.floorDiv(startTime.getTime(), 1000);
+        this.startNanos = startTime.getNanos();
+        this.binNanos = binSize.toNanos();
+        this.rangeNanos = nanosSinceStart(Math.floorDiv(endTime.getTime(), 1000), endTime.getNanos());
+        if (binNanos <= 0 || rangeNanos <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid bin size " + binSize + " or time range " + startTime + " - " + endTime);
+        }
+        this.binCount = Math.toIntExact((rangeNanos + binNanos - 1) / binNanos);
+        this.waveformReduction = waveformReduction;
+        this.counts = new long[binCount];
+        this.means = new double[binCount];
+        this.m2s = new double[binCount];
+        this.mins = new double[binCount];
+        this.maxs = new double[binCount];
+        this.firsts = new double[binCount];
+        this.lasts = new double[binCount];
+        this.severityCounts = new long[binCount * SEVERITY_COUNT];
+        this.statusCounts = new long[binCount * STATUS_COUNT];
+    }
+
+    /**
+     * Compute the statistics of all the events in a stream for one PV.
+     * Waveforms are read event by event if all their elements are needed; everything else is read in batches.
+     * @param strm - This is read to the end but not closed.
+     */
+    public static BinnedStatistics aggregate(
+            GenMsgIterator strm,
+            Timestamp startTime,
+            Timestamp endTime,
+            Duration binSize,
+            WaveformReduction waveformReduction)
+            throws IOException {
+        BinnedStatistics stats = new BinnedStatistics(startTime, endTime, binSize, waveformReduction);
+        PayloadInfo info = strm.getPayLoadInfo();
+        if (info != null && isWaveform(info.getType()) && waveformReduction != WaveformReduction.FIRST_ELEMENT) {
+            for (EpicsMessage msg : strm) {
+                stats.accept(msg);
+            }
+        } else {
+            EventBatch batch = new EventBatch(1024);
+            while (strm.nextBatch(batch) > 0) {
+                stats.accept(batch);
+            }
+        }
+        return stats;
+    }
+
+    private static boolean isWaveform(PayloadType type) {
+        return switch (type) {
+            case WAVEFORM_BYTE,
+                    WAVEFORM_DOUBLE,
+                    WAVEFORM_ENUM,
+                    WAVEFORM_FLOAT,
+                    WAVEFORM_INT,
+                    WAVEFORM_SHORT,
+                    WAVEFORM_STRING -> true;
+            default -> false;
+        };
+    }
+
+    private long nanosSinceStart(long epochSeconds, int nanos) {
+        return (epochSeconds - startEpochSeconds) * 1_000_000_000L + (nanos - startNanos);
+    }
+
+    /**
+     * @return The bin for this time; -1 if it is outside the time range.
+     */
+    private int binOf(long epochSeconds, int nanos) {
+        long offset = nanosSinceStart(epochSeconds, nanos);
+        if (offset < 0 || offset >= rangeNanos) {
+            return -1;
+        }
+        return (int) (offset / binNanos);
+    }
+
+    private void addAlarm(int bin, int severity, int status) {
+        if (severity >= 0 && severity < SEVERITY_COUNT) {
+            severityCounts[bin * SEVERITY_COUNT + severity]++;
+        }
+        if (status >= 0 && status < STATUS_COUNT) {
+            statusCounts[bin * STATUS_COUNT + status]++;
+        }
+    }
+
+    private void addValue(int bin, double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        long count = ++counts[bin];
+        if (count == 1) {
+            means[bin] = value;
+            m2s[bin] = 0;
+            mins[bin] = value;
+            maxs[bin] = value;
+            firsts[bin] = value;
+        } else {
+            double delta = value - means[bin];
+            means[bin] += delta / count;
+            m2s[bin] += delta * (value - means[bin]);
+            mins[bin] = Math.min(mins[bin], value);
+            maxs[bin] = Math.max(maxs[bin], value);
+        }
+        lasts[bin] = value;
+    }
+
+    @Override
+    public void accept(EventBatch batch) {
+        setInfo(batch.getPayloadInfo());
+        long[] epochSeconds = batch.getEpochSeconds();
+        int[] nanos = batch.getNanos();
+        double[] values = batch.getValues();
+        int[] severities = batch.getSeverities();
+        int[] statuses = batch.getStatuses();
+        for (int i = 0; i < batch.size(); i++) {
+            int bin = binOf(epochSeconds[i], nanos[i]);
+            if (bin < 0) {
+                continue;
+            }
+            addAlarm(bin, severities[i], statuses[i]);
+            addValue(bin, values[i]);
+        }
+    }
+
+    private void setInfo(PayloadInfo info) {
+        if (info != this.info) {
+            this.info = info;
+            this.numericValues = info != null && EventBatch.hasNumericValue(info.getType());
+        }
+    }
+
+    /**
+     * Add one event; the elements of waveforms are used according to the WaveformReduction.
+     */
+    public void accept(EpicsMessage msg) {
+        setInfo(msg.getPayloadInfo());
+        int bin = binOf(msg.getEpochSeconds(), msg.getNanos());
+        if (bin < 0) {
+            return;
+        }
+        addAlarm(bin, msg.getSeverity(), msg.getStatus());
+        int elementCount = numericValues ? msg.getValueCount() : 0;
+        if (elementCount == 0) {
+            // No numeric value; this is only counted in the severity and status counts.
+            return;
+        }
+        if (!isWaveform(info.getType()) || waveformReduction == WaveformReduction.FIRST_ELEMENT) {
+            addValue(bin, msg.getDouble());
+        } else if (waveformReduction == WaveformReduction.EVERY_ELEMENT) {
+            for (int i = 0; i < elementCount; i++) {
+                addValue(bin, msg.getDouble(i));
+            }
+        } else {
+            double sum = 0;
+            for (int i = 0; i < elementCount; i++) {
+                sum += msg.getDouble(i);
+            }
+            addValue(bin, sum / elementCount);
+        }
+    }
+
+    /**
+     * @return The PayloadInfo of the last chunk; null if no events have been added.
+     */
+    public PayloadInfo getPayloadInfo() {
+        return info;
+    }
+
+    public int getBinCount() {
+        return binCount;
+    }
+
+    /**
+     * @return The start of this bin
+     */
+    public Timestamp getBinStart(int bin) {
+        long nanos = startNanos + bin * binNanos;
+        Timestamp ts = new Timestamp((startEpochSeconds + Math.floorDiv(nanos, 1_000_000_000L)) * 1000);
+        ts.setNanos((int) Math.floorMod(nanos, 1_000_000_000L));
+        return ts;
+    }
+
+    /**
+     * @return The number of values in each bin; with EVERY_ELEMENT, this is the number of waveform elements.
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    private double[] ifNotEmpty(double[] values) {
+        double[] ret = new double[binCount];
+        for (int bin = 0; bin < binCount; bin++) {
+            ret[bin] = counts[bin] == 0 ? Double.NaN : values[bin];
+        }
+        return ret;
+    }
+
+    /**
+     * @return The mean of each bin; NaN for empty bins.
+     */
+    public double[] getMeans() {
+        return ifNotEmpty(means);
+    }
+
+    /**
+     * @return The sample variance of each bin; NaN for bins with less than two values.
+     */
+    public double[] getVariances() {
+        double[] ret = new double[binCount];
+        for (int bin = 0; bin < binCount; bin++) {
+            ret[bin] = counts[bin] < 2 ? Double.NaN : m2s[bin] / (counts[bin] - 1);
+        }
+        return ret;
+    }
+
+    /**
+     * @return The minimum of each bin; NaN for empty bins.
+     */
+    public double[] getMins() {
+        return ifNotEmpty(mins);
+    }
+
+    /**
+     * @return The maximum of each bin; NaN for empty bins.
+     */
+    public double[] getMaxs() {
+        return ifNotEmpty(maxs);
+    }
+
+    /**
+     * @return The first value in each bin; NaN for empty bins.
+     */
+    public double[] getFirsts() {
+        return ifNotEmpty(firsts);
+    }
+
+    /**
+     * @return The last value in each bin; NaN for empty bins.
+     */
+    public double[] getLasts() {
+        return ifNotEmpty(lasts);
+    }
+
+    /**
+     * @return The number of events in this bin with this severity
+     */
+    public long getSeverityCount(int bin, int severity) {
+        return severityCounts[bin * SEVERITY_COUNT + severity];
+    }
+
+    /**
+     * @return The number of events in this bin with this alarm status
+     */
+    public long getStatusCount(int bin, int status) {
+        return statusCounts[bin * STATUS_COUNT + status];
+    }
+
+    /**
+     * Start again; for example, to reuse this for the next PV.
+     */
+    public void clear() {
+        info = null;
+        Arrays.fill(counts, 0);
+        Arrays.fill(severityCounts, 0);
+        Arrays.fill(statusCounts, 0);
+    }
+}
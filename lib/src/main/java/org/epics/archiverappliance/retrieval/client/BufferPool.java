@@ -0,0 +1,202 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of the buffers that iterators use to read and unescape lines; this is shared by all the iterators that use it and is thread safe.
+ * Iterators start with a small line buffer and double it when a line does not fit; so the buffers are sized by the lines that have been seen and are not limited in size.
+ * Buffers are returned to the pool when the iterator is closed or when the line buffer grows; iterators that are not closed just leave their buffers to the garbage collector.
+ * Capacities are rounded up to a power of two so that buffers can be reused for similar requests.
+ * The pool keeps at most maxPooledBytes of idle buffers; buffers that are released when the pool is full or that are larger than a quarter of this are dropped.
+ * The statistics can be used to tune the size of the pool; for example, a high discard count with a low hit rate means the pool is too small.
+ * @author mshankar
+ *
+ */
+public final class BufferPool {
+    static final int MIN_BUFFER_SIZE = 4 * 1024;
+    // Larger capacities are not rounded to a power of two
+    private static final int MAX_ROUNDED_SIZE = 1 << 30;
+    private static volatile BufferPool defaultPool = new BufferPool(64L * 1024 * 1024, false);
+
+    private final long maxPooledBytes;
+    private final boolean direct;
+    // Idle buffers by capacity; separately for heap and direct buffers.
+    private final Map<Integer, ArrayDeque<ByteBuffer>> heapBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private long pooledBytes = 0;
+    private int pooledBufferCount = 0;
+    private long acquireCount = 0;
+    private long hitCount = 0;
+    private long allocatedBytes = 0;
+    private long releaseCount = 0;
+    private long discardCount = 0;
+    private int largestBufferSize = 0;
+
+    /**
+     * @param maxPooledBytes - The maximum total capacity of the idle buffers in the pool
+     * @param direct - If true, line buffers are direct ByteBuffers; read buffers are always on the heap as InputStreams read into byte arrays.
+     */
+    public BufferPool(long maxPooledBytes, boolean direct) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Invalid pool size " + maxPooledBytes);
+        }
+        this.maxPooledBytes = maxPooledBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * @return The pool used by iterators that are not given one; this holds up to 64MB of heap buffers.
+     */
+    public static BufferPool getDefault() {
+        return defaultPool;
+    }
+
+    /**
+     * Replace the default pool; this applies to iterators that are created after this call.
+     */
+    public static void setDefault(BufferPool pool) {
+        defaultPool = pool;
+    }
+
+    static int roundCapacity(int minCapacity) {
+        if (minCapacity <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        if (minCapacity > MAX_ROUNDED_SIZE) {
+            return minCapacity;
+        }
+        return Integer.highestOneBit(minCapacity - 1) << 1;
+    }
+
+    /**
+     * @return An empty line buffer with at least this capacity; this is a direct buffer if the pool is for direct buffers.
+     */
+    ByteBuffer acquire(int minCapacity) {
+        return acquire(minCapacity, direct);
+    }
+
+    /**
+     * @return An empty heap buffer with at least this capacity; the whole of its array can be used.
+     */
+    ByteBuffer acquireHeap(int minCapacity) {
+        return acquire(minCapacity, false);
+    }
+
+    private ByteBuffer acquire(int minCapacity, boolean isDirect) {
+        int capacity = roundCapacity(minCapacity);
+        synchronized (this) {
+            acquireCount++;
+            largestBufferSize = Math.max(largestBufferSize, capacity);
+            ArrayDeque<ByteBuffer> buffers = (isDirect ? directBuffers : heapBuffers).get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                hitCount++;
+                pooledBytes -= capacity;
+                pooledBufferCount--;
+                return buffers.pop().clear();
+            }
+            allocatedBytes += capacity;
+        }
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a buffer to the pool; the caller must not use the buffer (or any views of it) after this.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            releaseCount++;
+            if (capacity < MIN_BUFFER_SIZE
+                    || capacity != roundCapacity(capacity)
+                    || capacity > maxPooledBytes / 4
+                    || pooledBytes + capacity > maxPooledBytes
+                    || buffer.isReadOnly()
+                    || (!buffer.isDirect() && buffer.arrayOffset() != 0)) {
+                discardCount++;
+                return;
+            }
+            (buffer.isDirect() ? directBuffers : heapBuffers)
+                    .computeIfAbsent(capacity, c -> new ArrayDeque<ByteBuffer>())
+                    .push(buffer);
+            pooledBytes += capacity;
+            pooledBufferCount++;
+        }
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return The total capacity of the idle buffers in the pool
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return The number of idle buffers in the pool
+     */
+    public synchronized int getPooledBufferCount() {
+        return pooledBufferCount;
+    }
+
+    /**
+     * @return The number of buffers handed out
+     */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * @return The number of buffers handed out from the pool; the rest were allocated.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The total capacity of the buffers that were allocated because there was no idle buffer of the right size
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return The number of buffers returned to the pool, including the ones that were dropped.
+     */
+    public synchronized long getReleaseCount() {
+        return releaseCount;
+    }
+
+    /**
+     * @return The number of buffers that were dropped on release because the pool was full or they were too large
+     */
+    public synchronized long getDiscardCount() {
+        return discardCount;
+    }
+
+    /**
+     * @return The capacity of the largest buffer handed out; this is a good indication of the longest line seen.
+     */
+    public synchronized int getLargestBufferSize() {
+        return largestBufferSize;
+    }
+
+    /**
+     * Drop all the idle buffers; the statistics are not reset.
+     */
+    public synchronized void clear() {
+        heapBuffers.clear();
+        directBuffers.clear();
+        pooledBytes = 0;
+        pooledBufferCount = 0;
+    }
+}
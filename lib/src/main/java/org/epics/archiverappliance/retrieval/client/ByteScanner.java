@@ -0,0 +1,147 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Find the newline and escape characters of the PB/HTTP framing eight bytes at a time; and the bytes that have to be escaped when writing it.
+ * Each long is read using a VarHandle and compared against all eight bytes at once (SWAR); a byte b in word w matches if the same byte of <code>w ^ (b * 0x0101..)</code> is zero.
+ * Zero bytes are found using <code>(x - 0x0101..) &amp; ~x &amp; 0x8080..</code>; the borrow can only set the high bit of bytes after the first zero byte; so with little endian loads, the lowest set bit is always the first match.
+ * The tail of the range that does not fill a long is scanned a byte at a time.
+ * @author mshankar
+ *
+ */
+final class ByteScanner {
+    private static final VarHandle LONGS_IN_ARRAY =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONGS_IN_BUFFER =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long NEWLINES = ONES * LineFramedGenMsg.NEWLINE_CHAR;
+    private static final long ESCAPES = ONES * LineFramedGenMsg.ESCAPE_CHAR;
+    private static final long CARRIAGERETURNS = ONES * LineFramedGenMsg.CARRIAGERETURN_CHAR;
+
+    private ByteScanner() {}
+
+    /**
+     * @return The high bit of each zero byte in x is set; the bits above the first zero byte may also be set.
+     */
+    private static long zeroBytes(long x) {
+        return (x - ONES) & ~x & HIGH_BITS;
+    }
+
+    private static int firstMatch(long matches) {
+        return Long.numberOfTrailingZeros(matches) >>> 3;
+    }
+
+    /**
+     * @return The index of the first newline or escape character in data from <code>from</code> (inclusive) to <code>to</code> (exclusive); or <code>to</code> if there is none.
+     */
+    static int indexOfNewlineOrEscape(byte[] data, int from, int to) {
+        int i = from;
+        for (; i <= to - Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONGS_IN_ARRAY.get(data, i);
+            long matches = zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ ESCAPES);
+            if (matches != 0) {
+                return i + firstMatch(matches);
+            }
+        }
+        for (; i < to; i++) {
+            byte b = data[i];
+            if (b == LineFramedGenMsg.NEWLINE_CHAR || b == LineFramedGenMsg.ESCAPE_CHAR) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The index of the first newline or escape character in the buffer from <code>from</code> (inclusive) to <code>to</code> (exclusive); or <code>to</code> if there is none.
+     * The indices are absolute; the position and limit of the buffer are not used or changed.
+     */
+    static int indexOfNewlineOrEscape(ByteBuffer data, int from, int to) {
+        int i = from;
+        for (; i <= to - Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONGS_IN_BUFFER.get(data, i);
+            long matches = zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ ESCAPES);
+            if (matches != 0) {
+                return i + firstMatch(matches);
+            }
+        }
+        for (; i < to; i++) {
+            byte b = data.get(i);
+            if (b == LineFramedGenMsg.NEWLINE_CHAR || b == LineFramedGenMsg.ESCAPE_CHAR) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The index of the first byte in data that has to be escaped (a newline, an escape or a carriage return) from <code>from</code> (inclusive) to <code>to</code> (exclusive); or <code>to</code> if there is none.
+     */
+    static int indexOfEscapable(byte[] data, int from, int to) {
+        int i = from;
+        for (; i <= to - Long.BYTES; i += Long.BYTES) {
+            long word = (long) LONGS_IN_ARRAY.get(data, i);
+            long matches =
+                    zeroBytes(word ^ NEWLINES) | zeroBytes(word ^ ESCAPES) | zeroBytes(word ^ CARRIAGERETURNS);
+            if (matches != 0) {
+                return i + firstMatch(matches);
+            }
+        }
+        for (; i < to; i++) {
+            byte b = data[i];
+            if (b == LineFramedGenMsg.NEWLINE_CHAR
+                    || b == LineFramedGenMsg.ESCAPE_CHAR
+                    || b == LineFramedGenMsg.CARRIAGERETURN_CHAR) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The index of the first occurrence of b in data from <code>from</code> (inclusive) to <code>to</code> (exclusive); or <code>to</code> if there is none.
+     */
+    static int indexOf(byte[] data, int from, int to, byte b) {
+        long pattern = ONES * (b & 0xFF);
+        int i = from;
+        for (; i <= to - Long.BYTES; i += Long.BYTES) {
+            long matches = zeroBytes((long) LONGS_IN_ARRAY.get(data, i) ^ pattern);
+            if (matches != 0) {
+                return i + firstMatch(matches);
+            }
+        }
+        for (; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return The index of the first occurrence of b in the buffer from <code>from</code> (inclusive) to <code>to</code> (exclusive); or <code>to</code> if there is none.
+     * The indices are absolute; the position and limit of the buffer are not used or changed.
+     */
+    static int indexOf(ByteBuffer data, int from, int to, byte b) {
+        long pattern = ONES * (b & 0xFF);
+        int i = from;
+        for (; i <= to - Long.BYTES; i += Long.BYTES) {
+            long matches = zeroBytes((long) LONGS_IN_BUFFER.get(data, i) ^ pattern);
+            if (matches != 0) {
+                return i + firstMatch(matches);
+            }
+        }
+        for (; i < to; i++) {
+            if (data.get(i) == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+}
@@ -0,0 +1,560 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache the data from another DataRetrieval; for example, for viewers that ask for overlapping windows of the same PVs as users pan and zoom.
+ * The cache is keyed by the PV (and the other request parameters) and holds non-overlapping time ranges of each PV as raw bytes in the PB/HTTP wire format.
+ * A request is split into the ranges that are cached and the missing ranges; only the missing ranges are fetched from the delegate.
+ * These are stitched together with the cached ranges; the overlapping events at the boundaries are dropped.
+ * The events for a missing range are recorded as they are read; the range is added to the cache only if the caller reads all of it.
+ * Consecutive PVs in a request that have nothing cached are fetched from the delegate in one request; the recording is split into the PVs using the PV name in the PayloadInfo.
+ * The other PVs are fetched one by one; each of these needs a request to the delegate for each missing range.
+ * The cache is bounded in size; the least recently used ranges are evicted, optionally to files in a spill folder that is also bounded in size.
+ * Ranges that end after the current time are not cached, as more data can arrive for them.
+ * This is thread safe.
+ * @author mshankar
+ *
+ */
+public class CachingDataRetrieval extends DataRetrieval {
+    private static final Logger logger = Logger.getLogger(CachingDataRetrieval.class.getName());
+    private final DataRetrieval delegate;
+    private final long maxMemoryBytes;
+    private final Path spillFolder;
+    private final long maxSpillBytes;
+    private final Map<Key, TreeMap<Long, Segment>> segmentsByKey = new HashMap<Key, TreeMap<Long, Segment>>();
+    // The segments in memory and in the spill folder in least recently used order
+    private final LinkedHashMap<Segment, Segment> memoryLRU = new LinkedHashMap<Segment, Segment>(16, 0.75f, true);
+    private final LinkedHashMap<Segment, Segment> spillLRU = new LinkedHashMap<Segment, Segment>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private long spillBytes = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    private record Key(String pvName, boolean useReducedDataSet, Map<String, String> otherParams) {}
+
+    /**
+     * A cached time range of a PV; the times are nanoseconds since the epoch.
+     * The data has the events from start to end and the last event before start, if any.
+     */
+    private static final class Segment {
+        final Key key;
+        final long start;
+        final long end;
+        final long size;
+        byte[] data;
+        Path file;
+
+        Segment(Key key, long start, long end, byte[] data) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.size = data.length;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param delegate - Fetch the data that is not in the cache from here
+     * @param maxMemoryBytes - The maximum size of the data in memory
+     */
+    public CachingDataRetrieval(DataRetrieval delegate, long maxMemoryBytes) {
+        this(delegate, maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param delegate - Fetch the data that is not in the cache from here
+     * @param maxMemoryBytes - The maximum size of the data in memory
+     * @param spillFolder - Ranges that are evicted from memory are written to files in this folder; null to drop them instead.
+     * @param maxSpillBytes - The maximum size of the files in the spill folder
+     */
+    public CachingDataRetrieval(DataRetrieval delegate, long maxMemoryBytes, Path spillFolder, long maxSpillBytes) {
+        this.delegate = delegate;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.spillFolder = spillFolder;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * @return The number of cached ranges that were used to answer requests
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of missing ranges that were fetched from the delegate
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The number of ranges that were moved from memory to the spill folder
+     */
+    public long getSpillCount() {
+        return spills.sum();
+    }
+
+    /**
+     * @return The number of ranges that were dropped from the cache to stay within its size
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of bytes of cached data that were used instead of fetching them again
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getSpillBytes() {
+        return spillBytes;
+    }
+
+    /**
+     * Drop all the cached data and delete the spill files.
+     */
+    public synchronized void clear() {
+        for (Segment segment : new ArrayList<Segment>(memoryLRU.keySet())) {
+            removeSegment(segment);
+        }
+        for (Segment segment : new ArrayList<Segment>(spillLRU.keySet())) {
+            removeSegment(segment);
+        }
+    }
+
+    private static long toNanos(Timestamp ts) {
+        return Math.floorDiv(ts.getTime(), 1000) * 1_000_000_000L + ts.getNanos();
+    }
+
+    private static Timestamp toTimestamp(long nanos) {
+        Timestamp ts = new Timestamp(Math.floorDiv(nanos, 1_000_000_000L) * 1000);
+        ts.setNanos((int) Math.floorMod(nanos, 1_000_000_000L));
+        return ts;
+    }
+
+    @Override
+    public GenMsgIterator getDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        Map<String, String> params = otherParams == null ? Map.of() : Map.copyOf(otherParams);
+        long start = toNanos(startTime);
+        long end = toNanos(endTime);
+        List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>(pvNames.size());
+        List<Key> uncached = new ArrayList<Key>();
+        for (String pvName : pvNames) {
+            Key key = new Key(pvName, useReducedDataSet, params);
+            if (!hasCachedData(key, start, end)) {
+                uncached.add(key);
+                continue;
+            }
+            addUncached(sources, uncached, startTime, endTime);
+            sources.add(() -> getDataForKey(key, startTime, endTime));
+        }
+        addUncached(sources, uncached, startTime, endTime);
+        try {
+            ConcatenatedGenMsg ret = new ConcatenatedGenMsg(sources);
+            if (ret.getPayLoadInfo() == null) {
+                ret.close();
+                return null;
+            }
+            return ret;
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Exception fetching data for " + pvNames, ex);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if some of the time range of this PV is cached
+     */
+    private synchronized boolean hasCachedData(Key key, long start, long end) {
+        TreeMap<Long, Segment> segments = segmentsByKey.get(key);
+        if (segments == null) {
+            return false;
+        }
+        Long from = segments.floorKey(start);
+        for (Segment segment : segments.subMap(from != null ? from : start, true, end, true).values()) {
+            if (segment.end > start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a source for the PVs that have nothing cached; several PVs are fetched from the delegate in one request.
+     */
+    private void addUncached(
+            List<ConcatenatedGenMsg.Source> sources, List<Key> uncached, Timestamp startTime, Timestamp endTime) {
+        if (uncached.size() == 1) {
+            Key key = uncached.get(0);
+            sources.add(() -> getDataForKey(key, startTime, endTime));
+        } else if (uncached.size() > 1) {
+            long cacheableEnd = toNanos(new Timestamp(System.currentTimeMillis()));
+            sources.add(fetch(List.copyOf(uncached), toNanos(startTime), toNanos(endTime), cacheableEnd));
+        }
+        uncached.clear();
+    }
+
+    /**
+     * Split the request into cached and missing ranges and stitch these together.
+     */
+    private GenMsgIterator getDataForKey(Key key, Timestamp startTime, Timestamp endTime) throws IOException {
+        long start = toNanos(startTime);
+        long end = toNanos(endTime);
+        long cacheableEnd = toNanos(new Timestamp(System.currentTimeMillis()));
+        List<ConcatenatedGenMsg.Source> pieces = new ArrayList<ConcatenatedGenMsg.Source>();
+        synchronized (this) {
+            long cursor = start;
+            TreeMap<Long, Segment> segments = segmentsByKey.get(key);
+            if (segments != null) {
+                // The segment that starts at or before the start time can cover it.
+                Long from = segments.floorKey(start);
+                for (Segment segment : segments.subMap(from != null ? from : start, true, end, true).values()) {
+                    if (segment.end <= cursor) {
+                        continue;
+                    }
+                    if (segment.start > cursor) {
+                        pieces.add(fetch(List.of(key), cursor, segment.start, cacheableEnd));
+                    }
+                    pieces.add(replay(segment, cursor, pieces.isEmpty(), cacheableEnd));
+                    cursor = segment.end;
+                }
+            }
+            if (cursor < end || pieces.isEmpty()) {
+                pieces.add(fetch(List.of(key), cursor, end, cacheableEnd));
+            }
+        }
+        ConcatenatedGenMsg ret = new ConcatenatedGenMsg(pieces, endTime, true);
+        if (ret.getPayLoadInfo() == null) {
+            ret.close();
+            return null;
+        }
+        return ret;
+    }
+
+    /**
+     * Fetch a missing range of these PVs from the delegate in one request and record it for the cache.
+     * This is counted as a miss for each PV when it is opened.
+     */
+    private ConcatenatedGenMsg.Source fetch(List<Key> keys, long from, long to, long cacheableEnd) {
+        return () -> {
+            misses.add(keys.size());
+            List<String> pvNames = new ArrayList<String>(keys.size());
+            for (Key key : keys) {
+                pvNames.add(key.pvName());
+            }
+            Key first = keys.get(0);
+            GenMsgIterator strm = delegate.getDataForPVs(
+                    pvNames,
+                    toTimestamp(from),
+                    toTimestamp(to),
+                    first.useReducedDataSet(),
+                    first.otherParams().isEmpty() ? null : first.otherParams());
+            if (strm == null || to > cacheableEnd || from >= to) {
+                return strm;
+            }
+            return new RecordingGenMsg(strm, keys, from, to);
+        };
+    }
+
+    /**
+     * Replay a cached range; the first piece of a request starts with the last event before the start time like the server does.
+     * This is counted as a hit when it is opened; the bytes saved are the bytes from the first event that is replayed to the end of the range.
+     */
+    private ConcatenatedGenMsg.Source replay(Segment segment, long from, boolean first, long cacheableEnd) {
+        memoryLRU.get(segment);
+        spillLRU.get(segment);
+        byte[] data = segment.data;
+        Path file = segment.file;
+        return () -> {
+            LineFramedGenMsg strm;
+            if (data != null) {
+                strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data));
+            } else {
+                try {
+                    strm = new MappedFileGenMsg(file);
+                } catch (NoSuchFileException ex) {
+                    // This was evicted after we planned the request; so this is a miss instead.
+                    return fetch(List.of(segment.key), from, segment.end, cacheableEnd).open();
+                }
+            }
+            long skippedBytes = 0;
+            if (first) {
+                skippedBytes = strm.skipTo(
+                        Math.floorDiv(from, 1_000_000_000L), (int) Math.floorMod(from, 1_000_000_000L), true);
+            }
+            hits.increment();
+            bytesSaved.add(segment.size - skippedBytes);
+            return strm;
+        };
+    }
+
+    /**
+     * Add a range that has been read completely to the cache.
+     */
+    private synchronized void commit(Key key, long from, long to, byte[] data) {
+        if (data.length > maxMemoryBytes) {
+            return;
+        }
+        TreeMap<Long, Segment> segments = segmentsByKey.computeIfAbsent(key, k -> new TreeMap<Long, Segment>());
+        // Another request could have cached an overlapping range in the meantime.
+        Map.Entry<Long, Segment> before = segments.lowerEntry(to);
+        if (before != null && before.getValue().end > from) {
+            return;
+        }
+        Segment segment = new Segment(key, from, to, data);
+        segments.put(from, segment);
+        memoryLRU.put(segment, segment);
+        memoryBytes += segment.size;
+        evict();
+    }
+
+    private void evict() {
+        while (memoryBytes > maxMemoryBytes && !memoryLRU.isEmpty()) {
+            Segment eldest = memoryLRU.keySet().iterator().next();
+            memoryLRU.remove(eldest);
+            memoryBytes -= eldest.size;
+            if (spill(eldest)) {
+                spills.increment();
+                spillLRU.put(eldest, eldest);
+                spillBytes += eldest.size;
+            } else {
+                evictions.increment();
+                removeSegment(eldest);
+            }
+        }
+        while (spillBytes > maxSpillBytes && !spillLRU.isEmpty()) {
+            Segment eldest = spillLRU.keySet().iterator().next();
+            evictions.increment();
+            removeSegment(eldest);
+        }
+    }
+
+    /**
+     * Move the data for a segment to a file in the spill folder.
+     * @return false if there is no spill folder or if the data could not be written.
+     */
+    private boolean spill(Segment segment) {
+        if (spillFolder == null || segment.size > maxSpillBytes) {
+            return false;
+        }
+        try {
+            Path file = Files.createTempFile(spillFolder, "pbcache", ".pb");
+            Files.write(file, segment.data);
+            segment.file = file;
+            segment.data = null;
+            return true;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Exception spilling cached data to " + spillFolder, ex);
+            return false;
+        }
+    }
+
+    private void removeSegment(Segment segment) {
+        if (memoryLRU.remove(segment) != null) {
+            memoryBytes -= segment.size;
+        }
+        if (spillLRU.remove(segment) != null) {
+            spillBytes -= segment.size;
+        }
+        TreeMap<Long, Segment> segments = segmentsByKey.get(segment.key);
+        if (segments != null) {
+            segments.remove(segment.start, segment);
+            if (segments.isEmpty()) {
+                segmentsByKey.remove(segment.key);
+            }
+        }
+        segment.data = null;
+        if (segment.file != null) {
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Exception deleting spilled data " + segment.file, ex);
+            }
+        }
+    }
+
+    /**
+     * Pass the events from the delegate through to the caller and record them in the wire format.
+     * The data for a single PV is recorded whatever the PV name in its PayloadInfo; the data for several PVs is split using the PV name.
+     * The recording for a PV is added to the cache once all its events are read; that is, when the next PV starts or at the end.
+     */
+    private final class RecordingGenMsg implements GenMsgIterator {
+        private final GenMsgIterator strm;
+        private final Iterator<EpicsMessage> it;
+        private final List<Key> keys;
+        private final long from;
+        private final long to;
+        // The PV that is being recorded; null if this PV was not requested.
+        private Key key = null;
+        // null if the current PV is not being recorded
+        private ByteArrayOutputStream bytes = null;
+        private PBStreamWriter writer = null;
+        private PayloadInfo info = null;
+        // The next event; this has been recorded already.
+        private EpicsMessage next = null;
+
+        RecordingGenMsg(GenMsgIterator strm, List<Key> keys, long from, long to) throws IOException {
+            this.strm = strm;
+            this.it = strm.iterator();
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            startChunk(strm.getPayLoadInfo());
+            if (bytes != null) {
+                writer.writeInfo(info);
+            }
+        }
+
+        private Key keyFor(PayloadInfo payloadInfo) {
+            if (keys.size() == 1) {
+                return keys.get(0);
+            }
+            for (Key k : keys) {
+                if (k.pvName().equals(payloadInfo.getPvname())) {
+                    return k;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * If the chunk is for another PV, add the recording for the current PV to the cache and start recording the new one.
+         */
+        private void startChunk(PayloadInfo payloadInfo) {
+            info = payloadInfo;
+            Key chunkKey = keyFor(payloadInfo);
+            if (chunkKey == key) {
+                return;
+            }
+            if (bytes != null) {
+                commit(key, from, to, bytes.toByteArray());
+            }
+            key = chunkKey;
+            bytes = chunkKey != null ? new ByteArrayOutputStream() : null;
+            writer = bytes != null ? new PBStreamWriter(bytes) : null;
+        }
+
+        private EpicsMessage peek() {
+            if (next == null) {
+                if (it.hasNext()) {
+                    next = it.next();
+                    record(next);
+                } else if (bytes != null) {
+                    commit(key, from, to, bytes.toByteArray());
+                    bytes = null;
+                }
+            }
+            return next;
+        }
+
+        private void record(EpicsMessage msg) {
+            if (msg.getPayloadInfo() != info) {
+                startChunk(msg.getPayloadInfo());
+            }
+            if (bytes == null) {
+                return;
+            }
+            try {
+                writer.write(msg);
+                if (writer.getBytesWritten() > maxMemoryBytes) {
+                    // This is too large to cache
+                    bytes = null;
+                }
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Exception recording data for " + key.pvName(), ex);
+                bytes = null;
+            }
+        }
+
+        @Override
+        public PayloadInfo getPayLoadInfo() {
+            return strm.getPayLoadInfo();
+        }
+
+        @Override
+        public void onInfoChange(InfoChangeHandler handler) {
+            strm.onInfoChange(handler);
+        }
+
+        @Override
+        public Iterator<EpicsMessage> iterator() {
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return peek() != null;
+                }
+
+                @Override
+                public EpicsMessage next() {
+                    EpicsMessage ret = peek();
+                    if (ret == null) {
+                        throw new NoSuchElementException("End of file");
+                    }
+                    next = null;
+                    return ret;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * The events are read using the iterator so that they can be recorded.
+         */
+        @Override
+        public int nextBatch(EventBatch batch) throws IOException {
+            EpicsMessage msg = peek();
+            batch.reset(msg != null ? msg.getPayloadInfo() : strm.getPayLoadInfo());
+            while (msg != null && !batch.isFull() && msg.getPayloadInfo() == batch.getPayloadInfo()) {
+                batch.add(msg);
+                next = null;
+                msg = peek();
+            }
+            return batch.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // If the caller did not read all the events, we do not cache the range.
+            bytes = null;
+            strm.close();
+        }
+    }
+}
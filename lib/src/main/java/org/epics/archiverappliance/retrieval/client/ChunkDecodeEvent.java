@@ -0,0 +1,39 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event for each chunk of the PB/HTTP wire format; the duration is the time from reading the PayloadInfo to framing the last event of the chunk.
+ * As the chunk is decoded as the events are consumed, this includes the time the consumer spends on the events and the time spent waiting for the network.
+ * @author mshankar
+ *
+ */
+@Name(ChunkDecodeEvent.NAME)
+@Label("Chunk Decode")
+@Category({"EPICS Archiver Appliance", "Retrieval Client"})
+@Description("The events of one PV and year in a PB/HTTP stream")
+final class ChunkDecodeEvent extends Event {
+    static final String NAME = "org.epics.archiverappliance.retrieval.client.ChunkDecode";
+
+    @Label("PV Name")
+    String pvName;
+
+    @Label("Year")
+    int year;
+
+    @Label("Payload Type")
+    String type;
+
+    @Label("Events")
+    long events;
+
+    @Label("Bytes")
+    @Description("The size of the event lines after unescaping them")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,258 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Concatenate the events from a sequence of GenMsgIterators; for example, the partition files of a PV or the data for several PVs.
+ * The sources are opened lazily, one at a time, and each source is closed as soon as it is exhausted.
+ * Events after the end time are dropped and the rest of that source is skipped.
+ * Sources for the same PV can overlap; for example, each one can start with the last event before its start time.
+ * With skipOverlaps, the events at the start of each source that are not after the last event returned for the same PV are dropped.
+ * The InfoChangeHandler is called with the PayloadInfo of each source after the first and for every chunk change within a source.
+ * @author mshankar
+ *
+ */
+final class ConcatenatedGenMsg implements GenMsgIterator {
+    /**
+     * Open a source; this can return null if the source has no data.
+     */
+    interface Source {
+        GenMsgIterator open() throws IOException;
+
+        /**
+         * Called on close for the sources that were never opened; for example, to cancel a request that is in flight.
+         */
+        default void discard() {}
+    }
+
+    private final Iterator<Source> sources;
+    private final long endEpochSeconds;
+    private final int endNanos;
+    private GenMsgIterator current;
+    private Iterator<EpicsMessage> currentIt;
+    private PayloadInfo lastInfo;
+    private EpicsMessage nextMsg = null;
+    private InfoChangeHandler infoChangeHandler = null;
+    private final boolean skipOverlaps;
+    // The time of the last event that was returned; used to skip the overlap at the start of each source.
+    private boolean haveLast = false;
+    private long lastEpochSeconds;
+    private int lastNanos;
+    private boolean atSourceStart = false;
+
+    /**
+     * @param sources - The sources in the order in which they are to be returned; the first one is opened here.
+     * @param endTime - Events after this time are dropped.
+     * @throws IOException
+     */
+    ConcatenatedGenMsg(List<Source> sources, Timestamp endTime) throws IOException {
+        this(sources, Math.floorDiv(endTime.getTime(), 1000), endTime.getNanos(), false);
+    }
+
+    /**
+     * @param sources - The sources in time order for each PV; the first one is opened here.
+     * @param endTime - Events after this time are dropped.
+     * @param skipOverlaps - Drop the events at the start of each source that are not after the last event returned.
+     * @throws IOException
+     */
+    ConcatenatedGenMsg(List<Source> sources, Timestamp endTime, boolean skipOverlaps) throws IOException {
+        this(sources, Math.floorDiv(endTime.getTime(), 1000), endTime.getNanos(), skipOverlaps);
+    }
+
+    /**
+     * All the events from the sources are returned; for example, when the server has already applied the end time.
+     * @param sources - The sources in the order in which they are to be returned; the first one is opened here.
+     * @throws IOException
+     */
+    ConcatenatedGenMsg(List<Source> sources) throws IOException {
+        this(sources, Long.MAX_VALUE, Integer.MAX_VALUE, false);
+    }
+
+    private ConcatenatedGenMsg(List<Source> sources, long endEpochSeconds, int endNanos, boolean skipOverlaps)
+            throws IOException {
+        this.sources = sources.iterator();
+        this.endEpochSeconds = endEpochSeconds;
+        this.endNanos = endNanos;
+        this.skipOverlaps = skipOverlaps;
+        openNextSource();
+    }
+
+    /**
+     * Close the current source and open the next one.
+     * @return false if there are no more sources.
+     * @throws IOException
+     */
+    private boolean openNextSource() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+            currentIt = null;
+        }
+        while (sources.hasNext()) {
+            GenMsgIterator source = sources.next().open();
+            if (source == null) {
+                continue;
+            }
+            current = source;
+            currentIt = source.iterator();
+            if (lastInfo != null && !lastInfo.getPvname().equals(source.getPayLoadInfo().getPvname())) {
+                // The sources for a new PV do not overlap the previous PV
+                haveLast = false;
+            }
+            lastInfo = source.getPayLoadInfo();
+            atSourceStart = true;
+            if (infoChangeHandler != null) {
+                source.onInfoChange(infoChangeHandler);
+                infoChangeHandler.handleInfoChange(lastInfo);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isAfterEnd(long epochSeconds, int nanos) {
+        return epochSeconds > endEpochSeconds || (epochSeconds == endEpochSeconds && nanos > endNanos);
+    }
+
+    /**
+     * Is this event part of the overlap at the start of a source?
+     */
+    private boolean isOverlap(long epochSeconds, int nanos) {
+        return skipOverlaps
+                && atSourceStart
+                && haveLast
+                && (epochSeconds < lastEpochSeconds || (epochSeconds == lastEpochSeconds && nanos <= lastNanos));
+    }
+
+    private void setLast(long epochSeconds, int nanos) {
+        haveLast = true;
+        lastEpochSeconds = epochSeconds;
+        lastNanos = nanos;
+        atSourceStart = false;
+    }
+
+    private boolean readAhead() throws IOException {
+        while (nextMsg == null && current != null) {
+            if (!currentIt.hasNext()) {
+                openNextSource();
+                continue;
+            }
+            EpicsMessage msg = currentIt.next();
+            if (isAfterEnd(msg.getEpochSeconds(), msg.getNanos())) {
+                openNextSource();
+            } else if (!isOverlap(msg.getEpochSeconds(), msg.getNanos())) {
+                nextMsg = msg;
+                setLast(msg.getEpochSeconds(), msg.getNanos());
+            }
+        }
+        return nextMsg != null;
+    }
+
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        return current != null ? current.getPayLoadInfo() : lastInfo;
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+        if (current != null) {
+            current.onInfoChange(handler);
+        }
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return readAhead();
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception opening the next source", ex);
+                }
+            }
+
+            @Override
+            public EpicsMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of file");
+                }
+                EpicsMessage ret = nextMsg;
+                nextMsg = null;
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * If the iterator has read an event ahead, that event is returned in a batch by itself.
+     */
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        if (nextMsg != null) {
+            batch.reset(nextMsg.getPayloadInfo());
+            batch.add(nextMsg);
+            nextMsg = null;
+            return 1;
+        }
+        while (current != null) {
+            int size = current.nextBatch(batch);
+            if (size == 0) {
+                openNextSource();
+                continue;
+            }
+            long[] epochSeconds = batch.getEpochSeconds();
+            int[] nanos = batch.getNanos();
+            int overlap = 0;
+            while (overlap < size && isOverlap(epochSeconds[overlap], nanos[overlap])) {
+                overlap++;
+            }
+            if (overlap == size) {
+                continue;
+            }
+            if (overlap > 0) {
+                batch.dropFirst(overlap);
+                size -= overlap;
+            }
+            if (!isAfterEnd(epochSeconds[size - 1], nanos[size - 1])) {
+                setLast(epochSeconds[size - 1], nanos[size - 1]);
+                return size;
+            }
+            int inRange = 0;
+            while (inRange < size && !isAfterEnd(epochSeconds[inRange], nanos[inRange])) {
+                inRange++;
+            }
+            batch.truncate(inRange);
+            openNextSource();
+            if (inRange > 0) {
+                setLast(epochSeconds[inRange - 1], nanos[inRange - 1]);
+                return inRange;
+            }
+        }
+        batch.reset(lastInfo);
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        while (sources.hasNext()) {
+            sources.next().discard();
+        }
+        if (current != null) {
+            current.close();
+            current = null;
+            currentIt = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * Send the requests for a multi-PV retrieval concurrently over one HttpClient and return the responses in the order of the requests.
+ * The requests are sent as a sliding window; at most maxConcurrentRequests responses are outstanding, including the one being read.
+ * The response bodies that are not being read are subject to the HttpClient's flow control; so the memory used is bounded.
+ * Responses with an invalid status code are logged and skipped.
+ * @author mshankar
+ *
+ */
+final class ConcurrentRequests {
+    private static final Logger logger = Logger.getLogger(ConcurrentRequests.class.getName());
+
+    /**
+     * Wrap a response in a GenMsgIterator.
+     */
+    interface ResponseDecoder {
+        /**
+         * @param sentNanos - The System.nanoTime when the request was sent
+         */
+        GenMsgIterator decode(HttpResponse<InputStream> response, long sentNanos) throws IOException;
+    }
+
+    private final HttpClient client;
+    private final List<HttpRequest> requests;
+    private final int[] pvCounts;
+    private final int maxConcurrentRequests;
+    private final ResponseDecoder decoder;
+    private final RetrievalMetrics metrics;
+    private final List<CompletableFuture<HttpResponse<InputStream>>> responses;
+    private final long[] sentNanos;
+
+    /**
+     * @param client - The shared HttpClient; this reuses its connections.
+     * @param requests - The requests; the first maxConcurrentRequests requests are sent here.
+     * @param pvCounts - The number of PVs in each request
+     * @param maxConcurrentRequests - The maximum number of outstanding requests.
+     * @param decoder - Wraps each response.
+     * @param metrics - The time to the response headers and the status code of each response are reported to this.
+     */
+    ConcurrentRequests(
+            HttpClient client,
+            List<HttpRequest> requests,
+            int[] pvCounts,
+            int maxConcurrentRequests,
+            ResponseDecoder decoder,
+            RetrievalMetrics metrics) {
+        this.client = client;
+        this.requests = requests;
+        this.pvCounts = pvCounts;
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        this.decoder = decoder;
+        this.metrics = metrics;
+        this.responses = new ArrayList<CompletableFuture<HttpResponse<InputStream>>>(requests.size());
+        this.sentNanos = new long[requests.size()];
+        sendUpTo(this.maxConcurrentRequests);
+    }
+
+    private void sendUpTo(int count) {
+        for (int i = responses.size(); i < Math.min(count, requests.size()); i++) {
+            HttpRequest request = requests.get(i);
+            int pvCount = pvCounts[i];
+            logger.fine("URL to fetch data is " + request.uri());
+            RetrievalRequestEvent event = new RetrievalRequestEvent();
+            event.begin();
+            long sent = System.nanoTime();
+            sentNanos[i] = sent;
+            CompletableFuture<HttpResponse<InputStream>> response =
+                    client.sendAsync(request, BodyHandlers.ofInputStream());
+            response.whenComplete((r, ex) -> {
+                event.end();
+                if (r != null) {
+                    metrics.onResponseHeaders(System.nanoTime() - sent, r.statusCode());
+                    event.statusCode = r.statusCode();
+                }
+                event.report(request.uri().toString(), pvCount);
+            });
+            responses.add(response);
+        }
+    }
+
+    /**
+     * @return A Source for each request, to be opened in order using a {@link ConcatenatedGenMsg}.
+     */
+    List<ConcatenatedGenMsg.Source> sources() {
+        List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            int index = i;
+            sources.add(new ConcatenatedGenMsg.Source() {
+                @Override
+                public GenMsgIterator open() throws IOException {
+                    return openResponse(index);
+                }
+
+                @Override
+                public void discard() {
+                    discardResponse(index);
+                }
+            });
+        }
+        return sources;
+    }
+
+    private GenMsgIterator openResponse(int index) throws IOException {
+        sendUpTo(index + maxConcurrentRequests);
+        HttpResponse<InputStream> response;
+        try {
+            response = responses.get(index).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discardResponse(index);
+            throw new InterruptedIOException("Interrupted waiting for " + requests.get(index).uri());
+        } catch (ExecutionException ex) {
+            throw new IOException("Exception fetching data from " + requests.get(index).uri(), ex.getCause());
+        }
+        if (response.statusCode() != 200) {
+            logger.warning("Invalid status code from server " + response.statusCode() + " when fetching data from "
+                    + requests.get(index).uri());
+            response.body().close();
+            return null;
+        }
+        return decoder.decode(response, sentNanos[index]);
+    }
+
+    /**
+     * Cancel a request that will not be read; if the response has already arrived, release its connection.
+     */
+    private void discardResponse(int index) {
+        if (index >= responses.size()) {
+            return;
+        }
+        CompletableFuture<HttpResponse<InputStream>> response = responses.get(index);
+        response.cancel(true);
+        response.thenAccept(r -> {
+            try {
+                r.body().close();
+            } catch (IOException ex) {
+                // Nothing to do; we are discarding this response anyway
+            }
+        });
+    }
+
+    /**
+     * Discard all the responses; for example, if we could not open the first source.
+     */
+    void discardAll() {
+        for (int i = 0; i < responses.size(); i++) {
+            discardResponse(i);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Add the number of bytes read from a stream to one or more counters.
+ * @author mshankar
+ *
+ */
+final class CountingInputStream extends FilterInputStream {
+    private final LongAdder[] counters;
+
+    CountingInputStream(InputStream is, LongAdder... counters) {
+        super(is);
+        this.counters = counters;
+    }
+
+    private void count(long n) {
+        if (n > 0) {
+            for (LongAdder counter : counters) {
+                counter.add(n);
+            }
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        count(b >= 0 ? 1 : 0);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        count(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
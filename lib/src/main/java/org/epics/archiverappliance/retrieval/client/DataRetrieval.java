@@ -8,6 +8,7 @@
 package org.epics.archiverappliance.retrieval.client;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -62,7 +63,7 @@ public abstract class DataRetrieval {
     /**
      * Get data for PVs in pvNames from starttime to endtime using the system defined sparsification operator; pass additional params in the HTTP call.
      * NOTE: The data for all the PVs will be concatenated together. To identify which PV is currently being read, you must register your own
-     * {@code InfoChangeHandler} to the returned {@code GenMsgIterator} using {@code onInfoChange}.
+     * {@code InfoChangeHandler} to the returned {@code GenMsgIterator} using {@code onInfoChange}; or use {@link PVDemultiplexer} to get the data for each PV separately.
      * @param pvNames The names of the pvs
      * @param startTime Start time of request
      * @param endTime End time of request
@@ -76,4 +77,35 @@ public abstract class DataRetrieval {
             Timestamp endTime,
             boolean useReducedDataSet,
             Map<String, String> otherParams);
+
+    /**
+     * Get data for PVs in pvNames from starttime to endtime with the events for all the PVs interleaved in timestamp order.
+     * Unlike getDataForPVs, the data for each PV is fetched separately and all of these are open at the same time; so use this for a reasonable number of PVs.
+     * Use {@link EpicsMessage#getPayloadInfo()} to determine the PV of each event.
+     * PVs for which there is no data are skipped.
+     * @param pvNames The names of the pvs
+     * @param startTime Start time of request
+     * @param endTime End time of request
+     * @param useReducedDataSet - If true, use the server defined sparsification operator...
+     * @param otherParams - Any other name/value pairs that are passed onto the server.
+     * @return Return an iterator over the data; null if there is no data for any of the PVs.
+     */
+    public GenMsgIterator getMergedDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        List<GenMsgIterator> sources = new ArrayList<GenMsgIterator>(pvNames.size());
+        for (String pvName : pvNames) {
+            GenMsgIterator source = getDataForPV(pvName, startTime, endTime, useReducedDataSet, otherParams);
+            if (source != null) {
+                sources.add(source);
+            }
+        }
+        if (sources.isEmpty()) {
+            return null;
+        }
+        return new MergingGenMsg(sources);
+    }
 }
@@ -0,0 +1,283 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * Reduce the events of a PV to a fixed number of time buckets as they stream past; for example, one bucket per pixel of a plot.
+ * For each bucket, this keeps the first, minimum, maximum and last events (the M4 aggregation) and the sums needed for their mean.
+ * All the state is in primitive arrays that are sized by the number of buckets; so the memory used does not depend on the number of events.
+ * Use {@link #getSeries(Reduction)} to get the reduced events; these are events from the stream, not interpolated values.
+ * Events outside the time range and events that have no numeric value (see EventBatch) are skipped.
+ * This is a PVSink; use it with {@link PVDemultiplexer#demultiplex} to reduce the data for several PVs in one pass.
+ * @author mshankar
+ *
+ */
+public final class Downsampler implements PVDemultiplexer.PVSink {
+    /**
+     * The events that are returned for each bucket.
+     */
+    public enum Reduction {
+        /**
+         * The minimum and maximum events in time order.
+         */
+        MIN_MAX,
+        /**
+         * The first and last events.
+         */
+        FIRST_LAST,
+        /**
+         * The first, minimum, maximum and last events in time order; this draws the same line plot as the raw data.
+         */
+        M4,
+        /**
+         * One event per bucket chosen using Largest-Triangle-Three-Buckets.
+         * The event is chosen from the M4 events of the bucket (as in MinMaxLTTB) so that this streams in O(buckets) memory.
+         */
+        LTTB
+    }
+
+    private static final int FIRST = 0;
+    private static final int MIN = 1;
+    private static final int MAX = 2;
+    private static final int LAST = 3;
+    private static final int ROLES = 4;
+
+    private final int bucketCount;
+    private final long startEpochSeconds;
+    private final int startNanos;
+    private final long endEpochSeconds;
+    private final int endNanos;
+    private final double bucketsPerSecond;
+    private PayloadInfo info;
+    // Per bucket
+    private final long[] counts;
+    private final double[] sumValues;
+    private final double[] sumSeconds;
+    // The events for each role; indexed by bucket * ROLES + role.
+    private final long[] eventEpochSeconds;
+    private final int[] eventNanos;
+    private final double[] eventValues;
+    private final int[] eventSeverities;
+    private final int[] eventStatuses;
+
+    /**
+     * @param startTime - The start of the first bucket
+     * @param endTime - The end of the last bucket
+     * @param bucketCount - The number of buckets; the target number of points for LTTB.
+     */
+    public Downsampler(Timestamp startTime, Timestamp endTime, int bucketCount) {
+        if (bucketCount <= 0 || !startTime.before(endTime)) {
+            throw new IllegalArgumentException(
+                    "Invalid bucket count " + bucketCount + " or time range " + startTime + " - " + endTime);
+        }
+        this.bucketCount = bucketCount;
+        this.startEpochSeconds = Math.floorDiv(startTime.getTime(), 1000);
+        this.startNanos = startTime.getNanos();
+        this.endEpochSeconds = Math.floorDiv(endTime.getTime(), 1000);
+        this.endNanos = endTime.getNanos();
+        this.bucketsPerSecond = bucketCount / secondsSinceStart(endEpochSeconds, endNanos);
+        this.counts = new long[bucketCount];
+        this.sumValues = new double[bucketCount];
+        this.sumSeconds = new double[bucketCount];
+        this.eventEpochSeconds = new long[bucketCount * ROLES];
+        this.eventNanos = new int[bucketCount * ROLES];
+        this.eventValues = new double[bucketCount * ROLES];
+        this.eventSeverities = new int[bucketCount * ROLES];
+        this.eventStatuses = new int[bucketCount * ROLES];
+    }
+
+    /**
+     * Reduce all the events in a stream for one PV.
+     * @param strm - This is read to the end but not closed.
+     */
+    public static Downsampler downsample(GenMsgIterator strm, Timestamp startTime, Timestamp endTime, int bucketCount)
+            throws IOException {
+        Downsampler downsampler = new Downsampler(startTime, endTime, bucketCount);
+        EventBatch batch = new EventBatch(1024);
+        while (strm.nextBatch(batch) > 0) {
+            downsampler.accept(batch);
+        }
+        return downsampler;
+    }
+
+    private double secondsSinceStart(long epochSeconds, int nanos) {
+        return (epochSeconds - startEpochSeconds) + (nanos - startNanos) / 1e9;
+    }
+
+    private boolean isInRange(long epochSeconds, int nanos) {
+        return (epochSeconds > startEpochSeconds || (epochSeconds == startEpochSeconds && nanos >= startNanos))
+                && (epochSeconds < endEpochSeconds || (epochSeconds == endEpochSeconds && nanos <= endNanos));
+    }
+
+    private void set(int slot, long epochSeconds, int nanos, double value, int severity, int status) {
+        eventEpochSeconds[slot] = epochSeconds;
+        eventNanos[slot] = nanos;
+        eventValues[slot] = value;
+        eventSeverities[slot] = severity;
+        eventStatuses[slot] = status;
+    }
+
+    @Override
+    public void accept(EventBatch batch) {
+        info = batch.getPayloadInfo();
+        long[] epochSeconds = batch.getEpochSeconds();
+        int[] nanos = batch.getNanos();
+        double[] values = batch.getValues();
+        int[] severities = batch.getSeverities();
+        int[] statuses = batch.getStatuses();
+        for (int i = 0; i < batch.size(); i++) {
+            double value = values[i];
+            if (Double.isNaN(value) || !isInRange(epochSeconds[i], nanos[i])) {
+                continue;
+            }
+            double seconds = secondsSinceStart(epochSeconds[i], nanos[i]);
+            int bucket = Math.min(bucketCount - 1, (int) (seconds * bucketsPerSecond));
+            int slot = bucket * ROLES;
+            if (counts[bucket]++ == 0) {
+                for (int role = FIRST; role < ROLES; role++) {
+                    set(slot + role, epochSeconds[i], nanos[i], value, severities[i], statuses[i]);
+                }
+            } else {
+                if (value < eventValues[slot + MIN]) {
+                    set(slot + MIN, epochSeconds[i], nanos[i], value, severities[i], statuses[i]);
+                }
+                if (value > eventValues[slot + MAX]) {
+                    set(slot + MAX, epochSeconds[i], nanos[i], value, severities[i], statuses[i]);
+                }
+                set(slot + LAST, epochSeconds[i], nanos[i], value, severities[i], statuses[i]);
+            }
+            sumValues[bucket] += value;
+            sumSeconds[bucket] += seconds;
+        }
+    }
+
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    /**
+     * @return The number of events in each bucket
+     */
+    public long[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return The mean value of each bucket; NaN for empty buckets.
+     */
+    public double[] getMeans() {
+        double[] means = new double[bucketCount];
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            means[bucket] = counts[bucket] == 0 ? Double.NaN : sumValues[bucket] / counts[bucket];
+        }
+        return means;
+    }
+
+    private boolean isBefore(int slot, int other) {
+        return eventEpochSeconds[slot] < eventEpochSeconds[other]
+                || (eventEpochSeconds[slot] == eventEpochSeconds[other] && eventNanos[slot] < eventNanos[other]);
+    }
+
+    /**
+     * Add the event in this slot unless it is the same event as the last one added.
+     */
+    private void addTo(PVSeries series, int slot, int previousSlot) {
+        if (previousSlot >= 0
+                && eventEpochSeconds[slot] == eventEpochSeconds[previousSlot]
+                && eventNanos[slot] == eventNanos[previousSlot]
+                && Double.compare(eventValues[slot], eventValues[previousSlot]) == 0) {
+            return;
+        }
+        series.add(
+                eventEpochSeconds[slot],
+                eventNanos[slot],
+                eventValues[slot],
+                eventSeverities[slot],
+                eventStatuses[slot]);
+    }
+
+    /**
+     * @return The reduced events in time order; at most 4 events per bucket for M4, 2 for MIN_MAX and FIRST_LAST and 1 for LTTB.
+     */
+    public PVSeries getSeries(Reduction reduction) {
+        PVSeries series = new PVSeries(info);
+        if (reduction == Reduction.LTTB) {
+            addLTTB(series);
+            return series;
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            int slot = bucket * ROLES;
+            boolean maxFirst = isBefore(slot + MAX, slot + MIN);
+            int[] roles = switch (reduction) {
+                case MIN_MAX -> maxFirst ? new int[] {MAX, MIN} : new int[] {MIN, MAX};
+                case FIRST_LAST -> new int[] {FIRST, LAST};
+                default -> maxFirst ? new int[] {FIRST, MAX, MIN, LAST} : new int[] {FIRST, MIN, MAX, LAST};
+            };
+            int previousSlot = -1;
+            for (int role : roles) {
+                addTo(series, slot + role, previousSlot);
+                previousSlot = slot + role;
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets; the first and last events are always kept.
+     * For each bucket, choose the event that forms the largest triangle with the event chosen for the previous bucket and the mean of the next bucket.
+     */
+    private void addLTTB(PVSeries series) {
+        int[] buckets = new int[bucketCount];
+        int nonEmpty = 0;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            if (counts[bucket] > 0) {
+                buckets[nonEmpty++] = bucket;
+            }
+        }
+        if (nonEmpty == 0) {
+            return;
+        }
+        int selected = buckets[0] * ROLES + FIRST;
+        addTo(series, selected, -1);
+        for (int i = 1; i < nonEmpty - 1; i++) {
+            int bucket = buckets[i];
+            int next = buckets[i + 1];
+            double ax = secondsSinceStart(eventEpochSeconds[selected], eventNanos[selected]);
+            double ay = eventValues[selected];
+            double cx = sumSeconds[next] / counts[next];
+            double cy = sumValues[next] / counts[next];
+            int best = bucket * ROLES;
+            double bestArea = -1;
+            for (int role = FIRST; role < ROLES; role++) {
+                int slot = bucket * ROLES + role;
+                double bx = secondsSinceStart(eventEpochSeconds[slot], eventNanos[slot]);
+                double area = Math.abs((ax - cx) * (eventValues[slot] - ay) - (ax - bx) * (cy - ay));
+                if (area > bestArea) {
+                    bestArea = area;
+                    best = slot;
+                }
+            }
+            addTo(series, best, selected);
+            selected = best;
+        }
+        if (nonEmpty > 1) {
+            addTo(series, buckets[nonEmpty - 1] * ROLES + LAST, selected);
+        }
+    }
+
+    /**
+     * Start again; for example, to reuse this for the next PV.
+     */
+    public void clear() {
+        info = null;
+        Arrays.fill(counts, 0);
+        Arrays.fill(sumValues, 0);
+        Arrays.fill(sumSeconds, 0);
+    }
+}
@@ -5,12 +5,30 @@ import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.FieldValue;
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarByte;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarEnum;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarFloat;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarShort;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarString;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.V4GenericBytes;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorEnum;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorFloat;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorShort;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorString;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.sql.Timestamp;
-import java.util.Calendar;
+import java.time.LocalDate;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Objects;
 
 /**
  * Similar to DBRTimeEvent but much more lightweight.
@@ -22,31 +40,410 @@ import java.util.TimeZone;
 public class EpicsMessage {
     private final Message message;
     private final PayloadInfo info;
+    private final PayloadType type;
+    private long epochSeconds;
+    private int nanos;
+    private final int severity;
+    private final int status;
     private Timestamp ts;
 
     public EpicsMessage(Message message, PayloadInfo info) {
         this.message = message;
         this.info = info;
-        int secondsIntoYear =
-                (Integer) message.getField(message.getDescriptorForType().findFieldByNumber(1));
-        int nanos = (Integer) message.getField(message.getDescriptorForType().findFieldByNumber(2));
-        int year = info.getYear();
-        ts = new Timestamp((startOfYearInEpochSeconds.get(year) + secondsIntoYear) * 1000);
-        ts.setNanos(nanos);
+        this.type = info.getType();
+        // Dispatch once on the type to the generated getters; this avoids descriptor lookups and boxing.
+        int secondsIntoYear;
+        switch (type) {
+            case SCALAR_BYTE -> {
+                ScalarByte m = (ScalarByte) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_DOUBLE -> {
+                ScalarDouble m = (ScalarDouble) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_ENUM -> {
+                ScalarEnum m = (ScalarEnum) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_FLOAT -> {
+                ScalarFloat m = (ScalarFloat) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_INT -> {
+                ScalarInt m = (ScalarInt) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_SHORT -> {
+                ScalarShort m = (ScalarShort) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case SCALAR_STRING -> {
+                ScalarString m = (ScalarString) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_BYTE -> {
+                VectorChar m = (VectorChar) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_DOUBLE -> {
+                VectorDouble m = (VectorDouble) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_ENUM -> {
+                VectorEnum m = (VectorEnum) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_FLOAT -> {
+                VectorFloat m = (VectorFloat) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_INT -> {
+                VectorInt m = (VectorInt) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_SHORT -> {
+                VectorShort m = (VectorShort) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case WAVEFORM_STRING -> {
+                VectorString m = (VectorString) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            case V4_GENERIC_BYTES -> {
+                V4GenericBytes m = (V4GenericBytes) message;
+                secondsIntoYear = m.getSecondsintoyear();
+                nanos = m.getNano();
+                severity = m.getSeverity();
+                status = m.getStatus();
+            }
+            default -> throw new UnsupportedOperationException("Unknown type " + type);
+        }
+        epochSeconds = startOfYearInEpochSeconds(info.getYear()) + secondsIntoYear;
     }
 
     public EpicsMessage(EpicsMessage otherMessage) {
         this(otherMessage.message, otherMessage.info);
     }
 
+    /**
+     * The timestamp is created on first use; use getEpochSeconds and getNanos in tight loops.
+     * @return The timestamp of this event
+     */
     public Timestamp getTimestamp() {
+        if (ts == null) {
+            ts = new Timestamp(epochSeconds * 1000);
+            ts.setNanos(nanos);
+        }
         return ts;
     }
 
+    /**
+     * @return The seconds since the Java epoch (1970-01-01T00:00:00Z) of this event
+     */
+    public long getEpochSeconds() {
+        return epochSeconds;
+    }
+
+    /**
+     * @return The nanoseconds within the second of this event
+     */
+    public int getNanos() {
+        return nanos;
+    }
+
+    public PayloadInfo getPayloadInfo() {
+        return info;
+    }
+
     public int getElementCount() {
         return info.getElementCount();
     }
 
+    /**
+     * The number of elements in this event; unlike getElementCount, this is from the event itself and can vary from event to event.
+     * @return The number of elements in a waveform; 1 for scalars and 0 for V4 generic bytes.
+     */
+    public int getValueCount() {
+        return switch (type) {
+            case WAVEFORM_BYTE -> ((VectorChar) message).getVal().size();
+            case WAVEFORM_DOUBLE -> ((VectorDouble) message).getValCount();
+            case WAVEFORM_ENUM -> ((VectorEnum) message).getValCount();
+            case WAVEFORM_FLOAT -> ((VectorFloat) message).getValCount();
+            case WAVEFORM_INT -> ((VectorInt) message).getValCount();
+            case WAVEFORM_SHORT -> ((VectorShort) message).getValCount();
+            case WAVEFORM_STRING -> ((VectorString) message).getValCount();
+            case V4_GENERIC_BYTES -> 0;
+            default -> 1;
+        };
+    }
+
+    /**
+     * Reflection free, non boxing equivalent of getNumberValue.
+     * For waveforms, this is the first element.
+     * @return The value of this event as a double
+     */
+    public double getDouble() {
+        return getDouble(0);
+    }
+
+    /**
+     * Reflection free, non boxing equivalent of getNumberAt.
+     * For scalars, the index is ignored.
+     * @param index The index of the element in a waveform
+     * @return The value of the element as a double
+     */
+    public double getDouble(int index) {
+        return switch (type) {
+            case SCALAR_BYTE -> ((ScalarByte) message).getVal().byteAt(0);
+            case SCALAR_DOUBLE -> ((ScalarDouble) message).getVal();
+            case SCALAR_ENUM -> ((ScalarEnum) message).getVal();
+            case SCALAR_FLOAT -> ((ScalarFloat) message).getVal();
+            case SCALAR_INT -> ((ScalarInt) message).getVal();
+            case SCALAR_SHORT -> ((ScalarShort) message).getVal();
+            case SCALAR_STRING -> Double.parseDouble(((ScalarString) message).getVal());
+            case WAVEFORM_BYTE -> ((VectorChar) message).getVal().byteAt(index);
+            case WAVEFORM_DOUBLE -> ((VectorDouble) message).getVal(index);
+            case WAVEFORM_ENUM -> ((VectorEnum) message).getVal(index);
+            case WAVEFORM_FLOAT -> ((VectorFloat) message).getVal(index);
+            case WAVEFORM_INT -> ((VectorInt) message).getVal(index);
+            case WAVEFORM_SHORT -> ((VectorShort) message).getVal(index);
+            case WAVEFORM_STRING -> Double.parseDouble(((VectorString) message).getVal(index));
+            case V4_GENERIC_BYTES -> throw new UnsupportedOperationException("Can't cast V4_GENERIC_BYTES to Number");
+            default -> throw new UnsupportedOperationException("Unknown type " + type);
+        };
+    }
+
+    /**
+     * Reflection free, non boxing accessor for integral types; floating point values are truncated.
+     * For waveforms, this is the first element.
+     * @return The value of this event as a long
+     */
+    public long getLong() {
+        return getLong(0);
+    }
+
+    /**
+     * Reflection free, non boxing accessor for integral types; floating point values are truncated.
+     * For scalars, the index is ignored.
+     * @param index The index of the element in a waveform
+     * @return The value of the element as a long
+     */
+    public long getLong(int index) {
+        return switch (type) {
+            case SCALAR_BYTE -> ((ScalarByte) message).getVal().byteAt(0);
+            case SCALAR_ENUM -> ((ScalarEnum) message).getVal();
+            case SCALAR_INT -> ((ScalarInt) message).getVal();
+            case SCALAR_SHORT -> ((ScalarShort) message).getVal();
+            case WAVEFORM_BYTE -> ((VectorChar) message).getVal().byteAt(index);
+            case WAVEFORM_ENUM -> ((VectorEnum) message).getVal(index);
+            case WAVEFORM_INT -> ((VectorInt) message).getVal(index);
+            case WAVEFORM_SHORT -> ((VectorShort) message).getVal(index);
+            default -> (long) getDouble(index);
+        };
+    }
+
+    /**
+     * Bulk, non boxing copy of the elements of a numeric waveform; this uses the primitive getters of the generated classes and avoids the descriptor lookups of getNumberAt.
+     * Scalars are copied as one element.
+     * @param dst The array to copy into; use getValueCount to size this.
+     * @return The number of elements copied; this is the smaller of getValueCount and the length of dst.
+     */
+    public int copyDoubles(double[] dst) {
+        return copyDoubles(dst, 0, dst.length);
+    }
+
+    /**
+     * Copy at most length elements into dst starting at offset; for example, to copy each event into a row of a flat matrix.
+     * @return The number of elements copied; this is the smaller of getValueCount and length.
+     */
+    public int copyDoubles(double[] dst, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, dst.length);
+        switch (type) {
+            case WAVEFORM_BYTE -> {
+                ByteString val = ((VectorChar) message).getVal();
+                int count = Math.min(val.size(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = val.byteAt(i);
+                }
+                return count;
+            }
+            case WAVEFORM_DOUBLE -> {
+                VectorDouble m = (VectorDouble) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_ENUM -> {
+                VectorEnum m = (VectorEnum) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_FLOAT -> {
+                VectorFloat m = (VectorFloat) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_INT -> {
+                VectorInt m = (VectorInt) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_SHORT -> {
+                VectorShort m = (VectorShort) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_STRING, V4_GENERIC_BYTES -> throw new UnsupportedOperationException(
+                    "Can't copy " + type + " into a double array");
+            default -> {
+                if (length == 0) {
+                    return 0;
+                }
+                dst[offset] = getDouble();
+                return 1;
+            }
+        }
+    }
+
+    /**
+     * Bulk, non boxing copy of the elements of an integral waveform (WAVEFORM_BYTE, WAVEFORM_SHORT, WAVEFORM_INT and WAVEFORM_ENUM).
+     * Integral scalars are copied as one element; floating point types are not supported as they do not fit in an int.
+     * @param dst The array to copy into; use getValueCount to size this.
+     * @return The number of elements copied; this is the smaller of getValueCount and the length of dst.
+     */
+    public int copyInts(int[] dst) {
+        return copyInts(dst, 0, dst.length);
+    }
+
+    /**
+     * Copy at most length elements into dst starting at offset.
+     * @return The number of elements copied; this is the smaller of getValueCount and length.
+     */
+    public int copyInts(int[] dst, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, dst.length);
+        switch (type) {
+            case WAVEFORM_BYTE -> {
+                ByteString val = ((VectorChar) message).getVal();
+                int count = Math.min(val.size(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = val.byteAt(i);
+                }
+                return count;
+            }
+            case WAVEFORM_ENUM -> {
+                VectorEnum m = (VectorEnum) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_INT -> {
+                VectorInt m = (VectorInt) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case WAVEFORM_SHORT -> {
+                VectorShort m = (VectorShort) message;
+                int count = Math.min(m.getValCount(), length);
+                for (int i = 0; i < count; i++) {
+                    dst[offset + i] = m.getVal(i);
+                }
+                return count;
+            }
+            case SCALAR_BYTE, SCALAR_ENUM, SCALAR_INT, SCALAR_SHORT -> {
+                if (length == 0) {
+                    return 0;
+                }
+                dst[offset] = (int) getLong();
+                return 1;
+            }
+            default -> throw new UnsupportedOperationException("Can't copy " + type + " into an int array");
+        }
+    }
+
+    /**
+     * The elements of a numeric waveform as a read-only buffer; see copyDoubles for the supported types.
+     * The buffer is over a copy of the elements; so this can be kept after the iterator has moved on.
+     * @return A read-only buffer with getValueCount elements
+     */
+    public DoubleBuffer getDoubleBuffer() {
+        double[] values = new double[getValueCount()];
+        copyDoubles(values);
+        return DoubleBuffer.wrap(values).asReadOnlyBuffer();
+    }
+
+    /**
+     * The elements of an integral waveform as a read-only buffer; see copyInts for the supported types.
+     * The buffer is over a copy of the elements; so this can be kept after the iterator has moved on.
+     * @return A read-only buffer with getValueCount elements
+     */
+    public IntBuffer getIntBuffer() {
+        int[] values = new int[getValueCount()];
+        copyInts(values);
+        return IntBuffer.wrap(values).asReadOnlyBuffer();
+    }
+
     @SuppressWarnings("unchecked")
     public Number getNumberValue() {
         switch (info.getType()) {
@@ -200,31 +597,33 @@ public class EpicsMessage {
         return message;
     }
 
-    static HashMap<Integer, Long> startOfYearInEpochSeconds = new HashMap<Integer, Long>();
+    private static final int FIRST_CACHED_YEAR = 1970;
+    private static final long[] startOfYearInEpochSeconds = new long[16000 - FIRST_CACHED_YEAR];
 
     static {
-        TimeZone timeZone = TimeZone.getTimeZone("UTC");
-        for (int year = 1970; year < 16000; year++) {
-            Calendar cal = Calendar.getInstance(timeZone);
-            cal.set(year, 0, 1, 0, 0, 0);
-            startOfYearInEpochSeconds.put(year, cal.getTimeInMillis() / 1000);
+        for (int i = 0; i < startOfYearInEpochSeconds.length; i++) {
+            startOfYearInEpochSeconds[i] = LocalDate.ofYearDay(FIRST_CACHED_YEAR + i, 1).toEpochDay() * 86400L;
         }
     }
 
-    public int getSeverity() {
-        FieldDescriptor fdesc = message.getDescriptorForType().findFieldByNumber(4);
-        if (message.hasField(fdesc)) {
-            return (Integer) message.getField(fdesc);
+    /**
+     * @param year The year from the PayloadInfo
+     * @return The start of the year (UTC) in seconds since the Java epoch
+     */
+    static long startOfYearInEpochSeconds(int year) {
+        int i = year - FIRST_CACHED_YEAR;
+        if (i >= 0 && i < startOfYearInEpochSeconds.length) {
+            return startOfYearInEpochSeconds[i];
         }
-        return 0;
+        return LocalDate.ofYearDay(year, 1).toEpochDay() * 86400L;
+    }
+
+    public int getSeverity() {
+        return severity;
     }
 
     public int getStatus() {
-        FieldDescriptor fdesc = message.getDescriptorForType().findFieldByNumber(5);
-        if (message.hasField(fdesc)) {
-            return (Integer) message.getField(fdesc);
-        }
-        return 0;
+        return status;
     }
 
     public boolean hasFieldValues() {
@@ -247,5 +646,7 @@ public class EpicsMessage {
 
     public void setTimestamp(Timestamp ts) {
         this.ts = ts;
+        this.epochSeconds = Math.floorDiv(ts.getTime(), 1000);
+        this.nanos = ts.getNanos();
     }
 }
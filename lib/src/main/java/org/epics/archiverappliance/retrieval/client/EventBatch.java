@@ -0,0 +1,177 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+
+/**
+ * A reusable columnar batch of events; all the events in a batch come from the same chunk and share the same PayloadInfo.
+ * This is filled using {@link GenMsgIterator#nextBatch(EventBatch)} and lets the caller process millions of events without creating an
+ * EpicsMessage (and a Timestamp) for each event.
+ * The arrays are allocated once and are valid from 0 to size(); they are overwritten by the next call to nextBatch.
+ * For waveforms, the value columns contain the first element.
+ * Events that have no numeric value (strings, V4 generic bytes and empty waveforms) have a value of NaN; use {@link EpicsMessage#getDouble()} to parse strings that hold numbers.
+ * @author mshankar
+ *
+ */
+public class EventBatch {
+    private PayloadInfo info;
+    private boolean numericValues = false;
+    private int size = 0;
+    private final long[] epochSeconds;
+    private final int[] nanos;
+    private final double[] values;
+    private final long[] longValues;
+    private final int[] severities;
+    private final int[] statuses;
+
+    public EventBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Batch capacity has to be positive " + capacity);
+        }
+        this.epochSeconds = new long[capacity];
+        this.nanos = new int[capacity];
+        this.values = new double[capacity];
+        this.longValues = new long[capacity];
+        this.severities = new int[capacity];
+        this.statuses = new int[capacity];
+    }
+
+    /**
+     * @return The PayloadInfo of the chunk that all the events in this batch belong to.
+     */
+    public PayloadInfo getPayloadInfo() {
+        return info;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return epochSeconds.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == epochSeconds.length;
+    }
+
+    /**
+     * @return Seconds since the Java epoch (1970-01-01T00:00:00Z) for each event
+     */
+    public long[] getEpochSeconds() {
+        return epochSeconds;
+    }
+
+    /**
+     * @return The nanoseconds within the second for each event
+     */
+    public int[] getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return The value of each event as a double
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return The value of each event as a long; floating point values are truncated.
+     */
+    public long[] getLongValues() {
+        return longValues;
+    }
+
+    public int[] getSeverities() {
+        return severities;
+    }
+
+    public int[] getStatuses() {
+        return statuses;
+    }
+
+    /**
+     * Empty this batch and start a new one for the chunk described by info.
+     */
+    void reset(PayloadInfo info) {
+        this.info = info;
+        this.numericValues = info != null && hasNumericValue(info.getType());
+        this.size = 0;
+    }
+
+    /**
+     * @return true if the events of this type have a numeric value; this is decided once per type rather than by catching an exception for each event.
+     */
+    static boolean hasNumericValue(PayloadType type) {
+        return switch (type) {
+            case SCALAR_BYTE,
+                    SCALAR_DOUBLE,
+                    SCALAR_ENUM,
+                    SCALAR_FLOAT,
+                    SCALAR_INT,
+                    SCALAR_SHORT,
+                    WAVEFORM_BYTE,
+                    WAVEFORM_DOUBLE,
+                    WAVEFORM_ENUM,
+                    WAVEFORM_FLOAT,
+                    WAVEFORM_INT,
+                    WAVEFORM_SHORT -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Drop the events from size onwards.
+     */
+    void truncate(int size) {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Drop the first count events and move the rest to the start of the batch.
+     */
+    void dropFirst(int count) {
+        int remaining = Math.max(0, size - count);
+        if (remaining > 0) {
+            System.arraycopy(epochSeconds, count, epochSeconds, 0, remaining);
+            System.arraycopy(nanos, count, nanos, 0, remaining);
+            System.arraycopy(values, count, values, 0, remaining);
+            System.arraycopy(longValues, count, longValues, 0, remaining);
+            System.arraycopy(severities, count, severities, 0, remaining);
+            System.arraycopy(statuses, count, statuses, 0, remaining);
+        }
+        size = remaining;
+    }
+
+    void add(long epochSecond, int nano, double value, long longValue, int severity, int status) {
+        epochSeconds[size] = epochSecond;
+        nanos[size] = nano;
+        values[size] = value;
+        longValues[size] = longValue;
+        severities[size] = severity;
+        statuses[size] = status;
+        size++;
+    }
+
+    /**
+     * Add an event from the chunk that this batch was reset to.
+     */
+    void add(EpicsMessage msg) {
+        if (numericValues && msg.getValueCount() > 0) {
+            add(
+                    msg.getEpochSeconds(),
+                    msg.getNanos(),
+                    msg.getDouble(),
+                    msg.getLong(),
+                    msg.getSeverity(),
+                    msg.getStatus());
+        } else {
+            add(msg.getEpochSeconds(), msg.getNanos(), Double.NaN, 0, msg.getSeverity(), msg.getStatus());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decode an HTTP response body into EventBatches for a Flow.Subscriber as the body arrives.
+ * Body buffers are requested from the HttpClient only when the subscriber has outstanding demand that cannot be met from the bytes already received.
+ * Without demand, buffers are requested only until the next event has arrived; so the end of the stream is signalled without waiting for another request.
+ * So a slow subscriber stops the reads from the socket instead of buffering the response in memory.
+ * The signals from the HttpClient and the requests from the subscriber can come in on any thread; they are serialized using a drain loop.
+ * @author mshankar
+ *
+ */
+final class EventBatchSubscription implements BodySubscriber<Void>, Flow.Subscription {
+    private final Flow.Subscriber<? super EventBatch> downstream;
+    private final int batchSize;
+    private final IncrementalGenMsg decoder;
+    private final Queue<List<ByteBuffer>> received = new ConcurrentLinkedQueue<List<ByteBuffer>>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final CompletableFuture<Void> body = new CompletableFuture<Void>();
+    private volatile Flow.Subscription upstream;
+    private volatile boolean upstreamDone = false;
+    private volatile Throwable error = null;
+    private volatile boolean cancelled = false;
+    // Only accessed in the drain loop
+    private boolean upstreamRequested = false;
+    private boolean terminated = false;
+
+    /**
+     * @param bufferPool - The line buffer of the decoder is taken from this pool; it is returned when the subscription terminates or is cancelled.
+     */
+    EventBatchSubscription(Flow.Subscriber<? super EventBatch> downstream, int batchSize, BufferPool bufferPool) {
+        this.downstream = downstream;
+        this.batchSize = batchSize;
+        this.decoder = new IncrementalGenMsg(bufferPool);
+    }
+
+    /**
+     * Fail the subscription; for example, if the request could not be sent or the server returned an error.
+     */
+    void fail(Throwable ex) {
+        if (error == null) {
+            error = ex;
+        }
+        drain();
+    }
+
+    @Override
+    public CompletionStage<Void> getBody() {
+        return body;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.upstream = subscription;
+        if (cancelled) {
+            subscription.cancel();
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        received.add(item);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            fail(new IllegalArgumentException("Non-positive request " + n));
+            return;
+        }
+        demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        Flow.Subscription subscription = upstream;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        body.complete(null);
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            if (!terminated && cancelled) {
+                // The subscriber is not signalled after a cancel; but the line buffer goes back to the pool.
+                terminated = true;
+                received.clear();
+                decoder.close();
+            } else if (!terminated) {
+                drainOnce();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void drainOnce() {
+        try {
+            if (error != null) {
+                terminate(error);
+                return;
+            }
+            boolean done = upstreamDone;
+            List<ByteBuffer> buffers;
+            while ((buffers = received.poll()) != null) {
+                upstreamRequested = false;
+                for (ByteBuffer buffer : buffers) {
+                    decoder.append(buffer);
+                }
+            }
+            if (done) {
+                decoder.complete();
+            }
+            while (demand.get() > 0 && !cancelled) {
+                EventBatch batch = decoder.decodeBatch(batchSize);
+                if (batch == null) {
+                    break;
+                }
+                demand.decrementAndGet();
+                downstream.onNext(batch);
+            }
+            // Without demand, decodeBatch is not called; so check for the end of the stream separately.
+            if (decoder.isFinished() || (done && decoder.isExhausted())) {
+                terminate(null);
+                return;
+            }
+            Flow.Subscription subscription = upstream;
+            // Without demand, we read ahead only until the next event (or the end of the stream) has arrived.
+            boolean needBytes = demand.get() > 0 || !decoder.hasPendingEvent();
+            if (needBytes && !done && !upstreamRequested && subscription != null) {
+                upstreamRequested = true;
+                subscription.request(1);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Flow.Subscription subscription = upstream;
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            terminate(ex);
+        }
+    }
+
+    private void terminate(Throwable ex) {
+        terminated = true;
+        decoder.close();
+        if (ex != null) {
+            downstream.onError(ex);
+            body.completeExceptionally(ex);
+        } else {
+            downstream.onComplete();
+            body.complete(null);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decode the wire format of the numeric scalar events directly into an EventBatch.
+ * This skips creating the protobuf message, the EpicsMessage and the Timestamp for each event.
+ * All the scalar messages share the same field numbers; only the encoding of the val field differs.
+ * One of these is used per iterator; it is not thread safe.
+ * @author mshankar
+ *
+ */
+final class EventDecoder {
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private ByteBuffer line;
+    private int pos;
+    private int end;
+
+    /**
+     * @return true if decodeScalar can decode events of this type
+     */
+    static boolean canDecode(PayloadType type) {
+        return switch (type) {
+            case SCALAR_DOUBLE, SCALAR_FLOAT, SCALAR_INT, SCALAR_SHORT, SCALAR_ENUM -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Decode the event in line and add it to the batch. The position of line is not modified.
+     * @param line - The unescaped bytes of the event
+     * @param type - One of the types for which canDecode is true
+     * @param startOfYearEpochSeconds - The start of the year of the chunk
+     * @param batch - The event is added to this batch
+     * @throws InvalidProtocolBufferException if the line is not a valid event of this type
+     */
+    void decodeScalar(ByteBuffer line, PayloadType type, long startOfYearEpochSeconds, EventBatch batch)
+            throws InvalidProtocolBufferException {
+        this.line = line;
+        this.pos = line.position();
+        this.end = line.limit();
+        long secondsIntoYear = 0;
+        int nanos = 0;
+        boolean haveSeconds = false, haveNanos = false, haveValue = false;
+        double value = 0;
+        long longValue = 0;
+        int severity = 0;
+        int status = 0;
+        while (pos < end) {
+            long tag = readVarint();
+            int fieldNumber = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+            if (fieldNumber == 3) {
+                switch (type) {
+                    case SCALAR_DOUBLE -> {
+                        expectWireType(wireType, WIRETYPE_FIXED64, fieldNumber);
+                        value = Double.longBitsToDouble(readFixed64());
+                        longValue = (long) value;
+                    }
+                    case SCALAR_FLOAT -> {
+                        expectWireType(wireType, WIRETYPE_FIXED32, fieldNumber);
+                        value = Float.intBitsToFloat(readFixed32());
+                        longValue = (long) value;
+                    }
+                    case SCALAR_INT -> {
+                        expectWireType(wireType, WIRETYPE_FIXED32, fieldNumber);
+                        longValue = readFixed32();
+                        value = longValue;
+                    }
+                    case SCALAR_SHORT, SCALAR_ENUM -> {
+                        expectWireType(wireType, WIRETYPE_VARINT, fieldNumber);
+                        // sint32 uses zigzag encoding
+                        int zigzag = (int) readVarint();
+                        longValue = (zigzag >>> 1) ^ -(zigzag & 1);
+                        value = longValue;
+                    }
+                    default -> throw new IllegalArgumentException("Cannot decode " + type);
+                }
+                haveValue = true;
+                continue;
+            }
+            switch (wireType) {
+                case WIRETYPE_VARINT -> {
+                    long raw = readVarint();
+                    switch (fieldNumber) {
+                        case 1 -> {
+                            secondsIntoYear = raw & 0xFFFFFFFFL;
+                            haveSeconds = true;
+                        }
+                        case 2 -> {
+                            nanos = (int) raw;
+                            haveNanos = true;
+                        }
+                        case 4 -> severity = (int) raw;
+                        case 5 -> status = (int) raw;
+                        default -> {
+                            // Skip the fields that are not part of a batch; repeatcount, fieldactualchange etc.
+                        }
+                    }
+                }
+                default -> skipField(wireType); // fieldvalues etc are not part of a batch
+            }
+        }
+        this.line = null;
+        if (!haveSeconds || !haveNanos || !haveValue) {
+            throw new InvalidProtocolBufferException("Missing required fields in " + type);
+        }
+        batch.add(startOfYearEpochSeconds + secondsIntoYear, nanos, value, longValue, severity, status);
+    }
+
+    /**
+     * Decode just the secondsintoyear and nano fields of the event in line; this is used to locate events by time without parsing them.
+     * These fields are common to all the event types. The position of line is not modified.
+     * @param line - The unescaped bytes of the event
+     * @return The time of the event as nanoseconds since the start of the year of its chunk
+     * @throws InvalidProtocolBufferException if the line is not an event; for example, an empty line or a PayloadInfo
+     */
+    long decodeTimeIntoYear(ByteBuffer line) throws InvalidProtocolBufferException {
+        this.line = line;
+        this.pos = line.position();
+        this.end = line.limit();
+        long secondsIntoYear = -1;
+        long nanos = -1;
+        while (pos < end && (secondsIntoYear < 0 || nanos < 0)) {
+            long tag = readVarint();
+            int fieldNumber = (int) (tag >>> 3);
+            int wireType = (int) (tag & 0x7);
+            if (fieldNumber == 1) {
+                expectWireType(wireType, WIRETYPE_VARINT, fieldNumber);
+                secondsIntoYear = readVarint() & 0xFFFFFFFFL;
+            } else if (fieldNumber == 2) {
+                expectWireType(wireType, WIRETYPE_VARINT, fieldNumber);
+                nanos = readVarint() & 0xFFFFFFFFL;
+            } else {
+                skipField(wireType);
+            }
+        }
+        this.line = null;
+        if (secondsIntoYear < 0 || nanos < 0) {
+            throw new InvalidProtocolBufferException("Missing secondsintoyear or nano");
+        }
+        return secondsIntoYear * 1_000_000_000L + nanos;
+    }
+
+    private long readVarint() throws InvalidProtocolBufferException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) throw truncated();
+            byte b = line.get(pos++);
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        throw new InvalidProtocolBufferException("Malformed varint");
+    }
+
+    private long readFixed64() throws InvalidProtocolBufferException {
+        if (end - pos < 8) throw truncated();
+        // Protobuf is little endian; ByteBuffers default to big endian.
+        long result =
+                line.order() == ByteOrder.LITTLE_ENDIAN ? line.getLong(pos) : Long.reverseBytes(line.getLong(pos));
+        pos += 8;
+        return result;
+    }
+
+    private int readFixed32() throws InvalidProtocolBufferException {
+        if (end - pos < 4) throw truncated();
+        int result =
+                line.order() == ByteOrder.LITTLE_ENDIAN ? line.getInt(pos) : Integer.reverseBytes(line.getInt(pos));
+        pos += 4;
+        return result;
+    }
+
+    private void skipField(int wireType) throws InvalidProtocolBufferException {
+        switch (wireType) {
+            case WIRETYPE_VARINT -> readVarint();
+            case WIRETYPE_FIXED64 -> skip(8);
+            case WIRETYPE_FIXED32 -> skip(4);
+            case WIRETYPE_LENGTH_DELIMITED -> {
+                long length = readVarint();
+                if (length < 0 || length > Integer.MAX_VALUE) throw truncated();
+                skip((int) length);
+            }
+            default -> throw new InvalidProtocolBufferException("Invalid wire type " + wireType);
+        }
+    }
+
+    private void skip(int length) throws InvalidProtocolBufferException {
+        if (end - pos < length) throw truncated();
+        pos += length;
+    }
+
+    private static void expectWireType(int wireType, int expected, int fieldNumber)
+            throws InvalidProtocolBufferException {
+        if (wireType != expected) {
+            throw new InvalidProtocolBufferException(
+                    "Unexpected wire type " + wireType + " for field " + fieldNumber + "; expected " + expected);
+        }
+    }
+
+    private static InvalidProtocolBufferException truncated() {
+        return new InvalidProtocolBufferException("Event line is truncated");
+    }
+}
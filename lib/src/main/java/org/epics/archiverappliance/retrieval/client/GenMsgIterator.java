@@ -2,6 +2,8 @@ package org.epics.archiverappliance.retrieval.client;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
 import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * Similar to EventStream but much more lightweight...
@@ -12,4 +14,35 @@ public interface GenMsgIterator extends Iterable<EpicsMessage>, Closeable {
     EPICSEvent.PayloadInfo getPayLoadInfo();
 
     void onInfoChange(InfoChangeHandler handler);
+
+    /**
+     * Decode the next run of events into a reusable columnar batch; this avoids creating an EpicsMessage per event.
+     * A batch never spans chunks; so all the events in the batch share the PayloadInfo in the batch.
+     * Batches and the iterator can be mixed; events returned in a batch are not returned by the iterator and vice versa.
+     * The default implementation fills the batch from {@link #iterator()}, which should continue from the current position of the stream.
+     * The batch ends when {@link #getPayLoadInfo()} changes after hasNext; so this should describe the chunk of the next event once hasNext has returned true, like the streams in this package do.
+     * The PayloadInfo's are compared by reference; an implementation that returns a new PayloadInfo for each call gets batches of one event.
+     * @param batch - This is emptied and filled with up to batch.capacity() events
+     * @return The number of events in the batch; 0 at the end of the stream.
+     * @throws IOException
+     */
+    default int nextBatch(EventBatch batch) throws IOException {
+        Iterator<EpicsMessage> it = iterator();
+        batch.reset(getPayLoadInfo());
+        try {
+            while (!batch.isFull() && it.hasNext()) {
+                if (!batch.isEmpty() && getPayLoadInfo() != batch.getPayloadInfo()) {
+                    break;
+                }
+                EpicsMessage msg = it.next();
+                if (batch.isEmpty()) {
+                    batch.reset(msg.getPayloadInfo());
+                }
+                batch.add(msg);
+            }
+        } catch (RuntimeIOException ex) {
+            throw ex.getCause() instanceof IOException cause ? cause : new IOException(ex);
+        }
+        return batch.size();
+    }
 }
@@ -0,0 +1,269 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decode the PB/HTTP wire format as the bytes are pushed in; for example, from an asynchronous HTTP body.
+ * An event is framed only after all the lines that it depends on have arrived; so the framing never has to wait for data.
+ * Lines are always unescaped into buf; so the bytes that have been received can be compacted at any time.
+ * This is not thread safe; the caller serializes the calls to append, complete and decodeBatch.
+ * @author mshankar
+ *
+ */
+final class IncrementalGenMsg extends LineFramedGenMsg {
+    private byte[] data = new byte[64 * 1024];
+    // The start of the next line
+    private int pos = 0;
+    // The end of the bytes that have been received
+    private int end = 0;
+    // The number of bytes of the stream that were dropped from the start of data
+    private long dropped = 0;
+    // There is no newline in [pos, noNewlineBefore); so that we do not rescan a long line each time a piece of it arrives.
+    private int noNewlineBefore = 0;
+    private boolean complete = false;
+    private boolean started = false;
+    private boolean finished = false;
+    private EventBatch partial = null;
+
+    IncrementalGenMsg() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool - The line buffer is taken from this pool and is returned to it on close.
+     */
+    IncrementalGenMsg(BufferPool bufferPool) {
+        super(bufferPool);
+    }
+
+    /**
+     * Add the next bytes of the stream.
+     */
+    void append(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        if (end + length > data.length) {
+            int remaining = end - pos;
+            byte[] newData = remaining + length > data.length
+                    ? new byte[Math.max(data.length * 2, remaining + length)]
+                    : data;
+            System.arraycopy(data, pos, newData, 0, remaining);
+            data = newData;
+            dropped += pos;
+            noNewlineBefore = Math.max(0, noNewlineBefore - pos);
+            pos = 0;
+            end = remaining;
+        }
+        bytes.get(data, end, length);
+        end += length;
+    }
+
+    /**
+     * All the bytes of the stream have been appended.
+     */
+    void complete() {
+        this.complete = true;
+    }
+
+    private int indexOfNewline(int from) {
+        int i = ByteScanner.indexOf(data, from == pos ? Math.max(from, noNewlineBefore) : from, end, NEWLINE_CHAR);
+        if (i < end) {
+            return i;
+        }
+        if (from == pos) {
+            noNewlineBefore = end;
+        }
+        return -1;
+    }
+
+    /**
+     * Do we have all the lines for the next event from <code>from</code>; an event can be preceded by any number of empty lines and PayloadInfo's.
+     */
+    private boolean haveNextEvent(int from) {
+        int lineStart = from;
+        while (true) {
+            int lineEnd = indexOfNewline(lineStart);
+            if (lineEnd < 0) {
+                return complete;
+            }
+            if (lineEnd != lineStart) {
+                return true;
+            }
+            // An empty line is followed by a PayloadInfo
+            int infoEnd = indexOfNewline(lineEnd + 1);
+            if (infoEnd < 0) {
+                return complete;
+            }
+            if (infoEnd == lineEnd + 1) {
+                // Two empty lines; this is treated as the end of the stream
+                return true;
+            }
+            lineStart = infoEnd + 1;
+        }
+    }
+
+    @Override
+    boolean readLine() throws IOException {
+        int lineEnd = indexOfNewline(pos);
+        boolean haveNewline = lineEnd >= 0;
+        if (!haveNewline) {
+            lineEnd = end;
+        }
+        buf.clear();
+        if (buf.capacity() < lineEnd - pos) {
+            growLineBuffer(lineEnd - pos);
+        }
+        int runStart = pos;
+        int i;
+        while ((i = ByteScanner.indexOf(data, runStart, lineEnd, ESCAPE_CHAR)) < lineEnd) {
+            buf.put(data, runStart, i - runStart);
+            if (i + 1 >= lineEnd) {
+                throw new IOException("Escape character terminated early");
+            }
+            switch (data[i + 1]) {
+                case ESCAPE_ESCAPE_CHAR -> buf.put(ESCAPE_CHAR);
+                case NEWLINE_ESCAPE_CHAR -> buf.put(NEWLINE_CHAR);
+                case CARRIAGERETURN_ESCAPE_CHAR -> buf.put(CARRIAGERETURN_CHAR);
+                default -> buf.put(data[i + 1]);
+            }
+            runStart = i + 2;
+        }
+        buf.put(data, runStart, lineEnd - runStart);
+        buf.flip();
+        line = buf;
+        pos = haveNewline ? lineEnd + 1 : lineEnd;
+        currentLine++;
+        return haveNewline;
+    }
+
+    @Override
+    long offset() {
+        return dropped + pos;
+    }
+
+    @Override
+    String describePosition() {
+        return "line " + currentLine;
+    }
+
+    /**
+     * Decode the events that we have all the bytes for.
+     * Batches never span chunks; batches are returned when they are full, at the end of a chunk and at the end of the stream.
+     * @param batchSize - The capacity of the batches
+     * @return The next batch or null if we need more bytes or if we are finished.
+     * @throws IOException
+     */
+    EventBatch decodeBatch(int batchSize) throws IOException {
+        if (!started) {
+            int headerEnd = indexOfNewline(pos);
+            if (complete && pos == end) {
+                // An empty response
+                finished = true;
+                return null;
+            }
+            if (!complete && (headerEnd < 0 || !haveNextEvent(headerEnd + 1))) {
+                return null;
+            }
+            readHeader();
+            started = true;
+            partial = new EventBatch(batchSize);
+            partial.reset(info);
+            if (nextMsg != null) {
+                partial.add(nextMsg);
+                nextMsg = null;
+            }
+        }
+        while (!partial.isFull() && !finished && (pendingLine || haveNextEvent(pos))) {
+            if (!nextEventLine()) {
+                finished = true;
+                break;
+            }
+            if (info != partial.getPayloadInfo()) {
+                if (!partial.isEmpty()) {
+                    // Batches do not span chunks; we'll decode this line in the next batch.
+                    pendingLine = true;
+                    return takePartial();
+                }
+                partial.reset(info);
+            }
+            decodeLineInto(partial);
+        }
+        if (partial.isFull() || (finished && !partial.isEmpty())) {
+            return takePartial();
+        }
+        return null;
+    }
+
+    private EventBatch takePartial() {
+        EventBatch ret = partial;
+        partial = new EventBatch(ret.capacity());
+        partial.reset(info);
+        return ret;
+    }
+
+    /**
+     * @return true if all the events have been returned by decodeBatch.
+     */
+    boolean isFinished() {
+        return finished && (partial == null || partial.isEmpty());
+    }
+
+    /**
+     * @return true if the bytes that have been received have an event that decodeBatch has not returned yet; or the end of the stream.
+     */
+    boolean hasPendingEvent() {
+        if (pendingLine || nextMsg != null || (partial != null && !partial.isEmpty())) {
+            return true;
+        }
+        if (started) {
+            return haveNextEvent(pos);
+        }
+        int headerEnd = indexOfNewline(pos);
+        return headerEnd >= 0 && haveNextEvent(headerEnd + 1);
+    }
+
+    /**
+     * Unlike isFinished, this does not need a call to decodeBatch; so the end of the stream can be detected when there is no demand for another batch.
+     * @return true if the stream is complete and there are no more events to return; the remaining lines, if any, are empty lines and PayloadInfo's.
+     */
+    boolean isExhausted() {
+        if (isFinished()) {
+            return true;
+        }
+        if (!complete || pendingLine || nextMsg != null || (partial != null && !partial.isEmpty())) {
+            return false;
+        }
+        int lineStart = pos;
+        if (!started) {
+            // The first line is the PayloadInfo
+            int headerEnd = indexOfNewline(lineStart);
+            if (headerEnd < 0) {
+                return true;
+            }
+            lineStart = headerEnd + 1;
+        }
+        while (lineStart < end) {
+            int lineEnd = indexOfNewline(lineStart);
+            if (lineEnd != lineStart) {
+                // An event; this includes the last line of the stream without a newline
+                return false;
+            }
+            // An empty line is followed by a PayloadInfo; two empty lines are treated as the end of the stream
+            int infoEnd = indexOfNewline(lineEnd + 1);
+            if (infoEnd < 0 || infoEnd == lineEnd + 1) {
+                return true;
+            }
+            lineStart = infoEnd + 1;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        endChunk();
+        if (data != null) {
+            releaseLineBuffer();
+        }
+        data = null;
+    }
+}
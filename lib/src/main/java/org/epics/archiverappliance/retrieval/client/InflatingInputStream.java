@@ -0,0 +1,242 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Inflate a gzip or deflate encoded HTTP response body as it is read; this sits in front of the line reader.
+ * Inflaters hold native memory and are expensive to create; so they are borrowed from a small pool and returned on close.
+ * gzip members are parsed here (instead of using GZIPInputStream) so that we can use a pooled Inflater; concatenated members are supported.
+ * The deflate encoding is the zlib format; some servers send raw deflate instead, so we check the zlib header.
+ * @author mshankar
+ *
+ */
+final class InflatingInputStream extends InflaterInputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 16;
+    private static final BlockingQueue<Inflater> rawInflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> zlibInflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final boolean gzip;
+    private final BlockingQueue<Inflater> pool;
+    private final CRC32 crc;
+    // Bytes in buf that the inflater did not consume at the end of a gzip member
+    private int pendingPos = 0;
+    private int pendingEnd = 0;
+    private boolean eos = false;
+    private boolean released = false;
+
+    private InflatingInputStream(InputStream is, boolean gzip, boolean nowrap) {
+        super(is, borrow(nowrap), BUFFER_SIZE);
+        this.gzip = gzip;
+        this.pool = nowrap ? rawInflaters : zlibInflaters;
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    private static Inflater borrow(boolean nowrap) {
+        Inflater inflater = (nowrap ? rawInflaters : zlibInflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    /**
+     * @return The number of idle Inflaters in the pool; for testing.
+     */
+    static int pooledInflaters(boolean nowrap) {
+        return (nowrap ? rawInflaters : zlibInflaters).size();
+    }
+
+    /**
+     * Wrap a response body based on its Content-Encoding.
+     * @param is - The response body
+     * @param contentEncoding - The value of the Content-Encoding header; null if there was none.
+     * @return A stream of the decoded bytes.
+     * @throws IOException - If the encoding is not supported or the stream does not start with a valid header.
+     */
+    static InputStream wrap(InputStream is, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return is;
+        }
+        InflatingInputStream ret;
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "", "identity" -> {
+                return is;
+            }
+            case "gzip", "x-gzip" -> ret = new InflatingInputStream(is, true, true);
+            case "deflate" -> {
+                int b0 = is.read();
+                int b1 = b0 >= 0 ? is.read() : -1;
+                boolean zlib = b1 >= 0 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+                ret = new InflatingInputStream(is, false, !zlib);
+                ret.start(b0, b1);
+                return ret;
+            }
+            default -> throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+        try {
+            ret.eos = !ret.readGzipHeader();
+        } catch (IOException ex) {
+            ret.close();
+            throw ex;
+        }
+        return ret;
+    }
+
+    /**
+     * Give the bytes that were read to detect the zlib header to the inflater.
+     */
+    private void start(int b0, int b1) {
+        if (b0 < 0) {
+            eos = true;
+            return;
+        }
+        buf[0] = (byte) b0;
+        len = 1;
+        if (b1 >= 0) {
+            buf[1] = (byte) b1;
+            len = 2;
+        }
+        inf.setInput(buf, 0, len);
+    }
+
+    private int readRawByte() throws IOException {
+        if (pendingPos < pendingEnd) {
+            return buf[pendingPos++] & 0xFF;
+        }
+        return in.read();
+    }
+
+    private int readRawByteOrThrow() throws IOException {
+        int b = readRawByte();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of GZIP stream");
+        }
+        return b;
+    }
+
+    private long readUInt() throws IOException {
+        long ret = 0;
+        for (int i = 0; i < 4; i++) {
+            ret |= ((long) readRawByteOrThrow()) << (8 * i);
+        }
+        return ret;
+    }
+
+    private void skipZeroTerminated() throws IOException {
+        while (readRawByteOrThrow() != 0) {
+            // Skip the file name or comment
+        }
+    }
+
+    /**
+     * @return false if the stream ends before the header; that is, there are no more members.
+     */
+    private boolean readGzipHeader() throws IOException {
+        int magic0 = readRawByte();
+        if (magic0 < 0) {
+            return false;
+        }
+        if (magic0 != 0x1F || readRawByteOrThrow() != 0x8B) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readRawByteOrThrow() != 8) {
+            throw new ZipException("Unsupported GZIP compression method");
+        }
+        int flags = readRawByteOrThrow();
+        // Modification time, extra flags and OS
+        for (int i = 0; i < 6; i++) {
+            readRawByteOrThrow();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int extraLength = readRawByteOrThrow() | (readRawByteOrThrow() << 8);
+            for (int i = 0; i < extraLength; i++) {
+                readRawByteOrThrow();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FCOMMENT) != 0) {
+            skipZeroTerminated();
+        }
+        if ((flags & FHCRC) != 0) {
+            readRawByteOrThrow();
+            readRawByteOrThrow();
+        }
+        return true;
+    }
+
+    /**
+     * Check the trailer of the current gzip member and start the next member, if any.
+     * @return true at the end of the stream.
+     */
+    private boolean readGzipTrailer() throws IOException {
+        pendingPos = len - inf.getRemaining();
+        pendingEnd = len;
+        long expectedCrc = readUInt();
+        long expectedSize = readUInt();
+        if (expectedCrc != crc.getValue() || expectedSize != (inf.getBytesWritten() & 0xFFFFFFFFL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        if (!readGzipHeader()) {
+            return true;
+        }
+        inf.reset();
+        crc.reset();
+        if (pendingPos < pendingEnd) {
+            inf.setInput(buf, pendingPos, pendingEnd - pendingPos);
+        }
+        pendingPos = 0;
+        pendingEnd = 0;
+        return false;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (!eos) {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                if (gzip) {
+                    crc.update(b, off, n);
+                }
+                return n;
+            }
+            if (n == 0) {
+                return 0;
+            }
+            eos = !gzip || readGzipTrailer();
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eos ? 0 : super.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!released) {
+                released = true;
+                inf.reset();
+                if (!pool.offer(inf)) {
+                    inf.end();
+                }
+            }
+        }
+    }
+}
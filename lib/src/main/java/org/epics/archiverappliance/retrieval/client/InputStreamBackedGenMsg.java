@@ -1,170 +1,173 @@
 package org.epics.archiverappliance.retrieval.client;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarByte;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarEnum;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarFloat;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarInt;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarShort;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarString;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.V4GenericBytes;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorEnum;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorFloat;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorInt;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorShort;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorString;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
-import java.util.NoSuchElementException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Generate a sequence of GeneratedMessage given an input stream...
  * @author mshankar
  *
  */
-public class InputStreamBackedGenMsg implements GenMsgIterator {
-    private static final Logger logger = Logger.getLogger(InputStreamBackedGenMsg.class.getName());
+public class InputStreamBackedGenMsg extends LineFramedGenMsg {
+    static final int READ_BUFFER_SIZE = 256 * 1024;
     private InputStream is;
-    private final byte[] isBuf = new byte[256 * 1024];
+    private final byte[] isBuf;
+    // A view into isBuf; lines that have no escape characters are parsed directly from here.
+    private final ByteBuffer isBufView;
     private int currentReadPointer = 0;
     private int bytesRead = -1;
     private long filePos = 0;
-    PayloadInfo info;
-    InfoChangeHandler infoChangeHandler = null;
-    // The size of the ByteBuffer here is related to the MAX_LINE sizes in LineByteStream...
-    ByteBuffer buf = ByteBuffer.allocate(16 * 1024 * 1024);
-    EpicsMessage nextMsg = null;
-    int currentLine = 0;
+    // The JFR event for a line that spans reads of the input stream; this is started by the first read within the line.
+    private LargeLineEvent largeLineEvent = null;
+    private int largeLineReads = 0;
 
     public InputStreamBackedGenMsg(InputStream is) throws IOException {
-        this.is = is;
-        readAndUnescapeLine(buf);
-        info = PayloadInfo.parseFrom(ByteString.copyFrom(buf));
-        if (this.infoChangeHandler != null) this.infoChangeHandler.handleInfoChange(info);
-        readLineAndParseNextMessage();
+        this(is, RetrievalMetrics.NONE);
     }
 
-    @Override
-    public PayloadInfo getPayLoadInfo() {
-        return info;
+    /**
+     * @param is - The PB/HTTP response or file
+     * @param metrics - The bytes read, lines framed, escape sequences, chunks, parse time and parse failures are reported to this.
+     * @throws IOException
+     */
+    public InputStreamBackedGenMsg(InputStream is, RetrievalMetrics metrics) throws IOException {
+        this(is, metrics, BufferPool.getDefault());
     }
 
-    @Override
-    public Iterator<EpicsMessage> iterator() {
-        return new Iterator<>() {
-
-            @Override
-            public boolean hasNext() {
-                return nextMsg != null;
-            }
-
-            @Override
-            public EpicsMessage next() {
-                try {
-                    if (nextMsg == null) {
-                        throw new NoSuchElementException("End of file");
-                    }
-                    EpicsMessage ret = nextMsg;
-                    readLineAndParseNextMessage();
-                    return ret;
-                } catch (IOException ex) {
-                    throw new RuntimeIOException("Exception near line " + currentLine, ex);
-                }
-            }
-
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
-            }
-        };
+    /**
+     * @param is - The PB/HTTP response or file
+     * @param metrics - The bytes read, lines framed, escape sequences, chunks, parse time and parse failures are reported to this.
+     * @param bufferPool - The read and line buffers are taken from this pool and are returned to it on close.
+     * @throws IOException
+     */
+    public InputStreamBackedGenMsg(InputStream is, RetrievalMetrics metrics, BufferPool bufferPool)
+            throws IOException {
+        super(bufferPool);
+        this.is = is;
+        this.isBufView = bufferPool.acquireHeap(READ_BUFFER_SIZE);
+        this.isBuf = isBufView.array();
+        setMetrics(metrics);
+        readHeader();
     }
 
     /**
      * Calls to InputStream read are replaced with calls to this method instead
      */
     private void fetchData() throws IOException {
+        if (largeLineEvent == null) {
+            largeLineEvent = new LargeLineEvent();
+            largeLineEvent.begin();
+        }
+        largeLineReads++;
         currentReadPointer = 0;
-        filePos += bytesRead;
+        if (bytesRead > 0) filePos += bytesRead;
         bytesRead = is.read(isBuf);
+        if (bytesRead > 0) unreportedBytes += bytesRead;
     }
 
     /**
-     * Read a line into buf. Return true if we are exiting because of a newline; else return false.
-     * @param buf
+     * Read the next line into <code>line</code>. Return true if we are exiting because of a newline; else return false.
+     * Most lines have no escape characters and are completely contained in isBuf; these are returned as a view into isBuf with no copying.
+     * Lines that have escape characters or that span a fetchData are unescaped into buf.
      * @return
      * @throws IOException
      */
-    private boolean readAndUnescapeLine(ByteBuffer buf) throws IOException {
-        buf.clear();
-        byte next = -1;
-        boolean hasNext = true;
-        // This is equivalent to an is.read()
-        if (currentReadPointer < bytesRead) {
-            next = isBuf[currentReadPointer++];
-        } else {
-            fetchData();
-            if (currentReadPointer < bytesRead) {
-                next = isBuf[currentReadPointer++];
-            } else {
-                hasNext = false;
+    @Override
+    boolean readLine() throws IOException {
+        int start = currentReadPointer;
+        int i = start;
+        if (start < bytesRead) {
+            i = ByteScanner.indexOfNewlineOrEscape(isBuf, start, bytesRead);
+            if (i < bytesRead && isBuf[i] == NEWLINE_CHAR) {
+                currentReadPointer = i + 1;
+                isBufView.limit(i).position(start);
+                line = isBufView;
+                currentLine++;
+                return true;
             }
         }
-        // End of is.read()
+        // Copy what we have scanned so far in bulk and fall back to unescaping the rest of the line.
+        buf.clear();
+        putLineBytes(start, i - start);
+        currentReadPointer = i;
+        long escapesBefore = unreportedEscapes;
+        boolean haveNewline = readAndUnescapeLine();
+        line = buf;
+        if (largeLineEvent != null) {
+            endLargeLine(unreportedEscapes - escapesBefore);
+        }
+        return haveNewline;
+    }
 
-        while (hasNext) {
-            byte b = next;
-            if (b == ESCAPE_CHAR) {
-                // This is equivalent to an is.read()
-                if (currentReadPointer < bytesRead) {
-                    next = isBuf[currentReadPointer++];
-                } else {
-                    fetchData();
-                    if (currentReadPointer < bytesRead) {
-                        next = isBuf[currentReadPointer++];
-                    } else {
-                        hasNext = false;
-                    }
-                }
-                // End of is.read()
-                if (!hasNext) {
-                    throw new IOException("Escape character terminated early");
-                }
-                b = next;
-                switch (b) {
-                    case ESCAPE_ESCAPE_CHAR -> buf.put(ESCAPE_CHAR);
-                    case NEWLINE_ESCAPE_CHAR -> buf.put(NEWLINE_CHAR);
-                    case CARRIAGERETURN_ESCAPE_CHAR -> buf.put(CARRIAGERETURN_CHAR);
-                    default -> buf.put(b);
+    /**
+     * Append length bytes of isBuf to buf; buf grows if these do not fit.
+     */
+    private void putLineBytes(int offset, int length) {
+        if (buf.remaining() < length) {
+            growLineBuffer(buf.position() + length);
+        }
+        buf.put(isBuf, offset, length);
+    }
+
+    private void endLargeLine(long escapeSequences) {
+        largeLineEvent.end();
+        if (buf.remaining() >= LargeLineEvent.MIN_SIZE && largeLineEvent.shouldCommit()) {
+            largeLineEvent.pvName = info != null ? info.getPvname() : null;
+            largeLineEvent.size = buf.remaining();
+            largeLineEvent.escapeSequences = escapeSequences;
+            largeLineEvent.reads = largeLineReads;
+            largeLineEvent.commit();
+        }
+        largeLineEvent = null;
+        largeLineReads = 0;
+    }
+
+    /**
+     * Unescape the rest of the line into buf; buf grows if the line does not fit. Return true if we are exiting because of a newline; else return false.
+     * The runs of bytes between escape characters are found using a ByteScanner and are copied in bulk.
+     * @return
+     * @throws IOException
+     */
+    private boolean readAndUnescapeLine() throws IOException {
+        while (true) {
+            if (currentReadPointer >= bytesRead) {
+                fetchData();
+                if (currentReadPointer >= bytesRead) {
+                    break;
                 }
-            } else if (b == NEWLINE_CHAR) {
+            }
+            int start = currentReadPointer;
+            int i = ByteScanner.indexOfNewlineOrEscape(isBuf, start, bytesRead);
+            putLineBytes(start, i - start);
+            currentReadPointer = i;
+            if (i == bytesRead) {
+                continue;
+            }
+            currentReadPointer++;
+            if (isBuf[i] == NEWLINE_CHAR) {
                 buf.flip();
                 currentLine++;
                 return true;
-            } else {
-                buf.put(b);
             }
-
-            // This is equivalent to an is.read()
-            if (currentReadPointer < bytesRead) {
-                next = isBuf[currentReadPointer++];
-            } else {
+            // An escape character; the next byte may be in the next read.
+            if (currentReadPointer >= bytesRead) {
                 fetchData();
-                if (currentReadPointer < bytesRead) {
-                    next = isBuf[currentReadPointer++];
-                } else {
-                    hasNext = false;
+                if (currentReadPointer >= bytesRead) {
+                    throw new IOException("Escape character terminated early");
                 }
             }
-            // End of is.read()
+            byte b = isBuf[currentReadPointer++];
+            unreportedEscapes++;
+            if (!buf.hasRemaining()) {
+                growLineBuffer(buf.capacity() + 1);
+            }
+            switch (b) {
+                case ESCAPE_ESCAPE_CHAR -> buf.put(ESCAPE_CHAR);
+                case NEWLINE_ESCAPE_CHAR -> buf.put(NEWLINE_CHAR);
+                case CARRIAGERETURN_ESCAPE_CHAR -> buf.put(CARRIAGERETURN_CHAR);
+                default -> buf.put(b);
+            }
         }
 
         buf.flip();
@@ -172,132 +175,27 @@ public class InputStreamBackedGenMsg implements GenMsgIterator {
         return false;
     }
 
-    private static final byte ESCAPE_CHAR = 0x1B;
-    private static final byte ESCAPE_ESCAPE_CHAR = 0x01;
-    private static final byte NEWLINE_CHAR = 0x0A;
-    private static final byte NEWLINE_ESCAPE_CHAR = 0x02;
-    private static final byte CARRIAGERETURN_CHAR = 0x0D;
-    private static final byte CARRIAGERETURN_ESCAPE_CHAR = 0x03;
-
-    private boolean loopInfoLine() throws IOException {
-        int loopCount = 0;
-        boolean haveNewline = readAndUnescapeLine(buf);
-        while (loopCount++ < 1000) {
-            if (!haveNewline && !buf.hasRemaining()) {
-                // This is the end of the stream
-                return false;
-            } else if (haveNewline && !buf.hasRemaining()) {
-                // We encountered an empty line. We expect a header next and data after that
-                readAndUnescapeLine(buf);
-                if (!buf.hasRemaining()) {
-                    // We encountered an empty line and there was not enough info for a payload.
-                    // We treat this as the end of the stream
-                    return false;
-                }
-                info = PayloadInfo.parseFrom(ByteString.copyFrom(buf));
-                if (this.infoChangeHandler != null) this.infoChangeHandler.handleInfoChange(info);
-                haveNewline = readAndUnescapeLine(buf);
-            } else {
-                // Regardless of whether the line ended in a newline or not, we have data in buf
-                return true;
-            }
-        }
-        throw new IOException("We are unable to determine next event in " + loopCount + " loops");
+    @Override
+    long offset() {
+        return filePos + currentReadPointer;
     }
 
-    private void readLineAndParseNextMessage() throws IOException {
-        while (true) {
-            boolean processNextMsg = loopInfoLine();
-            if (!processNextMsg) {
-                nextMsg = null;
-                return;
-            }
-
-            ByteString byteString = ByteString.copyFrom(buf);
-            try {
-                switch (info.getType()) {
-                    case SCALAR_BYTE -> {
-                        nextMsg = new EpicsMessage(ScalarByte.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_DOUBLE -> {
-                        nextMsg = new EpicsMessage(ScalarDouble.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_ENUM -> {
-                        nextMsg = new EpicsMessage(ScalarEnum.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_FLOAT -> {
-                        nextMsg = new EpicsMessage(ScalarFloat.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_INT -> {
-                        nextMsg = new EpicsMessage(ScalarInt.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_SHORT -> {
-                        nextMsg = new EpicsMessage(ScalarShort.parseFrom(byteString), info);
-                        return;
-                    }
-                    case SCALAR_STRING -> {
-                        nextMsg = new EpicsMessage(ScalarString.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_BYTE -> {
-                        nextMsg = new EpicsMessage(VectorChar.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_DOUBLE -> {
-                        nextMsg = new EpicsMessage(VectorDouble.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_ENUM -> {
-                        nextMsg = new EpicsMessage(VectorEnum.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_FLOAT -> {
-                        nextMsg = new EpicsMessage(VectorFloat.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_INT -> {
-                        nextMsg = new EpicsMessage(VectorInt.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_SHORT -> {
-                        nextMsg = new EpicsMessage(VectorShort.parseFrom(byteString), info);
-                        return;
-                    }
-                    case WAVEFORM_STRING -> {
-                        nextMsg = new EpicsMessage(VectorString.parseFrom(byteString), info);
-                        return;
-                    }
-                    case V4_GENERIC_BYTES -> {
-                        nextMsg = new EpicsMessage(V4GenericBytes.parseFrom(byteString), info);
-                        return;
-                    }
-                    default -> throw new IOException("Unknown type " + info.getType());
-                }
-            } catch (InvalidProtocolBufferException ex) {
-                logger.log(
-                        Level.WARNING,
-                        "Exception processing bytestring of size " + byteString.size() + " at position "
-                                + currentReadPointer + " with bytesRead " + bytesRead + " and filePos " + filePos,
-                        ex);
-            }
-        }
+    @Override
+    String describePosition() {
+        return "position " + currentReadPointer + " with bytesRead " + bytesRead + " and filePos " + filePos;
     }
 
     @Override
     public void close() throws IOException {
         if (is != null) {
+            endChunk();
+            reportMetrics();
             is.close();
             is = null;
+            currentReadPointer = 0;
+            bytesRead = 0;
+            bufferPool.release(isBufView);
+            releaseLineBuffer();
         }
     }
-
-    @Override
-    public void onInfoChange(InfoChangeHandler handler) {
-        this.infoChangeHandler = handler;
-    }
 }
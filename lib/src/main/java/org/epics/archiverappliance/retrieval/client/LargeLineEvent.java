@@ -0,0 +1,39 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event for a line that is too large to be framed within one read of the input stream; for example, a large waveform.
+ * These lines are unescaped into the line buffer as they are read; the duration includes the time spent waiting for the network.
+ * @author mshankar
+ *
+ */
+@Name(LargeLineEvent.NAME)
+@Label("Large Line Unescape")
+@Category({"EPICS Archiver Appliance", "Retrieval Client"})
+@Description("A line that spans several reads of the input stream")
+final class LargeLineEvent extends Event {
+    static final String NAME = "org.epics.archiverappliance.retrieval.client.LargeLine";
+    // Smaller lines that happen to span a read are not interesting.
+    static final int MIN_SIZE = 64 * 1024;
+
+    @Label("PV Name")
+    String pvName;
+
+    @Label("Size")
+    @Description("The size of the line after unescaping it")
+    @DataAmount
+    long size;
+
+    @Label("Escape Sequences")
+    long escapeSequences;
+
+    @Label("Reads")
+    @Description("The number of reads of the input stream while framing this line")
+    int reads;
+}
@@ -0,0 +1,112 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open a GenMsgIterator on first use; for example, so that the PayloadInfo of a response is read by the caller that iterates over it and not by the thread that received the response headers.
+ * The source is opened by the first call to getPayLoadInfo, hasNext or nextBatch; if it is closed before then, the source is discarded instead.
+ * A source that returns null is treated as an empty stream.
+ * @author mshankar
+ *
+ */
+final class LazyGenMsg implements GenMsgIterator {
+    private final ConcatenatedGenMsg.Source source;
+    private GenMsgIterator strm = null;
+    private Iterator<EpicsMessage> strmIt = null;
+    private boolean opened = false;
+    private boolean closed = false;
+    private InfoChangeHandler infoChangeHandler = null;
+
+    LazyGenMsg(ConcatenatedGenMsg.Source source) {
+        this.source = source;
+    }
+
+    /**
+     * @return false if the source has no data
+     */
+    private boolean open() throws IOException {
+        if (!opened) {
+            if (closed) {
+                throw new IOException("The stream has been closed");
+            }
+            opened = true;
+            strm = source.open();
+            if (strm != null) {
+                strmIt = strm.iterator();
+                if (infoChangeHandler != null) {
+                    strm.onInfoChange(infoChangeHandler);
+                }
+            }
+        }
+        return strm != null;
+    }
+
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        try {
+            return open() ? strm.getPayLoadInfo() : null;
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Exception opening the stream", ex);
+        }
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+        if (strm != null) {
+            strm.onInfoChange(handler);
+        }
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return open() && strmIt.hasNext();
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception opening the stream", ex);
+                }
+            }
+
+            @Override
+            public EpicsMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of file");
+                }
+                return strmIt.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        if (!open()) {
+            batch.reset(null);
+            return 0;
+        }
+        return strm.nextBatch(batch);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!opened) {
+            source.discard();
+        } else if (strm != null) {
+            strm.close();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event for each time the buffer that lines are unescaped into is replaced with a larger one.
+ * @author mshankar
+ *
+ */
+@Name(LineBufferGrowthEvent.NAME)
+@Label("Line Buffer Growth")
+@Category({"EPICS Archiver Appliance", "Retrieval Client"})
+@Description("The line buffer was too small for a line and was replaced with a larger one")
+final class LineBufferGrowthEvent extends Event {
+    static final String NAME = "org.epics.archiverappliance.retrieval.client.LineBufferGrowth";
+
+    @Label("Previous Size")
+    @DataAmount
+    long previousSize;
+
+    @Label("New Size")
+    @DataAmount
+    long newSize;
+}
@@ -0,0 +1,521 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarByte;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarEnum;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarFloat;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarShort;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarString;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.V4GenericBytes;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorEnum;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorFloat;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorShort;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorString;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The chunk and event handling that is common to all sources of the PB/HTTP wire format.
+ * The wire format is a sequence of escaped lines; a chunk starts with a PayloadInfo line followed by a line per event.
+ * Chunks are separated by an empty line.
+ * Subclasses frame the lines from their source in readLine; this class parses the lines into events.
+ * @author mshankar
+ *
+ */
+abstract class LineFramedGenMsg implements GenMsgIterator {
+    private static final Logger logger = Logger.getLogger(LineFramedGenMsg.class.getName());
+    PayloadInfo info;
+    InfoChangeHandler infoChangeHandler = null;
+    // Most lines are small; buf is doubled when a line does not fit.
+    static final int INITIAL_LINE_BUFFER_SIZE = 64 * 1024;
+    final BufferPool bufferPool;
+    // Lines that have escape characters are unescaped into this buffer; this is returned to the pool on close.
+    ByteBuffer buf;
+    // The current line; this is either a view into the source or buf and is valid only till the next call to readLine.
+    ByteBuffer line = null;
+    // The offset in the source of the start of line
+    long lineStart = 0;
+    EpicsMessage nextMsg = null;
+    // A batch stopped at a chunk boundary; the first event of the new chunk is in line and has not been decoded yet.
+    boolean pendingLine = false;
+    boolean endOfStream = false;
+    int currentLine = 0;
+    final EventDecoder eventDecoder = new EventDecoder();
+    RetrievalMetrics metrics = RetrievalMetrics.NONE;
+    // The parse time is measured only if someone is listening; this is two calls to System.nanoTime per event or batch.
+    boolean timeParsing = false;
+    // The numbers that have not been reported to metrics yet; subclasses add the bytes and escape sequences.
+    long unreportedLines = 0;
+    long unreportedEscapes = 0;
+    long unreportedBytes = 0;
+    long unreportedEvents = 0;
+    long unreportedParseNanos = 0;
+    // Report the numbers at least this often so that long chunks show progress.
+    static final int METRICS_REPORT_LINES = 4096;
+    // The JFR event for the current chunk and the event lines framed in it so far
+    private ChunkDecodeEvent chunkEvent = null;
+    private long chunkEventLines = 0;
+    private long chunkBytes = 0;
+
+    static final byte ESCAPE_CHAR = 0x1B;
+    static final byte ESCAPE_ESCAPE_CHAR = 0x01;
+    static final byte NEWLINE_CHAR = 0x0A;
+    static final byte NEWLINE_ESCAPE_CHAR = 0x02;
+    static final byte CARRIAGERETURN_CHAR = 0x0D;
+    static final byte CARRIAGERETURN_ESCAPE_CHAR = 0x03;
+
+    LineFramedGenMsg() {
+        this(BufferPool.getDefault());
+    }
+
+    /**
+     * @param bufferPool - buf is taken from this pool and is returned to it on close.
+     */
+    LineFramedGenMsg(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.buf = bufferPool.acquire(INITIAL_LINE_BUFFER_SIZE);
+    }
+
+    /**
+     * Read the next line into <code>line</code>. Return true if we are exiting because of a newline; else return false.
+     * Lines that have no escape characters may be returned as a view into the source; other lines are unescaped into buf.
+     * @return
+     * @throws IOException
+     */
+    abstract boolean readLine() throws IOException;
+
+    /**
+     * @return A description of the current position in the source for log messages
+     */
+    abstract String describePosition();
+
+    /**
+     * @return The offset in the source of the start of the next line
+     */
+    abstract long offset();
+
+    /**
+     * Subclasses call this before readHeader to report the numbers from decoding to this listener.
+     */
+    void setMetrics(RetrievalMetrics metrics) {
+        this.metrics = metrics;
+        this.timeParsing = metrics != RetrievalMetrics.NONE;
+    }
+
+    /**
+     * Subclasses call this at the end of their constructor to read the first PayloadInfo and the first event.
+     * @throws IOException
+     */
+    void readHeader() throws IOException {
+        frameLine();
+        info = PayloadInfo.parseFrom(line);
+        chunkStarted();
+        readLineAndParseNextMessage();
+    }
+
+    /**
+     * info has the PayloadInfo of a new chunk.
+     */
+    private void chunkStarted() {
+        endChunk();
+        reportMetrics();
+        metrics.onChunk(info);
+        chunkEvent = new ChunkDecodeEvent();
+        chunkEvent.begin();
+        if (this.infoChangeHandler != null) this.infoChangeHandler.handleInfoChange(info);
+    }
+
+    /**
+     * Commit the JFR event for the current chunk; this is called at the end of the stream and on close as well.
+     */
+    void endChunk() {
+        if (chunkEvent == null) {
+            return;
+        }
+        chunkEvent.end();
+        if (chunkEvent.shouldCommit()) {
+            chunkEvent.pvName = info.getPvname();
+            chunkEvent.year = info.getYear();
+            chunkEvent.type = info.getType().name();
+            chunkEvent.events = chunkEventLines;
+            chunkEvent.bytes = chunkBytes;
+            chunkEvent.commit();
+        }
+        chunkEvent = null;
+        chunkEventLines = 0;
+        chunkBytes = 0;
+    }
+
+    /**
+     * Replace buf with a larger buffer from the pool that can hold at least this many bytes; this is recorded as a JFR event.
+     * The bytes before the position of buf are copied; the position is the same.
+     */
+    void growLineBuffer(int minCapacity) {
+        LineBufferGrowthEvent event = new LineBufferGrowthEvent();
+        event.begin();
+        ByteBuffer previous = buf;
+        int previousSize = previous.capacity();
+        if (previousSize >= Integer.MAX_VALUE - 8) {
+            // Lines longer than 2GB are not supported
+            throw new BufferOverflowException();
+        }
+        buf = bufferPool.acquire((int) Math.min(Integer.MAX_VALUE - 8, Math.max(previousSize * 2L, minCapacity)));
+        buf.put(previous.flip());
+        bufferPool.release(previous);
+        event.end();
+        if (event.shouldCommit()) {
+            event.previousSize = previousSize;
+            event.newSize = buf.capacity();
+            event.commit();
+        }
+    }
+
+    /**
+     * readLine and count the line.
+     */
+    private boolean frameLine() throws IOException {
+        lineStart = offset();
+        boolean haveNewline = readLine();
+        if (++unreportedLines >= METRICS_REPORT_LINES) {
+            reportMetrics();
+        }
+        return haveNewline;
+    }
+
+    /**
+     * Report the numbers accumulated since the last call to metrics.
+     */
+    void reportMetrics() {
+        if (unreportedBytes > 0) metrics.onBytesRead(unreportedBytes);
+        if (unreportedLines > 0) metrics.onLinesFramed(unreportedLines);
+        if (unreportedEscapes > 0) metrics.onEscapeSequences(unreportedEscapes);
+        if (unreportedEvents > 0) metrics.onParse(unreportedEvents, unreportedParseNanos);
+        unreportedBytes = 0;
+        unreportedLines = 0;
+        unreportedEscapes = 0;
+        unreportedEvents = 0;
+        unreportedParseNanos = 0;
+    }
+
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        return info;
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    if (nextMsg == null && !endOfStream) {
+                        // A call to nextBatch may have consumed the event that we read ahead.
+                        readLineAndParseNextMessage();
+                    }
+                    return nextMsg != null;
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception near line " + currentLine, ex);
+                }
+            }
+
+            @Override
+            public EpicsMessage next() {
+                try {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException("End of file");
+                    }
+                    EpicsMessage ret = nextMsg;
+                    readLineAndParseNextMessage();
+                    return ret;
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception near line " + currentLine, ex);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Start over with the first chunk; sources that can reposition themselves call this after reading the first PayloadInfo again.
+     * @param firstInfo - The PayloadInfo of the first chunk
+     */
+    void restart(PayloadInfo firstInfo) {
+        nextMsg = null;
+        pendingLine = false;
+        endOfStream = false;
+        currentLine = 1;
+        boolean infoChanged = !firstInfo.equals(info);
+        info = firstInfo;
+        if (infoChanged && this.infoChangeHandler != null) this.infoChangeHandler.handleInfoChange(info);
+    }
+
+    /**
+     * Skip the events before the given time; the next event from the iterator or nextBatch is the first event at or after this time.
+     * Events are in time order; so we decode just the time of each line till we get there.
+     * @param epochSeconds - Seconds since the Java epoch
+     * @param nanos - Nanoseconds within the second
+     * @throws IOException
+     */
+    void skipTo(long epochSeconds, int nanos) throws IOException {
+        skipTo(epochSeconds, nanos, false);
+    }
+
+    /**
+     * Skip the events before the given time.
+     * If keepPreceding is true, the last event before the time (if any) is returned first; this is what the server does for a start time.
+     * @param epochSeconds - Seconds since the Java epoch
+     * @param nanos - Nanoseconds within the second
+     * @param keepPreceding - Return the last event before the time as well
+     * @return The offset in the source of the first line that was not skipped; this is the offset at the end of the source if all the events were skipped.
+     * @throws IOException
+     */
+    long skipTo(long epochSeconds, int nanos, boolean keepPreceding) throws IOException {
+        if (nextMsg != null) {
+            // The event that was read ahead (for example, by readHeader) is still in line; so we start with it.
+            pendingLine = true;
+            nextMsg = null;
+        }
+        PayloadInfo targetInfo = null;
+        long target = 0;
+        ByteBuffer precedingLine = null;
+        PayloadInfo precedingInfo = null;
+        long precedingOffset = 0;
+        long keptOffset = -1;
+        while (nextEventLine()) {
+            if (info != targetInfo) {
+                targetInfo = info;
+                target = timeIntoYear(epochSeconds, nanos, info.getYear());
+            }
+            try {
+                if (eventDecoder.decodeTimeIntoYear(line) >= target) {
+                    // The iterator or nextBatch will parse this line.
+                    pendingLine = true;
+                    keptOffset = lineStart;
+                    break;
+                }
+                if (keepPreceding) {
+                    // line is only valid till the next readLine; so we keep a copy.
+                    if (precedingLine == null || precedingLine.capacity() < line.remaining()) {
+                        precedingLine = ByteBuffer.allocate(Math.max(line.remaining(), 1024));
+                    }
+                    precedingLine.clear();
+                    precedingLine.put(line.duplicate()).flip();
+                    precedingInfo = info;
+                    precedingOffset = lineStart;
+                }
+            } catch (InvalidProtocolBufferException ex) {
+                logParseException(ex);
+            }
+        }
+        if (keptOffset < 0) {
+            keptOffset = offset();
+        }
+        if (precedingInfo != null) {
+            try {
+                nextMsg = new EpicsMessage(parseMessage(precedingInfo.getType(), precedingLine), precedingInfo);
+                keptOffset = precedingOffset;
+            } catch (InvalidProtocolBufferException ex) {
+                logParseException(ex);
+            }
+        }
+        return keptOffset;
+    }
+
+    /**
+     * Convert a time into the nanoseconds since the start of the year as returned by EventDecoder.decodeTimeIntoYear.
+     * Times before the year map to Long.MIN_VALUE and times after the year map to Long.MAX_VALUE.
+     */
+    static long timeIntoYear(long epochSeconds, int nanos, int year) {
+        long secondsIntoYear = epochSeconds - EpicsMessage.startOfYearInEpochSeconds(year);
+        if (secondsIntoYear < 0) return Long.MIN_VALUE;
+        if (secondsIntoYear > 366L * 86400) return Long.MAX_VALUE;
+        return secondsIntoYear * 1_000_000_000L + nanos;
+    }
+
+    private boolean loopInfoLine() throws IOException {
+        int loopCount = 0;
+        boolean haveNewline = frameLine();
+        while (loopCount++ < 1000) {
+            if (!haveNewline && !line.hasRemaining()) {
+                // This is the end of the stream
+                return false;
+            } else if (haveNewline && !line.hasRemaining()) {
+                // We encountered an empty line. We expect a header next and data after that
+                frameLine();
+                if (!line.hasRemaining()) {
+                    // We encountered an empty line and there was not enough info for a payload.
+                    // We treat this as the end of the stream
+                    return false;
+                }
+                info = PayloadInfo.parseFrom(line);
+                chunkStarted();
+                haveNewline = frameLine();
+            } else {
+                // Regardless of whether the line ended in a newline or not, we have data in line
+                return true;
+            }
+        }
+        throw new IOException("We are unable to determine next event in " + loopCount + " loops");
+    }
+
+    /**
+     * Advance to the next event line without parsing it.
+     * @return false at the end of the stream; else line has the next event and info is the PayloadInfo of its chunk.
+     * @throws IOException
+     */
+    boolean nextEventLine() throws IOException {
+        if (!pendingLine && (endOfStream || !loopInfoLine())) {
+            if (!endOfStream) {
+                endOfStream = true;
+                endChunk();
+                reportMetrics();
+            }
+            return false;
+        }
+        if (!pendingLine) {
+            chunkEventLines++;
+            chunkBytes += line.remaining();
+        }
+        pendingLine = false;
+        return true;
+    }
+
+    private void readLineAndParseNextMessage() throws IOException {
+        while (true) {
+            if (!nextEventLine()) {
+                nextMsg = null;
+                return;
+            }
+
+            long startNanos = timeParsing ? System.nanoTime() : 0;
+            try {
+                nextMsg = new EpicsMessage(parseMessage(), info);
+                unreportedEvents++;
+                return;
+            } catch (InvalidProtocolBufferException ex) {
+                logParseException(ex);
+            } finally {
+                if (timeParsing) unreportedParseNanos += System.nanoTime() - startNanos;
+            }
+        }
+    }
+
+    /**
+     * Parse the event in line based on the type of the current chunk.
+     */
+    private Message parseMessage() throws IOException {
+        return parseMessage(info.getType(), line);
+    }
+
+    /**
+     * Parse an unescaped event line of the given type.
+     */
+    static Message parseMessage(PayloadType type, ByteBuffer line) throws IOException {
+        return switch (type) {
+            case SCALAR_BYTE -> ScalarByte.parseFrom(line);
+            case SCALAR_DOUBLE -> ScalarDouble.parseFrom(line);
+            case SCALAR_ENUM -> ScalarEnum.parseFrom(line);
+            case SCALAR_FLOAT -> ScalarFloat.parseFrom(line);
+            case SCALAR_INT -> ScalarInt.parseFrom(line);
+            case SCALAR_SHORT -> ScalarShort.parseFrom(line);
+            case SCALAR_STRING -> ScalarString.parseFrom(line);
+            case WAVEFORM_BYTE -> VectorChar.parseFrom(line);
+            case WAVEFORM_DOUBLE -> VectorDouble.parseFrom(line);
+            case WAVEFORM_ENUM -> VectorEnum.parseFrom(line);
+            case WAVEFORM_FLOAT -> VectorFloat.parseFrom(line);
+            case WAVEFORM_INT -> VectorInt.parseFrom(line);
+            case WAVEFORM_SHORT -> VectorShort.parseFrom(line);
+            case WAVEFORM_STRING -> VectorString.parseFrom(line);
+            case V4_GENERIC_BYTES -> V4GenericBytes.parseFrom(line);
+            default -> throw new IOException("Unknown type " + type);
+        };
+    }
+
+    void logParseException(InvalidProtocolBufferException ex) {
+        metrics.onParseFailure(info);
+        logger.log(
+                Level.WARNING,
+                "Exception processing line of size " + line.remaining() + " at " + describePosition(),
+                ex);
+    }
+
+    /**
+     * Numeric scalars are decoded straight from the line into the batch; other types are parsed into an EpicsMessage first.
+     */
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        long startNanos = timeParsing ? System.nanoTime() : 0;
+        if (nextMsg != null) {
+            // The iterator has already read this event ahead
+            batch.reset(nextMsg.getPayloadInfo());
+            batch.add(nextMsg);
+            nextMsg = null;
+        } else {
+            batch.reset(info);
+        }
+        while (!batch.isFull() && nextEventLine()) {
+            if (batch.getPayloadInfo() != info) {
+                if (!batch.isEmpty()) {
+                    // Batches do not span chunks; we'll decode this line in the next call.
+                    pendingLine = true;
+                    break;
+                }
+                batch.reset(info);
+            }
+            decodeLineInto(batch);
+        }
+        if (timeParsing) unreportedParseNanos += System.nanoTime() - startNanos;
+        return batch.size();
+    }
+
+    /**
+     * Decode the event in line into the batch; the batch has to be for the current chunk.
+     */
+    void decodeLineInto(EventBatch batch) throws IOException {
+        try {
+            if (EventDecoder.canDecode(info.getType())) {
+                eventDecoder.decodeScalar(
+                        line, info.getType(), EpicsMessage.startOfYearInEpochSeconds(info.getYear()), batch);
+            } else {
+                batch.add(new EpicsMessage(parseMessage(), info));
+            }
+            unreportedEvents++;
+        } catch (InvalidProtocolBufferException ex) {
+            logParseException(ex);
+        }
+    }
+
+    /**
+     * Subclasses call this on close to return buf to the pool.
+     */
+    void releaseLineBuffer() {
+        if (buf.capacity() > 0) {
+            line = null;
+            bufferPool.release(buf);
+            buf = ByteBuffer.allocate(0);
+        }
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+    }
+}
@@ -0,0 +1,244 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.logging.Logger;
+
+/**
+ * Generate a sequence of events from a local PB file; for example, a PB partition file from the appliance or a cached response.
+ * The file is memory mapped and lines are framed and unescaped directly in the mapped region; lines without escape characters are parsed in place.
+ * Files larger than the mapping window (and larger than 2GB) are processed by remapping the window as we go along.
+ * Use seek to skip to the events after a start time without reading the lines before it.
+ * Note that the JVM releases the mapping only when the buffer is garbage collected; close only closes the channel.
+ * @author mshankar
+ *
+ */
+public class MappedFileGenMsg extends LineFramedGenMsg {
+    private static final Logger logger = Logger.getLogger(MappedFileGenMsg.class.getName());
+    static final int DEFAULT_WINDOW_SIZE = 512 * 1024 * 1024;
+    // Once seek has narrowed the range to this many bytes, it is cheaper to scan the lines.
+    private static final int BISECT_LINEAR_SCAN_SIZE = 16 * 1024;
+    private final Path path;
+    private FileChannel channel;
+    private final long fileSize;
+    private int windowSize;
+    // The offset in the file of the start of the current window
+    private long windowStart = 0;
+    private MappedByteBuffer window;
+    // A view into the window; lines that have no escape characters are parsed directly from here.
+    private ByteBuffer windowView;
+    // The position in the window of the start of the next line
+    private int pos = 0;
+    // Set by findLineEnd
+    private boolean lineHasEscapes = false;
+
+    public MappedFileGenMsg(Path path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param path - The PB file
+     * @param windowSize - The size of the region that is mapped at any one time; the window grows if a line is longer than this.
+     * @throws IOException
+     */
+    MappedFileGenMsg(Path path, int windowSize) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            this.windowSize = windowSize;
+            mapWindow(0);
+            readHeader();
+        } catch (IOException ex) {
+            releaseLineBuffer();
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private void mapWindow(long start) throws IOException {
+        long size = Math.min(windowSize, fileSize - start);
+        window = channel.map(MapMode.READ_ONLY, start, size);
+        windowView = window.duplicate();
+        windowStart = start;
+        pos = 0;
+    }
+
+    /**
+     * Find the end of the line that starts at pos, remapping the window if the line crosses its end.
+     * @return The index in the window of the newline; or the limit of the window at the end of the file.
+     * @throws IOException
+     */
+    private int findLineEnd() throws IOException {
+        while (true) {
+            int limit = window.limit();
+            int i = pos;
+            lineHasEscapes = false;
+            while ((i = ByteScanner.indexOfNewlineOrEscape(window, i, limit)) < limit) {
+                if (window.get(i) == NEWLINE_CHAR) {
+                    return i;
+                }
+                lineHasEscapes = true;
+                i++;
+            }
+            if (windowStart + limit >= fileSize) {
+                return limit;
+            }
+            // The line continues past the end of this window
+            if (pos == 0) {
+                // The line is longer than the window itself.
+                if (windowSize == Integer.MAX_VALUE) {
+                    throw new IOException("Line at " + windowStart + " in " + path + " is longer than 2GB");
+                }
+                windowSize = (int) Math.min((long) windowSize * 2, Integer.MAX_VALUE);
+            }
+            mapWindow(windowStart + pos);
+        }
+    }
+
+    @Override
+    boolean readLine() throws IOException {
+        int lineEnd = findLineEnd();
+        if (lineHasEscapes) {
+            unescape(pos, lineEnd);
+            line = buf;
+        } else {
+            windowView.limit(lineEnd).position(pos);
+            line = windowView;
+        }
+        boolean haveNewline = lineEnd < window.limit();
+        pos = haveNewline ? lineEnd + 1 : lineEnd;
+        currentLine++;
+        return haveNewline;
+    }
+
+    /**
+     * @return The offset in the file of the start of the next line
+     */
+    @Override
+    long offset() {
+        return windowStart + pos;
+    }
+
+    private void position(long offset) throws IOException {
+        if (offset >= windowStart && offset <= windowStart + window.limit()) {
+            pos = (int) (offset - windowStart);
+        } else {
+            mapWindow(offset);
+        }
+    }
+
+    /**
+     * Position this iterator so that the next event is the first event at or after the given time.
+     * The events in a chunk are in time order and a raw newline only occurs at the end of a line.
+     * So, we bisect on byte offsets; resynchronizing on the next newline and decoding just the time of the event after it.
+     * PB partition files have one chunk; if we run into another chunk (an empty line or a PayloadInfo) or into events that are out of order, we fall back to a linear scan from the start of the file.
+     * One can seek backwards as well as forwards.
+     * @param start - The time of the first event that we want
+     * @throws IOException
+     */
+    public void seek(Timestamp start) throws IOException {
+        long startEpochSeconds = Math.floorDiv(start.getTime(), 1000);
+        int startNanos = start.getNanos();
+        position(0);
+        readLine();
+        PayloadInfo firstInfo = PayloadInfo.parseFrom(line);
+        long dataStart = offset();
+        restart(firstInfo);
+        position(bisect(dataStart, timeIntoYear(startEpochSeconds, startNanos, firstInfo.getYear())));
+        skipTo(startEpochSeconds, startNanos);
+    }
+
+    /**
+     * @return The offset of a line at or before the first event at or after target; or dataStart if the file cannot be bisected.
+     */
+    private long bisect(long dataStart, long target) throws IOException {
+        long lo = dataStart;
+        long hi = fileSize;
+        long loTime = Long.MIN_VALUE;
+        long hiTime = Long.MAX_VALUE;
+        while (hi - lo > BISECT_LINEAR_SCAN_SIZE) {
+            long mid = lo + (hi - lo) / 2;
+            // Skip the rest of the line that mid is in
+            position(mid - 1);
+            int lineEnd = findLineEnd();
+            pos = lineEnd < window.limit() ? lineEnd + 1 : lineEnd;
+            long probe = offset();
+            if (probe >= hi) {
+                break;
+            }
+            readLine();
+            long time;
+            try {
+                time = eventDecoder.decodeTimeIntoYear(line);
+            } catch (InvalidProtocolBufferException ex) {
+                logger.fine("Found something other than an event at " + probe + " in " + path + "; scanning linearly");
+                return dataStart;
+            }
+            if (time < loTime || time > hiTime) {
+                logger.fine("Events are not in order at " + probe + " in " + path + "; scanning linearly");
+                return dataStart;
+            }
+            if (time < target) {
+                lo = offset();
+                loTime = time;
+            } else {
+                hi = probe;
+                hiTime = time;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Unescape the bytes from start to end in the window into buf; runs of bytes without escapes are found using a ByteScanner and copied in bulk.
+     */
+    private void unescape(int start, int end) throws IOException {
+        buf.clear();
+        if (buf.capacity() < end - start) {
+            growLineBuffer(end - start);
+        }
+        int runStart = start;
+        int i;
+        while ((i = ByteScanner.indexOf(window, runStart, end, ESCAPE_CHAR)) < end) {
+            buf.put(window.slice(runStart, i - runStart));
+            if (i + 1 >= end) {
+                throw new IOException("Escape character terminated early");
+            }
+            byte b = window.get(i + 1);
+            switch (b) {
+                case ESCAPE_ESCAPE_CHAR -> buf.put(ESCAPE_CHAR);
+                case NEWLINE_ESCAPE_CHAR -> buf.put(NEWLINE_CHAR);
+                case CARRIAGERETURN_ESCAPE_CHAR -> buf.put(CARRIAGERETURN_CHAR);
+                default -> buf.put(b);
+            }
+            runStart = i + 2;
+        }
+        buf.put(window.slice(runStart, end - runStart));
+        buf.flip();
+    }
+
+    @Override
+    String describePosition() {
+        return "offset " + (windowStart + pos) + " in " + path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        endChunk();
+        if (channel != null) {
+            reportMetrics();
+            releaseLineBuffer();
+            channel.close();
+            channel = null;
+        }
+    }
+}
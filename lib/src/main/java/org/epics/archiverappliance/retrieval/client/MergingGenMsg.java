@@ -0,0 +1,243 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merge the events from several GenMsgIterators into one stream in timestamp order; for example, to correlate the data for several PVs.
+ * Each source is expected to be in timestamp order; only the next event from each source is held in memory.
+ * The sources are kept in a binary heap keyed on the epoch seconds and nanos of their next event; these are kept in primitive arrays.
+ * Events with the same timestamp are returned in the order of the sources.
+ * Use {@link EpicsMessage#getPayloadInfo()} or {@link #getPayLoadInfo()} to determine the PV of each event.
+ * The InfoChangeHandler is called whenever the next event comes from a different PV or chunk than the previous one.
+ * @author mshankar
+ *
+ */
+public final class MergingGenMsg implements GenMsgIterator {
+    private final List<GenMsgIterator> sources;
+    private final List<Iterator<EpicsMessage>> iterators;
+    private final EpicsMessage[] heads;
+    // The heap; the source index and the timestamp of the next event of that source.
+    private final int[] heapSources;
+    private final long[] heapEpochSeconds;
+    private final int[] heapNanos;
+    private int heapSize = 0;
+    private PayloadInfo info;
+    private InfoChangeHandler infoChangeHandler = null;
+
+    /**
+     * @param sources - The sources to merge; these are closed when this is closed or if reading the first event of a source fails.
+     */
+    public MergingGenMsg(List<GenMsgIterator> sources) {
+        this.sources = new ArrayList<GenMsgIterator>(sources);
+        int count = this.sources.size();
+        this.iterators = new ArrayList<Iterator<EpicsMessage>>(count);
+        this.heads = new EpicsMessage[count];
+        this.heapSources = new int[count];
+        this.heapEpochSeconds = new long[count];
+        this.heapNanos = new int[count];
+        int primed = 0;
+        try {
+            for (; primed < count; primed++) {
+                GenMsgIterator source = this.sources.get(primed);
+                iterators.add(source.iterator());
+                if (info == null) {
+                    info = source.getPayLoadInfo();
+                }
+                advance(primed);
+            }
+        } catch (RuntimeException ex) {
+            // Close the sources that are still open; the exhausted ones have already been closed by advance.
+            for (int i = 0; i < count; i++) {
+                if (i < primed && heads[i] == null) {
+                    continue;
+                }
+                try {
+                    this.sources.get(i).close();
+                } catch (IOException | RuntimeException closeEx) {
+                    ex.addSuppressed(closeEx);
+                }
+            }
+            throw ex;
+        }
+        if (heapSize > 0) {
+            info = heads[heapSources[0]].getPayloadInfo();
+        }
+    }
+
+    /**
+     * Read the next event from a source and add it to the heap; exhausted sources are closed.
+     */
+    private void advance(int source) {
+        Iterator<EpicsMessage> it = iterators.get(source);
+        if (!it.hasNext()) {
+            heads[source] = null;
+            try {
+                sources.get(source).close();
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Exception closing source " + source, ex);
+            }
+            return;
+        }
+        EpicsMessage msg = it.next();
+        heads[source] = msg;
+        int pos = heapSize++;
+        heapSources[pos] = source;
+        heapEpochSeconds[pos] = msg.getEpochSeconds();
+        heapNanos[pos] = msg.getNanos();
+        siftUp(pos);
+    }
+
+    private boolean less(int a, int b) {
+        if (heapEpochSeconds[a] != heapEpochSeconds[b]) {
+            return heapEpochSeconds[a] < heapEpochSeconds[b];
+        }
+        if (heapNanos[a] != heapNanos[b]) {
+            return heapNanos[a] < heapNanos[b];
+        }
+        return heapSources[a] < heapSources[b];
+    }
+
+    private void swap(int a, int b) {
+        int source = heapSources[a];
+        heapSources[a] = heapSources[b];
+        heapSources[b] = source;
+        long epochSeconds = heapEpochSeconds[a];
+        heapEpochSeconds[a] = heapEpochSeconds[b];
+        heapEpochSeconds[b] = epochSeconds;
+        int nanos = heapNanos[a];
+        heapNanos[a] = heapNanos[b];
+        heapNanos[b] = nanos;
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!less(pos, parent)) {
+                return;
+            }
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int smallest = pos;
+            int left = 2 * pos + 1;
+            int right = left + 1;
+            if (left < heapSize && less(left, smallest)) {
+                smallest = left;
+            }
+            if (right < heapSize && less(right, smallest)) {
+                smallest = right;
+            }
+            if (smallest == pos) {
+                return;
+            }
+            swap(pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    /**
+     * Remove the earliest event and replace it with the next event from the same source.
+     */
+    private EpicsMessage poll() {
+        int source = heapSources[0];
+        EpicsMessage ret = heads[source];
+        heapSize--;
+        if (heapSize > 0) {
+            swap(0, heapSize);
+            siftDown(0);
+        }
+        advance(source);
+        if (ret.getPayloadInfo() != info) {
+            info = ret.getPayloadInfo();
+            if (infoChangeHandler != null) {
+                infoChangeHandler.handleInfoChange(info);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The PayloadInfo of the last event that was returned; this identifies the PV of that event.
+     */
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        return info;
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return heapSize > 0;
+            }
+
+            @Override
+            public EpicsMessage next() {
+                if (heapSize == 0) {
+                    throw new NoSuchElementException("End of file");
+                }
+                return poll();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * A batch is the run of events that come from the same PV and chunk before an event from another source.
+     */
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        if (heapSize == 0) {
+            batch.reset(info);
+            return 0;
+        }
+        PayloadInfo batchInfo = heads[heapSources[0]].getPayloadInfo();
+        batch.reset(batchInfo);
+        while (heapSize > 0 && !batch.isFull() && heads[heapSources[0]].getPayloadInfo() == batchInfo) {
+            batch.add(poll());
+        }
+        return batch.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException firstException = null;
+        for (int i = 0; i < sources.size(); i++) {
+            if (heads[i] == null) {
+                // Closed when it was exhausted
+                continue;
+            }
+            heads[i] = null;
+            try {
+                sources.get(i).close();
+            } catch (IOException ex) {
+                if (firstException == null) {
+                    firstException = ex;
+                }
+            }
+        }
+        heapSize = 0;
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Write events in the PB/HTTP wire format; this is the inverse of LineFramedGenMsg.
+ * Use this to save retrieved data to a local PB file, to serve it again to other clients or to generate large test streams.
+ * A new chunk (an empty line followed by the PayloadInfo) is started whenever the PayloadInfo of the events changes.
+ * Events are serialized into a reusable array and escaped in bulk; the runs of bytes between the bytes that have to be escaped are found using a ByteScanner and copied as is.
+ * Writes to an OutputStream are not buffered; so wrap the stream in a BufferedOutputStream if needed. Writes to a channel (for example, a FileChannel) are buffered and written on flush or close.
+ * This is not thread safe.
+ * @author mshankar
+ *
+ */
+public final class PBStreamWriter implements Closeable, Flushable {
+    static final int CHANNEL_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] EMPTY_LINE = {LineFramedGenMsg.NEWLINE_CHAR};
+    // The field numbers that all the scalar event messages share; see EventDecoder.
+    private static final int SECONDSINTOYEAR_FIELD = 1;
+    private static final int NANO_FIELD = 2;
+    private static final int VAL_FIELD = 3;
+    private static final int SEVERITY_FIELD = 4;
+    private static final int STATUS_FIELD = 5;
+    // Tags, two uint32's, a double and two negative int32's fit in this.
+    private static final int MAX_SCALAR_EVENT_SIZE = 64;
+
+    private final OutputStream os;
+    private final WritableByteChannel channel;
+    private final ByteBuffer channelBuf;
+    private PayloadInfo info = null;
+    private byte[] serialized = new byte[1024];
+    private byte[] escaped = new byte[2 * 1024 + 1];
+    private final byte[] byteValue = new byte[1];
+    private long startOfYearEpochSeconds;
+    private long bytesWritten = 0;
+
+    /**
+     * @param os - Each line is written to this stream as it is escaped.
+     */
+    public PBStreamWriter(OutputStream os) {
+        this.os = os;
+        this.channel = null;
+        this.channelBuf = null;
+    }
+
+    /**
+     * @param channel - For example, a FileChannel; the lines are buffered and written to this on flush or close.
+     */
+    public PBStreamWriter(WritableByteChannel channel) {
+        this.os = null;
+        this.channel = channel;
+        this.channelBuf = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+    }
+
+    /**
+     * Start a new chunk; the events that follow belong to this chunk.
+     */
+    public void writeInfo(PayloadInfo info) throws IOException {
+        if (this.info != null) {
+            emit(EMPTY_LINE, EMPTY_LINE.length);
+        }
+        this.info = info;
+        this.startOfYearEpochSeconds = EpicsMessage.startOfYearInEpochSeconds(info.getYear());
+        writeMessage(info);
+    }
+
+    /**
+     * Write an event; a new chunk is started if the event has a different PayloadInfo than the current chunk.
+     * The PayloadInfo's are compared by reference; so the events from an iterator are written in the same chunks that they were read from.
+     */
+    public void write(EpicsMessage msg) throws IOException {
+        if (msg.getPayloadInfo() != info) {
+            writeInfo(msg.getPayloadInfo());
+        }
+        writeEvent(msg.getMessage());
+    }
+
+    /**
+     * Write an event in the current chunk.
+     * @param event - One of the generated event classes for the type in the PayloadInfo
+     */
+    public void writeEvent(MessageLite event) throws IOException {
+        if (info == null) {
+            throw new IOException("An event has to be preceded by a PayloadInfo");
+        }
+        writeMessage(event);
+    }
+
+    /**
+     * Write the events in a batch; a new chunk is started if the batch has a different PayloadInfo than the current chunk.
+     * Batches only have the timestamp, value, severity and status of each event; so only scalar numeric types are supported and field values and repeat counts are not written.
+     * The fields are written directly using their field numbers, in the same order and encoding as the generated classes; no message is built for each event.
+     * Events with a severity and status of 0 are written without these, like the server does.
+     */
+    public void write(EventBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        PayloadType type = batch.getPayloadInfo().getType();
+        switch (type) {
+            case SCALAR_BYTE, SCALAR_DOUBLE, SCALAR_ENUM, SCALAR_FLOAT, SCALAR_INT, SCALAR_SHORT -> {}
+            default -> throw new UnsupportedOperationException(
+                    "Batches of " + type + " can't be written; write the EpicsMessages instead");
+        }
+        if (batch.getPayloadInfo() != info) {
+            writeInfo(batch.getPayloadInfo());
+        }
+        long[] epochSeconds = batch.getEpochSeconds();
+        int[] nanos = batch.getNanos();
+        double[] values = batch.getValues();
+        long[] longValues = batch.getLongValues();
+        int[] severities = batch.getSeverities();
+        int[] statuses = batch.getStatuses();
+        int maxSize = batch.size() * MAX_SCALAR_EVENT_SIZE;
+        if (serialized.length < maxSize) {
+            serialized = new byte[maxSize];
+        }
+        // Each event is encoded after the previous one and then escaped.
+        CodedOutputStream cos = CodedOutputStream.newInstance(serialized, 0, maxSize);
+        int eventStart = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            cos.writeUInt32(SECONDSINTOYEAR_FIELD, (int) (epochSeconds[i] - startOfYearEpochSeconds));
+            cos.writeUInt32(NANO_FIELD, nanos[i]);
+            switch (type) {
+                case SCALAR_BYTE -> {
+                    byteValue[0] = (byte) longValues[i];
+                    cos.writeByteArray(VAL_FIELD, byteValue);
+                }
+                case SCALAR_DOUBLE -> cos.writeDouble(VAL_FIELD, values[i]);
+                case SCALAR_FLOAT -> cos.writeFloat(VAL_FIELD, (float) values[i]);
+                case SCALAR_INT -> cos.writeSFixed32(VAL_FIELD, (int) longValues[i]);
+                default -> cos.writeSInt32(VAL_FIELD, (int) longValues[i]);
+            }
+            if (severities[i] != 0) {
+                cos.writeInt32(SEVERITY_FIELD, severities[i]);
+            }
+            if (statuses[i] != 0) {
+                cos.writeInt32(STATUS_FIELD, statuses[i]);
+            }
+            int eventEnd = cos.getTotalBytesWritten();
+            writeLine(serialized, eventStart, eventEnd - eventStart);
+            eventStart = eventEnd;
+        }
+    }
+
+    private void writeMessage(MessageLite msg) throws IOException {
+        int size = msg.getSerializedSize();
+        if (serialized.length < size) {
+            serialized = new byte[Math.max(size, serialized.length * 2)];
+        }
+        CodedOutputStream cos = CodedOutputStream.newInstance(serialized, 0, size);
+        msg.writeTo(cos);
+        writeLine(serialized, 0, size);
+    }
+
+    /**
+     * Escape the line and write it followed by a newline.
+     */
+    private void writeLine(byte[] bytes, int offset, int length) throws IOException {
+        if (escaped.length < length * 2 + 1) {
+            escaped = new byte[length * 2 + 1];
+        }
+        int end = offset + length;
+        int escapedLength = 0;
+        int runStart = offset;
+        int i;
+        while ((i = ByteScanner.indexOfEscapable(bytes, runStart, end)) < end) {
+            System.arraycopy(bytes, runStart, escaped, escapedLength, i - runStart);
+            escapedLength += i - runStart;
+            escaped[escapedLength++] = LineFramedGenMsg.ESCAPE_CHAR;
+            escaped[escapedLength++] = switch (bytes[i]) {
+                case LineFramedGenMsg.ESCAPE_CHAR -> LineFramedGenMsg.ESCAPE_ESCAPE_CHAR;
+                case LineFramedGenMsg.NEWLINE_CHAR -> LineFramedGenMsg.NEWLINE_ESCAPE_CHAR;
+                default -> LineFramedGenMsg.CARRIAGERETURN_ESCAPE_CHAR;
+            };
+            runStart = i + 1;
+        }
+        System.arraycopy(bytes, runStart, escaped, escapedLength, end - runStart);
+        escapedLength += end - runStart;
+        escaped[escapedLength++] = LineFramedGenMsg.NEWLINE_CHAR;
+        emit(escaped, escapedLength);
+    }
+
+    private void emit(byte[] bytes, int length) throws IOException {
+        bytesWritten += length;
+        if (os != null) {
+            os.write(bytes, 0, length);
+            return;
+        }
+        if (channelBuf.remaining() < length) {
+            drainChannelBuffer();
+            if (length > channelBuf.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes, 0, length));
+                return;
+            }
+        }
+        channelBuf.put(bytes, 0, length);
+    }
+
+    private void drainChannelBuffer() throws IOException {
+        channelBuf.flip();
+        writeFully(channelBuf);
+        channelBuf.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * @return The number of bytes written so far, including the ones that are buffered for a channel.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (os != null) {
+            os.flush();
+        } else {
+            drainChannelBuffer();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (os != null) {
+            os.close();
+        } else {
+            try {
+                drainChannelBuffer();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
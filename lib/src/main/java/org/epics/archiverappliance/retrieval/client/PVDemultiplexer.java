@@ -0,0 +1,89 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Route the events of a multi-PV response (for example, from {@link DataRetrieval#getDataForPVs}) to a separate sink for each PV.
+ * The stream is read once using nextBatch and each batch is handed to the sink for the PV in its PayloadInfo without copying.
+ * All the chunks of a PV (for example, the chunks for each year) go to the same sink; so callers do not need an InfoChangeHandler.
+ * @author mshankar
+ *
+ */
+public final class PVDemultiplexer {
+    static final int DEFAULT_BATCH_SIZE = 4096;
+
+    /**
+     * Receives the events for one PV.
+     */
+    public interface PVSink {
+        /**
+         * Called for each batch of events for this PV; the batch is reused once this returns.
+         * Use {@link EventBatch#getPayloadInfo()} to get the PayloadInfo of the chunk that these events belong to.
+         */
+        void accept(EventBatch batch) throws IOException;
+
+        /**
+         * Called once all the events in the stream have been routed.
+         */
+        default void end() throws IOException {}
+    }
+
+    private PVDemultiplexer() {}
+
+    /**
+     * Read all the events in the stream and route them to a sink for each PV.
+     * @param strm - The stream; this is not closed.
+     * @param sinkForPV - Called once for each PV with the PayloadInfo of the first chunk of that PV; this can return null to skip the PV.
+     * @param batchSize - The maximum number of events in each call to the sinks.
+     * @return The sinks keyed by the PV name in the order in which the PVs were seen.
+     * @throws IOException
+     */
+    public static <T extends PVSink> Map<String, T> demultiplex(
+            GenMsgIterator strm, Function<PayloadInfo, T> sinkForPV, int batchSize) throws IOException {
+        Map<String, T> sinks = new LinkedHashMap<String, T>();
+        Set<String> skipped = new HashSet<String>();
+        EventBatch batch = new EventBatch(batchSize);
+        // Consecutive batches usually come from the same chunk; so we look up the sink only when the chunk changes.
+        PayloadInfo lastInfo = null;
+        T lastSink = null;
+        while (strm.nextBatch(batch) > 0) {
+            PayloadInfo info = batch.getPayloadInfo();
+            if (info != lastInfo) {
+                String pvName = info.getPvname();
+                lastInfo = info;
+                lastSink = sinks.get(pvName);
+                if (lastSink == null && !skipped.contains(pvName)) {
+                    lastSink = sinkForPV.apply(info);
+                    if (lastSink != null) {
+                        sinks.put(pvName, lastSink);
+                    } else {
+                        skipped.add(pvName);
+                    }
+                }
+            }
+            if (lastSink != null) {
+                lastSink.accept(batch);
+            }
+        }
+        for (T sink : sinks.values()) {
+            sink.end();
+        }
+        return sinks;
+    }
+
+    /**
+     * Read all the events in the stream into a columnar series for each PV.
+     * @param strm - The stream; this is not closed.
+     * @return A series for each PV keyed by the PV name in the order in which the PVs were seen.
+     * @throws IOException
+     */
+    public static Map<String, PVSeries> collect(GenMsgIterator strm) throws IOException {
+        return demultiplex(strm, info -> new PVSeries(), DEFAULT_BATCH_SIZE);
+    }
+}
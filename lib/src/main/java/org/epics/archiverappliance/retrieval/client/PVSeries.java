@@ -0,0 +1,94 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.util.Arrays;
+
+/**
+ * The events for one PV in growable columnar arrays; for example, to feed a plot series.
+ * This is filled by {@link PVDemultiplexer#collect(GenMsgIterator)}; the events from all the chunks of the PV are appended in order.
+ * The arrays are valid from 0 to size(); they are replaced as the series grows, so get them after the series is filled.
+ * The values are doubles; these are exact for all the integer DBR types. See EventBatch for the values of non-numeric types.
+ * @author mshankar
+ *
+ */
+public final class PVSeries implements PVDemultiplexer.PVSink {
+    private PayloadInfo info;
+    private int size = 0;
+    private long[] epochSeconds = new long[16];
+    private int[] nanos = new int[16];
+    private double[] values = new double[16];
+    private int[] severities = new int[16];
+    private int[] statuses = new int[16];
+
+    public PVSeries() {}
+
+    PVSeries(PayloadInfo info) {
+        this.info = info;
+    }
+
+    /**
+     * @return The PayloadInfo of the last chunk of this PV; later chunks can have updated metadata.
+     */
+    public PayloadInfo getPayloadInfo() {
+        return info;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] getEpochSeconds() {
+        return epochSeconds;
+    }
+
+    public int[] getNanos() {
+        return nanos;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public int[] getSeverities() {
+        return severities;
+    }
+
+    public int[] getStatuses() {
+        return statuses;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= epochSeconds.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, epochSeconds.length * 2);
+        epochSeconds = Arrays.copyOf(epochSeconds, newCapacity);
+        nanos = Arrays.copyOf(nanos, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+        severities = Arrays.copyOf(severities, newCapacity);
+        statuses = Arrays.copyOf(statuses, newCapacity);
+    }
+
+    void add(long epochSecond, int nano, double value, int severity, int status) {
+        ensureCapacity(size + 1);
+        epochSeconds[size] = epochSecond;
+        nanos[size] = nano;
+        values[size] = value;
+        severities[size] = severity;
+        statuses[size] = status;
+        size++;
+    }
+
+    @Override
+    public void accept(EventBatch batch) {
+        info = batch.getPayloadInfo();
+        int count = batch.size();
+        ensureCapacity(size + count);
+        System.arraycopy(batch.getEpochSeconds(), 0, epochSeconds, size, count);
+        System.arraycopy(batch.getNanos(), 0, nanos, size, count);
+        System.arraycopy(batch.getValues(), 0, values, size, count);
+        System.arraycopy(batch.getSeverities(), 0, severities, size, count);
+        System.arraycopy(batch.getStatuses(), 0, statuses, size, count);
+        size += count;
+    }
+}
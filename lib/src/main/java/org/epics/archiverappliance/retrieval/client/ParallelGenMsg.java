@@ -0,0 +1,286 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generate a sequence of events from an input stream; parsing the events on multiple threads.
+ * The lines are framed and unescaped on the consuming thread and copied into blocks; blocks are parsed by the executor.
+ * Events are returned in their original order; the consuming thread waits for the oldest block and keeps a window of blocks in flight.
+ * Blocks never span chunks; the InfoChangeHandler is called when the consuming thread gets to the first block after a chunk header.
+ * @author mshankar
+ *
+ */
+public class ParallelGenMsg implements GenMsgIterator {
+    private static final Logger logger = Logger.getLogger(ParallelGenMsg.class.getName());
+    static final int DEFAULT_LINES_PER_BLOCK = 4096;
+    private static final int MAX_BYTES_PER_BLOCK = 1024 * 1024;
+
+    private final LineFramedGenMsg framer;
+    private final Executor executor;
+    private final int linesPerBlock;
+    private final int maxBlocksInFlight;
+    private final ArrayDeque<CompletableFuture<Block>> inFlight = new ArrayDeque<CompletableFuture<Block>>();
+    // The chunk headers that the framer has read since the last block was submitted
+    private final List<PayloadInfo> framedInfoChanges = new ArrayList<PayloadInfo>();
+    private PayloadInfo info;
+    private InfoChangeHandler infoChangeHandler = null;
+    private Block current = null;
+    private int currentIndex = 0;
+
+    /**
+     * Parse the events in the common fork join pool.
+     */
+    public ParallelGenMsg(InputStream is) throws IOException {
+        this(is, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param is - The PB/HTTP response or file
+     * @param executor - The events are parsed using this executor
+     * @throws IOException
+     */
+    public ParallelGenMsg(InputStream is, Executor executor) throws IOException {
+        this(is, executor, RetrievalMetrics.NONE);
+    }
+
+    /**
+     * @param is - The PB/HTTP response or file
+     * @param executor - The events are parsed using this executor
+     * @param metrics - The numbers from framing are reported on the consuming thread; the parse times are reported from the executor.
+     * @throws IOException
+     */
+    public ParallelGenMsg(InputStream is, Executor executor, RetrievalMetrics metrics) throws IOException {
+        this(new InputStreamBackedGenMsg(is, metrics), executor);
+    }
+
+    ParallelGenMsg(LineFramedGenMsg framer, Executor executor) {
+        this(framer, executor, DEFAULT_LINES_PER_BLOCK, 2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    ParallelGenMsg(LineFramedGenMsg framer, Executor executor, int linesPerBlock, int maxBlocksInFlight) {
+        this.framer = framer;
+        this.executor = executor;
+        this.linesPerBlock = linesPerBlock;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.info = framer.getPayLoadInfo();
+        framer.onInfoChange(framedInfoChanges::add);
+        if (framer.nextMsg != null) {
+            // The framer has already parsed the first event.
+            Block first = new Block(framer.info, framer.metrics, 1);
+            first.messages = new EpicsMessage[] {framer.nextMsg};
+            first.size = 1;
+            framer.nextMsg = null;
+            inFlight.add(CompletableFuture.completedFuture(first));
+        }
+    }
+
+    /**
+     * The lines of a block are copied from the framer; the events are parsed in the executor.
+     */
+    private static final class Block {
+        final PayloadInfo info;
+        final RetrievalMetrics metrics;
+        // The chunk headers that precede this block; this includes chunks that have no events.
+        List<PayloadInfo> infoChanges = List.of();
+        byte[] data = new byte[64 * 1024];
+        int dataSize = 0;
+        final int[] lineEnds;
+        int lineCount = 0;
+        EpicsMessage[] messages;
+        int size = 0;
+
+        Block(PayloadInfo info, RetrievalMetrics metrics, int maxLines) {
+            this.info = info;
+            this.metrics = metrics;
+            this.lineEnds = new int[maxLines];
+        }
+
+        void addLine(ByteBuffer line) {
+            int length = line.remaining();
+            if (dataSize + length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, dataSize + length));
+            }
+            line.get(line.position(), data, dataSize, length);
+            dataSize += length;
+            lineEnds[lineCount++] = dataSize;
+        }
+
+        boolean isFull() {
+            return lineCount == lineEnds.length || dataSize >= MAX_BYTES_PER_BLOCK;
+        }
+
+        Block parse() {
+            long startNanos = System.nanoTime();
+            messages = new EpicsMessage[lineCount];
+            int lineStart = 0;
+            for (int i = 0; i < lineCount; i++) {
+                int lineEnd = lineEnds[i];
+                try {
+                    messages[size] = new EpicsMessage(
+                            LineFramedGenMsg.parseMessage(
+                                    info.getType(), ByteBuffer.wrap(data, lineStart, lineEnd - lineStart)),
+                            info);
+                    size++;
+                } catch (InvalidProtocolBufferException ex) {
+                    metrics.onParseFailure(info);
+                    logger.log(
+                            Level.WARNING,
+                            "Exception processing line of size " + (lineEnd - lineStart) + " for "
+                                    + info.getPvname(),
+                            ex);
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception parsing event for " + info.getPvname(), ex);
+                }
+                lineStart = lineEnd;
+            }
+            metrics.onParse(size, System.nanoTime() - startNanos);
+            data = null;
+            return this;
+        }
+    }
+
+    /**
+     * Frame the lines for the next block and submit it to the executor.
+     * @return false at the end of the stream
+     */
+    private boolean submitNextBlock() throws IOException {
+        if (!framer.nextEventLine()) {
+            return false;
+        }
+        PayloadInfo blockInfo = framer.info;
+        Block block = new Block(blockInfo, framer.metrics, linesPerBlock);
+        block.infoChanges = takeFramedInfoChanges();
+        block.addLine(framer.line);
+        while (!block.isFull() && framer.nextEventLine()) {
+            if (framer.info != blockInfo) {
+                // Blocks do not span chunks; this line starts the next block.
+                framer.pendingLine = true;
+                break;
+            }
+            block.addLine(framer.line);
+        }
+        inFlight.add(CompletableFuture.supplyAsync(block::parse, executor));
+        return true;
+    }
+
+    private List<PayloadInfo> takeFramedInfoChanges() {
+        if (framedInfoChanges.isEmpty()) {
+            return List.of();
+        }
+        List<PayloadInfo> ret = new ArrayList<PayloadInfo>(framedInfoChanges);
+        framedInfoChanges.clear();
+        return ret;
+    }
+
+    private void fireInfoChanges(List<PayloadInfo> infoChanges) {
+        for (PayloadInfo infoChange : infoChanges) {
+            info = infoChange;
+            if (infoChangeHandler != null) infoChangeHandler.handleInfoChange(infoChange);
+        }
+    }
+
+    /**
+     * Make sure current has an event at currentIndex.
+     * @return false at the end of the stream
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (current == null || currentIndex >= current.size) {
+            while (inFlight.size() < maxBlocksInFlight && submitNextBlock()) {
+                // Keep the executor busy while we wait for the oldest block
+            }
+            CompletableFuture<Block> oldest = inFlight.poll();
+            if (oldest == null) {
+                // Chunks at the end of the stream that have no events
+                fireInfoChanges(takeFramedInfoChanges());
+                current = null;
+                return false;
+            }
+            try {
+                current = oldest.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeIOException rex && rex.getCause() instanceof IOException iex) {
+                    throw iex;
+                }
+                throw ex;
+            }
+            currentIndex = 0;
+            fireInfoChanges(current.infoChanges);
+            info = current.info;
+        }
+        return true;
+    }
+
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        return info;
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return ensureCurrent();
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception near line " + framer.currentLine, ex);
+                }
+            }
+
+            @Override
+            public EpicsMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of file");
+                }
+                return current.messages[currentIndex++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        if (!ensureCurrent()) {
+            batch.reset(info);
+            return 0;
+        }
+        batch.reset(current.info);
+        while (!batch.isFull() && ensureCurrent() && current.info == batch.getPayloadInfo()) {
+            batch.add(current.messages[currentIndex++]);
+        }
+        return batch.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The blocks in flight only use memory; we let them complete and drop them.
+        inFlight.clear();
+        current = null;
+        framer.close();
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Client side class for reading data directly from the PlainPB storage of an appliance; for example, a read only mount of the long term store.
+ * This does not go through the retrieval servlet; only raw data is supported.
+ * <p>
+ * The PV name is converted into a path the same way as the appliance's default key converter; the name space separators (: and - by default) become folders.
+ * The partition files for a PV are named key + partition + .pb; for example, the data for ARCH:TEST-PV for Feb 2011 is in ARCH/TEST/PV:2011_02.pb.
+ * Partitions outside the requested time range are pruned by their names before they are opened; the rest are memory mapped one at a time.
+ * Stores that are compressed (zip per PV) are not supported.
+ *
+ * @author mshankar
+ */
+public class PlainPBDataRetrieval extends DataRetrieval {
+    private static final Logger logger = Logger.getLogger(PlainPBDataRetrieval.class.getName());
+    // Year, month, day, hour and minute partitions; for example, 2011, 2011_02, 2011_02_01, 2011_02_01_10 and 2011_02_01_10_15
+    private static final Pattern PARTITION_NAME =
+            Pattern.compile("(\\d{4})(?:_(\\d{2}))?(?:_(\\d{2}))?(?:_(\\d{2}))?(?:_(\\d{2}))?\\.pb");
+    private final Path rootFolder;
+    private final Pattern nameSpaceSeparators;
+
+    /**
+     * @param rootFolder - The root folder of the store; for example, /arch/lts
+     */
+    public PlainPBDataRetrieval(Path rootFolder) {
+        this(rootFolder, "[\\:\\-]");
+    }
+
+    /**
+     * @param rootFolder - The root folder of the store; for example, /arch/lts
+     * @param nameSpaceSeparators - A regex for the characters in PV names that become folders; this is set per site in the appliance.
+     */
+    public PlainPBDataRetrieval(Path rootFolder, String nameSpaceSeparators) {
+        this.rootFolder = rootFolder;
+        this.nameSpaceSeparators = Pattern.compile(nameSpaceSeparators);
+    }
+
+    private record Partition(Path path, Instant start, Instant end) {}
+
+    String convertPVNameToKey(String pvName) {
+        return nameSpaceSeparators.matcher(pvName).replaceAll("/") + ":";
+    }
+
+    /**
+     * @return The partition files for the PV that could have data from startTime to endTime in time order.
+     * @throws IOException
+     */
+    List<Path> findPartitions(String pvName, Timestamp startTime, Timestamp endTime) throws IOException {
+        List<Path> ret = new ArrayList<Path>();
+        for (Partition partition : findPartitionsInternal(pvName, startTime, endTime)) {
+            ret.add(partition.path());
+        }
+        return ret;
+    }
+
+    private List<Partition> findPartitionsInternal(String pvName, Timestamp startTime, Timestamp endTime)
+            throws IOException {
+        String key = convertPVNameToKey(pvName);
+        int lastSlash = key.lastIndexOf('/');
+        Path folder = lastSlash < 0 ? rootFolder : rootFolder.resolve(key.substring(0, lastSlash));
+        String prefix = key.substring(lastSlash + 1);
+        List<Partition> partitions = new ArrayList<Partition>();
+        if (!Files.isDirectory(folder)) {
+            return partitions;
+        }
+        Instant start = startTime.toInstant();
+        Instant end = endTime.toInstant();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (!fileName.startsWith(prefix)) {
+                    continue;
+                }
+                Matcher matcher = PARTITION_NAME.matcher(fileName.substring(prefix.length()));
+                if (!matcher.matches()) {
+                    continue;
+                }
+                Partition partition = parsePartition(path, matcher);
+                if (!partition.start().isAfter(end) && partition.end().isAfter(start)) {
+                    partitions.add(partition);
+                }
+            }
+        }
+        partitions.sort(Comparator.comparing(Partition::start));
+        return partitions;
+    }
+
+    /**
+     * Partition names are in UTC; the granularity of the partition is determined by the number of components in the name.
+     */
+    private static Partition parsePartition(Path path, Matcher matcher) {
+        int components = 1;
+        while (components < 5 && matcher.group(components + 1) != null) {
+            components++;
+        }
+        LocalDateTime start = LocalDateTime.of(
+                Integer.parseInt(matcher.group(1)),
+                components >= 2 ? Integer.parseInt(matcher.group(2)) : 1,
+                components >= 3 ? Integer.parseInt(matcher.group(3)) : 1,
+                components >= 4 ? Integer.parseInt(matcher.group(4)) : 0,
+                components >= 5 ? Integer.parseInt(matcher.group(5)) : 0);
+        // 5, 15 and 30 minute partitions are all within the hour.
+        LocalDateTime end =
+                switch (components) {
+                    case 1 -> start.plusYears(1);
+                    case 2 -> start.plusMonths(1);
+                    case 3 -> start.plusDays(1);
+                    case 4 -> start.plusHours(1);
+                    default -> start.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+                };
+        return new Partition(path, start.toInstant(ZoneOffset.UTC), end.toInstant(ZoneOffset.UTC));
+    }
+
+    @Override
+    public final GenMsgIterator getDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        if (useReducedDataSet || (otherParams != null && !otherParams.isEmpty())) {
+            logger.warning("Post processing is not supported when reading from " + rootFolder + "; returning raw data");
+        }
+        try {
+            List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>();
+            Instant start = startTime.toInstant();
+            for (String pvName : pvNames) {
+                for (Partition partition : findPartitionsInternal(pvName, startTime, endTime)) {
+                    sources.add(() -> {
+                        MappedFileGenMsg partitionData = new MappedFileGenMsg(partition.path());
+                        if (partition.start().isBefore(start)) {
+                            partitionData.seek(startTime);
+                        }
+                        return partitionData;
+                    });
+                }
+            }
+            if (sources.isEmpty()) {
+                logger.warning("No partitions in " + rootFolder + " for " + pvNames + " from " + startTime + " to "
+                        + endTime);
+                return null;
+            }
+            logger.fine("Reading " + sources.size() + " partitions from " + rootFolder + " for " + pvNames);
+            return new ConcatenatedGenMsg(sources, endTime);
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Exception reading data for " + pvNames + " from " + rootFolder, ex);
+        }
+        return null;
+    }
+}
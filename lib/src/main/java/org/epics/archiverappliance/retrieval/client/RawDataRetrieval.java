@@ -7,6 +7,8 @@
  *******************************************************************************/
 package org.epics.archiverappliance.retrieval.client;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.net.URI;
@@ -16,10 +18,18 @@ import java.net.http.HttpClient.Redirect;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
 import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,19 +42,136 @@ public class RawDataRetrieval extends DataRetrieval {
     private static final Logger logger = Logger.getLogger(RawDataRetrieval.class.getName());
     private final String accessURL;
     private HttpClient theClient;
+    private final Executor decodeExecutor;
+    private int readAheadDepth = 0;
+    private int maxConcurrentRequests = 1;
+    private int maxPVsPerRequest = Integer.MAX_VALUE;
+    private TimeRangeSplit timeRangeSplit = TimeRangeSplit.NONE;
+    private boolean acceptCompressedResponses = true;
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private RetrievalMetrics metrics = RetrievalMetrics.NONE;
+    private BufferPool bufferPool = null;
+    private int maxResumeAttempts = 0;
+    private long resumeBackoffMillis = 1000;
+    // Requests with longer URLs are rejected by some servers and proxies; so longer lists of PVs are split into several requests.
+    static final int MAX_URL_LENGTH = 8000;
 
     public RawDataRetrieval(String accessURL) {
+        this(accessURL, null);
+    }
+
+    /**
+     * @param accessURL - The URL of the retrieval servlet
+     * @param decodeExecutor - If not null, the events in the response are parsed on this executor using a {@link ParallelGenMsg}.
+     */
+    public RawDataRetrieval(String accessURL, Executor decodeExecutor) {
         this.accessURL = accessURL;
+        this.decodeExecutor = decodeExecutor;
         this.theClient =
                 HttpClient.newBuilder().followRedirects(Redirect.NORMAL).build();
     }
 
+    /**
+     * Read the response on a separate thread into a ring of this many buffers so that the transfer overlaps with decoding.
+     * This helps most for large responses over high latency links.
+     * @param readAheadDepth - The number of 256KB buffers; 0, the default, reads the response inline.
+     */
+    public void setReadAheadDepth(int readAheadDepth) {
+        this.readAheadDepth = readAheadDepth;
+    }
+
+    /**
+     * Fetch the data for multiple PVs using concurrent requests over the shared HttpClient; the server handles the PVs in a request one after another.
+     * The responses are returned in the order of the PVs; so this is the same as fetching all the PVs in one request.
+     * Requests that fail with an invalid status code are logged and skipped.
+     * @param maxConcurrentRequests - The maximum number of outstanding requests; the default is 1.
+     * @param maxPVsPerRequest - The maximum number of PVs in each request; the default is all the PVs that fit in a URL.
+     */
+    public void setConcurrentRequests(int maxConcurrentRequests, int maxPVsPerRequest) {
+        if (maxConcurrentRequests <= 0 || maxPVsPerRequest <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid concurrency " + maxConcurrentRequests + " or PVs per request " + maxPVsPerRequest);
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxPVsPerRequest = maxPVsPerRequest;
+    }
+
+    /**
+     * Split the time range of each request into aligned sub-ranges that are fetched concurrently, one PV per request; for example, for multi-year exports.
+     * The sub-ranges are concatenated in order and the events at the boundaries that are returned by both sub-ranges are dropped; so this returns the same events as a single request.
+     * The number of outstanding requests is limited by {@link #setConcurrentRequests}.
+     * @param timeRangeSplit - The default is {@link TimeRangeSplit#NONE}.
+     */
+    public void setTimeRangeSplit(TimeRangeSplit timeRangeSplit) {
+        this.timeRangeSplit = timeRangeSplit;
+    }
+
+    /**
+     * Ask the server to compress the response using gzip or deflate; the response is inflated as it is read.
+     * The PB stream compresses well; so this reduces the bytes on the wire considerably at the cost of some CPU.
+     * This is not used by {@link #publishDataForPVs}.
+     * @param acceptCompressedResponses - The default is true.
+     */
+    public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+    }
+
+    /**
+     * Report the time to the response headers and to the first byte, the status code and the numbers from decoding each response to this listener.
+     * The listener is called from several threads; use a {@link RetrievalCounters} or bridge it into a metrics library.
+     * This only applies to requests sent after this call.
+     * @param metrics - The default is {@link RetrievalMetrics#NONE}.
+     */
+    public void setMetrics(RetrievalMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Take the buffers that responses are read and unescaped into from this pool; for example, to share a larger or a direct pool between several retrievals.
+     * @param bufferPool - The default is {@link BufferPool#getDefault()} when the response is read.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Resume a retrieval from where it stopped if reading the response fails part way through; for example, when the connection is dropped during a large export.
+     * The request is sent again for the PV of the last event returned and the PVs after it, starting from the time of that event; the events that were already returned are dropped.
+     * Attempts are spaced using an exponential backoff starting at initialBackoffMillis and capped at a minute.
+     * The count of attempts is reset whenever a new event is returned; so a long retrieval can survive several failures.
+     * This applies to getDataForPVs and getDataForPVsAsync; failures of the original request are not retried.
+     * @param maxAttempts - The maximum number of consecutive attempts that do not return a new event; the default, 0, does not resume.
+     * @param initialBackoffMillis - The wait before the first attempt
+     */
+    public void setResumeOnFailure(int maxAttempts, long initialBackoffMillis) {
+        if (maxAttempts < 0 || initialBackoffMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid number of attempts " + maxAttempts + " or backoff " + initialBackoffMillis);
+        }
+        this.maxResumeAttempts = maxAttempts;
+        this.resumeBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * @return The number of response body bytes read from the network so far by this object.
+     */
+    public long getCompressedByteCount() {
+        return compressedBytes.sum();
+    }
+
+    /**
+     * @return The number of response body bytes after inflating them; this is the same as the compressed byte count for responses that are not compressed.
+     */
+    public long getUncompressedByteCount() {
+        return uncompressedBytes.sum();
+    }
+
     private static String convertToUTC(Timestamp time) {
         return URLEncoder.encode(time.toInstant().toString(), StandardCharsets.UTF_8);
     }
 
-    @Override
-    public final GenMsgIterator getDataForPVs(
+    private String buildURL(
             List<String> pvNames,
             Timestamp startTime,
             Timestamp endTime,
@@ -75,23 +202,431 @@ public class RawDataRetrieval extends DataRetrieval {
                 buf.append(otherParams.get(key));
             });
         }
-        String getURL = buf.toString();
+        return buf.toString();
+    }
+
+    /**
+     * Split the PVs into groups of at most maxPVsPerRequest PVs whose URLs are within MAX_URL_LENGTH.
+     */
+    List<List<String>> groupPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        // The length of the URL without the names of the PVs
+        int fixedLength = buildURL(List.of(""), startTime, endTime, useReducedDataSet, otherParams).length();
+        List<List<String>> groups = new ArrayList<List<String>>();
+        List<String> group = new ArrayList<String>();
+        int urlLength = fixedLength;
+        for (String pvName : pvNames) {
+            int pvLength = URLEncoder.encode(pvName, StandardCharsets.UTF_8).length();
+            int addedLength = group.isEmpty() ? pvLength : "&pv=".length() + pvLength;
+            if (!group.isEmpty() && (group.size() >= maxPVsPerRequest || urlLength + addedLength > MAX_URL_LENGTH)) {
+                groups.add(group);
+                group = new ArrayList<String>();
+                urlLength = fixedLength;
+                addedLength = pvLength;
+            }
+            group.add(pvName);
+            urlLength += addedLength;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    private HttpRequest newRequest(String getURL) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(getURL));
+        if (acceptCompressedResponses) {
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        return builder.build();
+    }
+
+    /**
+     * @param sentNanos - The System.nanoTime when the request was sent; for the time to the first byte.
+     */
+    private GenMsgIterator newGenMsgIterator(HttpResponse<InputStream> response, long sentNanos) throws IOException {
+        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse(null);
+        RetrievalMetrics metrics = this.metrics;
+        InputStream body = response.body();
+        if (metrics != RetrievalMetrics.NONE) {
+            body = new FirstByteInputStream(body, sentNanos, metrics);
+        }
+        InputStream is;
+        if (contentEncoding == null) {
+            is = new CountingInputStream(body, compressedBytes, uncompressedBytes);
+        } else {
+            is = new CountingInputStream(
+                    InflatingInputStream.wrap(new CountingInputStream(body, compressedBytes), contentEncoding),
+                    uncompressedBytes);
+        }
+        // The inflating happens on the read ahead thread.
+        if (readAheadDepth > 0) {
+            is = new ReadAheadInputStream(is, readAheadDepth);
+        }
+        InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(
+                is, metrics, bufferPool != null ? bufferPool : BufferPool.getDefault());
+        if (decodeExecutor != null) {
+            return new ParallelGenMsg(strm, decodeExecutor);
+        }
+        return strm;
+    }
+
+    /**
+     * Report the time from sending the request to the first byte of the response body.
+     */
+    private static final class FirstByteInputStream extends FilterInputStream {
+        private final long sentNanos;
+        private final RetrievalMetrics metrics;
+        private boolean reported = false;
+
+        FirstByteInputStream(InputStream is, long sentNanos, RetrievalMetrics metrics) {
+            super(is);
+            this.sentNanos = sentNanos;
+            this.metrics = metrics;
+        }
+
+        private void report(long n) {
+            if (n > 0 && !reported) {
+                reported = true;
+                metrics.onFirstByte(System.nanoTime() - sentNanos);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            report(b >= 0 ? 1 : 0);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            report(n);
+            return n;
+        }
+    }
+
+    private static IOException invalidStatusCode(int statusCode, String getURL) {
+        return new IOException("Invalid status code from server " + statusCode + " when fetching data from " + getURL);
+    }
+
+    @Override
+    public final GenMsgIterator getDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        GenMsgIterator strm = fetchDataForPVs(pvNames, startTime, endTime, useReducedDataSet, otherParams);
+        return resumeOnFailure(strm, pvNames, startTime, endTime, useReducedDataSet, otherParams);
+    }
+
+    /**
+     * Wrap the response in a ResumingGenMsg if resuming is enabled.
+     */
+    private GenMsgIterator resumeOnFailure(
+            GenMsgIterator strm,
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        if (strm == null || maxResumeAttempts == 0) {
+            return strm;
+        }
+        return new ResumingGenMsg(
+                strm,
+                pvNames,
+                startTime,
+                (remainingPVs, resumeTime) ->
+                        fetchDataForPVs(remainingPVs, resumeTime, endTime, useReducedDataSet, otherParams),
+                maxResumeAttempts,
+                resumeBackoffMillis);
+    }
+
+    private GenMsgIterator fetchDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        List<Timestamp> boundaries = timeRangeSplit.split(startTime, endTime, maxConcurrentRequests);
+        if (boundaries.size() > 2) {
+            return getDataForTimeRanges(pvNames, boundaries, useReducedDataSet, otherParams);
+        }
+        List<List<String>> groups = groupPVs(pvNames, startTime, endTime, useReducedDataSet, otherParams);
+        if (groups.size() > 1) {
+            return getDataForPVGroups(groups, startTime, endTime, useReducedDataSet, otherParams);
+        }
+        String getURL = buildURL(pvNames, startTime, endTime, useReducedDataSet, otherParams);
         logger.info("URL to fetch data is " + getURL);
+        RetrievalRequestEvent event = new RetrievalRequestEvent();
         try {
-            HttpRequest request =
-                    HttpRequest.newBuilder().uri(URI.create(getURL)).build();
+            HttpRequest request = newRequest(getURL);
+            event.begin();
+            long sentNanos = System.nanoTime();
             HttpResponse<InputStream> response = this.theClient.send(request, BodyHandlers.ofInputStream());
+            event.end();
+            event.statusCode = response.statusCode();
+            metrics.onResponseHeaders(System.nanoTime() - sentNanos, response.statusCode());
             if (response.statusCode() != 200) {
                 logger.warning("Invalid status code from server " + response.statusCode() + " when fetching data from "
                         + getURL);
+                response.body().close();
                 return null;
             }
-            InputStream is = response.body();
-            return new InputStreamBackedGenMsg(is);
+            return newGenMsgIterator(response, sentNanos);
 
         } catch (Exception ex) {
             logger.log(Level.SEVERE, "Exception fetching data from URL " + getURL, ex);
+        } finally {
+            event.report(getURL, pvNames.size());
         }
         return null;
     }
+
+    private GenMsgIterator getDataForPVGroups(
+            List<List<String>> groups,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        List<String> urls = new ArrayList<String>(groups.size());
+        int[] pvCounts = new int[groups.size()];
+        for (List<String> group : groups) {
+            pvCounts[urls.size()] = group.size();
+            urls.add(buildURL(group, startTime, endTime, useReducedDataSet, otherParams));
+        }
+        return getDataConcurrently(urls, pvCounts, null);
+    }
+
+    /**
+     * Fetch the data for each PV as a sequence of sub-ranges; the boundaries include the start and end times.
+     */
+    private GenMsgIterator getDataForTimeRanges(
+            List<String> pvNames,
+            List<Timestamp> boundaries,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        List<String> urls = new ArrayList<String>(pvNames.size() * (boundaries.size() - 1));
+        for (String pvName : pvNames) {
+            for (int i = 1; i < boundaries.size(); i++) {
+                urls.add(buildURL(
+                        List.of(pvName), boundaries.get(i - 1), boundaries.get(i), useReducedDataSet, otherParams));
+            }
+        }
+        int[] pvCounts = new int[urls.size()];
+        Arrays.fill(pvCounts, 1);
+        return getDataConcurrently(urls, pvCounts, boundaries.get(boundaries.size() - 1));
+    }
+
+    /**
+     * Send the requests concurrently and concatenate the responses in order.
+     * @param pvCounts - The number of PVs in each request
+     * @param endTime - If not null, the responses are sub-ranges of this request; so the overlaps between these are dropped.
+     */
+    private GenMsgIterator getDataConcurrently(List<String> urls, int[] pvCounts, Timestamp endTime) {
+        List<HttpRequest> requests = new ArrayList<HttpRequest>(urls.size());
+        for (String getURL : urls) {
+            requests.add(newRequest(getURL));
+        }
+        logger.info("Fetching data using " + urls.size() + " requests with at most " + maxConcurrentRequests
+                + " outstanding; the first URL is " + urls.get(0));
+        ConcurrentRequests concurrentRequests = new ConcurrentRequests(
+                this.theClient, requests, pvCounts, maxConcurrentRequests, this::newGenMsgIterator, metrics);
+        try {
+            List<ConcatenatedGenMsg.Source> sources = concurrentRequests.sources();
+            ConcatenatedGenMsg ret = endTime != null
+                    ? new ConcatenatedGenMsg(sources, endTime, true)
+                    : new ConcatenatedGenMsg(sources);
+            if (ret.getPayLoadInfo() == null) {
+                // None of the requests returned any data
+                ret.close();
+                return null;
+            }
+            return ret;
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Exception fetching data from URL " + urls.get(0), ex);
+            concurrentRequests.discardAll();
+        }
+        return null;
+    }
+
+    /**
+     * Asynchronous version of getDataForPVs; the request is sent using the HttpClient's sendAsync.
+     * The future completes once the response headers have arrived; errors (including an invalid status code) complete the future exceptionally.
+     * No thread waits for the response body before then; the PayloadInfo and the events are read when the iterator is first used, on the thread that uses it.
+     * Like getDataForPVs, lists of PVs that do not fit in one URL (or in {@link #setConcurrentRequests}'s PVs per request) are split into several requests; the first is sent here and the others when the iterator gets to them.
+     * The time range is not split; and failures part way through the response are resumed as set by {@link #setResumeOnFailure}.
+     * Note that reading events from the returned iterator blocks on the response body; use {@link #publishDataForPVs} to avoid blocking.
+     * @param pvNames The names of the pvs
+     * @param startTime Start time of request
+     * @param endTime End time of request
+     * @param useReducedDataSet - If true, use the server defined sparsification operator...
+     * @param otherParams - Any other name/value pairs that are passed onto the server.
+     * @return A future for an iterator over the data.
+     */
+    public CompletableFuture<GenMsgIterator> getDataForPVsAsync(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        List<List<String>> groups = groupPVs(pvNames, startTime, endTime, useReducedDataSet, otherParams);
+        List<String> firstGroup = groups.get(0);
+        String getURL = buildURL(firstGroup, startTime, endTime, useReducedDataSet, otherParams);
+        logger.fine("URL to fetch data asynchronously is " + getURL);
+        HttpRequest request = newRequest(getURL);
+        RetrievalMetrics metrics = this.metrics;
+        RetrievalRequestEvent event = new RetrievalRequestEvent();
+        event.begin();
+        long sentNanos = System.nanoTime();
+        return this.theClient
+                .sendAsync(request, BodyHandlers.ofInputStream())
+                .whenComplete((response, ex) -> {
+                    event.end();
+                    if (response != null) {
+                        metrics.onResponseHeaders(System.nanoTime() - sentNanos, response.statusCode());
+                        event.statusCode = response.statusCode();
+                    }
+                    event.report(getURL, firstGroup.size());
+                })
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        discardBody(response);
+                        throw new CompletionException(invalidStatusCode(response.statusCode(), getURL));
+                    }
+                    GenMsgIterator strm = new LazyGenMsg(responseSource(
+                            response, sentNanos, groups, startTime, endTime, useReducedDataSet, otherParams));
+                    return resumeOnFailure(strm, pvNames, startTime, endTime, useReducedDataSet, otherParams);
+                });
+    }
+
+    /**
+     * The response for the first group of PVs followed by the requests for the other groups; these are sent when the iterator gets to them.
+     */
+    private ConcatenatedGenMsg.Source responseSource(
+            HttpResponse<InputStream> response,
+            long sentNanos,
+            List<List<String>> groups,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams) {
+        ConcatenatedGenMsg.Source firstSource = new ConcatenatedGenMsg.Source() {
+            @Override
+            public GenMsgIterator open() throws IOException {
+                return newGenMsgIterator(response, sentNanos);
+            }
+
+            @Override
+            public void discard() {
+                discardBody(response);
+            }
+        };
+        if (groups.size() == 1) {
+            return firstSource;
+        }
+        List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>(groups.size());
+        sources.add(firstSource);
+        for (List<String> group : groups.subList(1, groups.size())) {
+            sources.add(() -> fetchDataForPVs(group, startTime, endTime, useReducedDataSet, otherParams));
+        }
+        return new ConcatenatedGenMsg.Source() {
+            @Override
+            public GenMsgIterator open() throws IOException {
+                return new ConcatenatedGenMsg(sources);
+            }
+
+            @Override
+            public void discard() {
+                firstSource.discard();
+            }
+        };
+    }
+
+    private static void discardBody(HttpResponse<InputStream> response) {
+        try {
+            response.body().close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Exception closing the response body", ex);
+        }
+    }
+
+    /**
+     * Get the data for the PVs as a stream of EventBatches with demand driven backpressure.
+     * Each subscription sends its own request; the response is decoded as it arrives and is read from the socket only as fast as the subscriber requests batches.
+     * No thread is blocked waiting for data. Errors, including an invalid status code, are signalled using onError.
+     * Batches never span chunks; use {@link EventBatch#getPayloadInfo()} to determine the PV of each batch.
+     * @param pvNames The names of the pvs
+     * @param startTime Start time of request
+     * @param endTime End time of request
+     * @param useReducedDataSet - If true, use the server defined sparsification operator...
+     * @param otherParams - Any other name/value pairs that are passed onto the server.
+     * @param batchSize - The maximum number of events in each batch.
+     * @return A publisher of the data.
+     */
+    public Flow.Publisher<EventBatch> publishDataForPVs(
+            List<String> pvNames,
+            Timestamp startTime,
+            Timestamp endTime,
+            boolean useReducedDataSet,
+            Map<String, String> otherParams,
+            int batchSize) {
+        String getURL = buildURL(pvNames, startTime, endTime, useReducedDataSet, otherParams);
+        return subscriber -> {
+            EventBatchSubscription subscription = new EventBatchSubscription(
+                    subscriber, batchSize, bufferPool != null ? bufferPool : BufferPool.getDefault());
+            subscriber.onSubscribe(subscription);
+            logger.fine("URL to publish data from is " + getURL);
+            HttpRequest request;
+            try {
+                request = HttpRequest.newBuilder().uri(URI.create(getURL)).build();
+            } catch (IllegalArgumentException ex) {
+                subscription.fail(ex);
+                return;
+            }
+            RetrievalMetrics metrics = this.metrics;
+            RetrievalRequestEvent event = new RetrievalRequestEvent();
+            event.begin();
+            long sentNanos = System.nanoTime();
+            this.theClient
+                    .sendAsync(request, responseInfo -> {
+                        event.end();
+                        event.statusCode = responseInfo.statusCode();
+                        event.report(getURL, pvNames.size());
+                        metrics.onResponseHeaders(System.nanoTime() - sentNanos, responseInfo.statusCode());
+                        if (responseInfo.statusCode() != 200) {
+                            subscription.fail(invalidStatusCode(responseInfo.statusCode(), getURL));
+                            return BodySubscribers.discarding();
+                        }
+                        String contentEncoding = responseInfo
+                                .headers()
+                                .firstValue("Content-Encoding")
+                                .orElse("identity");
+                        if (!contentEncoding.equalsIgnoreCase("identity")) {
+                            // We did not ask for this
+                            subscription.fail(new IOException("Unsupported content encoding " + contentEncoding));
+                            return BodySubscribers.discarding();
+                        }
+                        return subscription;
+                    })
+                    .whenComplete((response, ex) -> {
+                        if (ex != null && event.statusCode == 0) {
+                            // We did not get as far as the response headers
+                            event.report(getURL, pvNames.size());
+                        }
+                        if (ex != null) {
+                            Throwable cause =
+                                    ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                            subscription.fail(cause);
+                        }
+                    });
+        };
+    }
 }
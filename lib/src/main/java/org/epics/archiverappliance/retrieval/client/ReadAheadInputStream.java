@@ -0,0 +1,187 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Read an input stream on a separate thread into a small ring of buffers; so that the network transfer overlaps with decoding.
+ * The reader thread blocks when all the buffers are full; this bounds the memory used and applies backpressure to the server.
+ * Errors from the underlying stream are reported by read once the data before the error has been consumed.
+ * Only the reader thread uses the underlying stream; it also closes it on exit, and close waits for this.
+ * This matters for streams with state that is reused once closed; for example, the pooled Inflater in InflatingInputStream.
+ * Use this with InputStreamBackedGenMsg; for example, using {@link RawDataRetrieval#setReadAheadDepth(int)}.
+ * @author mshankar
+ *
+ */
+public class ReadAheadInputStream extends InputStream {
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final ThreadFactory DEFAULT_THREAD_FACTORY = r -> {
+        Thread t = new Thread(r, "PB read ahead");
+        t.setDaemon(true);
+        return t;
+    };
+
+    private static final class Chunk {
+        final byte[] data;
+        int length;
+        IOException error;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+
+    private final InputStream is;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread reader;
+    private Chunk current = null;
+    private int currentPos = 0;
+    private boolean eof = false;
+    private volatile boolean closed = false;
+    private volatile IOException closeError = null;
+
+    /**
+     * @param is - The stream to read ahead of the consumer
+     * @param depth - The number of buffers in the ring
+     */
+    public ReadAheadInputStream(InputStream is, int depth) {
+        this(is, depth, DEFAULT_BUFFER_SIZE, DEFAULT_THREAD_FACTORY);
+    }
+
+    /**
+     * @param is - The stream to read ahead of the consumer
+     * @param depth - The number of buffers in the ring
+     * @param bufferSize - The size of each buffer
+     * @param threadFactory - Creates the reader thread; on newer JVMs, this could be a virtual thread factory.
+     */
+    public ReadAheadInputStream(InputStream is, int depth, int bufferSize, ThreadFactory threadFactory) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("Read ahead depth has to be positive " + depth);
+        }
+        this.is = is;
+        this.free = new ArrayBlockingQueue<Chunk>(depth);
+        this.filled = new ArrayBlockingQueue<Chunk>(depth);
+        for (int i = 0; i < depth; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+        this.reader = threadFactory.newThread(this::readLoop);
+        this.reader.start();
+    }
+
+    private void readLoop() {
+        try {
+            while (!closed) {
+                Chunk chunk = free.take();
+                try {
+                    chunk.length = is.read(chunk.data);
+                    chunk.error = null;
+                } catch (IOException ex) {
+                    chunk.length = -1;
+                    chunk.error = ex;
+                } catch (RuntimeException ex) {
+                    chunk.length = -1;
+                    chunk.error = new IOException("Exception reading ahead", ex);
+                }
+                filled.put(chunk);
+                if (chunk.length < 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // We have been closed
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ex) {
+                closeError = ex;
+            }
+        }
+    }
+
+    /**
+     * Make sure current has data.
+     * @return false at the end of the stream.
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (current == null || currentPos >= current.length) {
+            if (eof) {
+                return false;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            Chunk chunk;
+            try {
+                chunk = filled.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for data");
+            }
+            if (chunk.length < 0) {
+                eof = true;
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                return false;
+            }
+            current = chunk;
+            currentPos = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        return current.data[currentPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - currentPos);
+        System.arraycopy(current.data, currentPos, b, off, count);
+        currentPos += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current == null ? 0 : current.length - currentPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException ex) {
+            // The reader still closes the stream when it exits
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the reader to exit");
+        }
+        if (closeError != null) {
+            throw closeError;
+        }
+    }
+}
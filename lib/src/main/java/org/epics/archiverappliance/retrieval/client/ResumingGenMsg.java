@@ -0,0 +1,301 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resume a retrieval that fails part way through the response; for example, when the connection is dropped during a large export.
+ * The PV and the time of the last event returned are tracked; on an IOException, the request is sent again for that PV starting from that time and for the PVs after it from the original start time.
+ * The events of that PV up to and including the time of the last event are dropped from the new response; like the server, this includes the last event before the start time.
+ * Note that if several events of the PV have the same timestamp as the last event, the ones that were not returned before the failure are also dropped.
+ * Attempts are spaced using an exponential backoff; after maxAttempts consecutive attempts that do not return a new event, the last exception is thrown.
+ * Interrupts are not retried.
+ * @author mshankar
+ *
+ */
+final class ResumingGenMsg implements GenMsgIterator {
+    private static final Logger logger = Logger.getLogger(ResumingGenMsg.class.getName());
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    /**
+     * Send the request again for these PVs from this time; this returns null if the request fails.
+     */
+    interface Resume {
+        GenMsgIterator open(List<String> pvNames, Timestamp startTime);
+    }
+
+    private final List<String> pvNames;
+    private final Timestamp startTime;
+    private final Resume resume;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private GenMsgIterator current;
+    private Iterator<EpicsMessage> currentIt;
+    private EpicsMessage nextMsg = null;
+    private InfoChangeHandler infoChangeHandler = null;
+    // The index in pvNames of the PV of the last event returned; the PVs before this are complete.
+    private int pvIndex = 0;
+    private String lastPV = null;
+    private long lastEpochSeconds;
+    private int lastNanos;
+    // After a resume, the events of this PV that are not after the last event are dropped.
+    private String overlapPV = null;
+    private int failedAttempts = 0;
+    private int resumeCount = 0;
+
+    /**
+     * @param strm - The response to the original request
+     * @param pvNames - The PVs of the original request in the order in which the server returns them
+     * @param startTime - The start time of the original request
+     * @param resume - Send the request again
+     * @param maxAttempts - The maximum number of consecutive attempts that do not return a new event
+     * @param initialBackoffMillis - The wait before the first attempt; this doubles for each consecutive attempt up to a minute.
+     */
+    ResumingGenMsg(
+            GenMsgIterator strm,
+            List<String> pvNames,
+            Timestamp startTime,
+            Resume resume,
+            int maxAttempts,
+            long initialBackoffMillis) {
+        this.current = strm;
+        this.currentIt = strm.iterator();
+        this.pvNames = pvNames;
+        this.startTime = startTime;
+        this.resume = resume;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * @return The number of times the request was sent again
+     */
+    int getResumeCount() {
+        return resumeCount;
+    }
+
+    private boolean isOverlap(String pvName, long epochSeconds, int nanos) {
+        return overlapPV != null
+                && overlapPV.equals(pvName)
+                && (epochSeconds < lastEpochSeconds || (epochSeconds == lastEpochSeconds && nanos <= lastNanos));
+    }
+
+    private void setLast(String pvName, long epochSeconds, int nanos) {
+        if (!pvName.equals(lastPV)) {
+            int i = pvNames.subList(pvIndex, pvNames.size()).indexOf(pvName);
+            if (i >= 0) {
+                pvIndex += i;
+            }
+            lastPV = pvName;
+        }
+        lastEpochSeconds = epochSeconds;
+        lastNanos = nanos;
+        overlapPV = null;
+        failedAttempts = 0;
+    }
+
+    private static IOException causeOf(RuntimeIOException ex) {
+        return ex.getCause() instanceof IOException cause ? cause : new IOException(ex);
+    }
+
+    /**
+     * Close the failed response and send the request again, waiting between attempts; throw the exception if we run out of attempts.
+     */
+    private void resumeAfter(IOException ex) throws IOException {
+        if (ex instanceof InterruptedIOException) {
+            throw ex;
+        }
+        try {
+            current.close();
+        } catch (IOException closeEx) {
+            logger.log(Level.FINE, "Exception closing the failed response", closeEx);
+        }
+        current = null;
+        currentIt = null;
+        while (true) {
+            if (failedAttempts >= maxAttempts) {
+                throw ex;
+            }
+            long backoffMillis = Math.min(initialBackoffMillis << Math.min(failedAttempts, 20), MAX_BACKOFF_MILLIS);
+            failedAttempts++;
+            logger.log(
+                    Level.WARNING,
+                    "Resuming the retrieval from " + (lastPV != null ? lastPV : pvNames.get(0)) + " in "
+                            + backoffMillis + "ms; attempt " + failedAttempts + " of " + maxAttempts,
+                    ex);
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted resuming the retrieval");
+            }
+            GenMsgIterator strm;
+            try {
+                strm = reopen();
+            } catch (IOException reopenEx) {
+                ex = reopenEx;
+                continue;
+            }
+            resumeCount++;
+            current = strm;
+            currentIt = strm.iterator();
+            overlapPV = lastPV;
+            if (infoChangeHandler != null) {
+                strm.onInfoChange(infoChangeHandler);
+                infoChangeHandler.handleInfoChange(strm.getPayLoadInfo());
+            }
+            return;
+        }
+    }
+
+    private ConcatenatedGenMsg.Source resumeSource(List<String> pvNames, Timestamp from) {
+        return () -> {
+            GenMsgIterator strm = resume.open(pvNames, from);
+            if (strm == null) {
+                throw new IOException("Request failed resuming the retrieval of " + pvNames.get(0) + " from " + from);
+            }
+            return strm;
+        };
+    }
+
+    /**
+     * Send the request for the PV of the last event from the time of that event; the PVs after it are sent in a separate request from the original start time.
+     */
+    private GenMsgIterator reopen() throws IOException {
+        if (lastPV == null) {
+            return resumeSource(pvNames, startTime).open();
+        }
+        Timestamp from = new Timestamp(lastEpochSeconds * 1000);
+        from.setNanos(lastNanos);
+        ConcatenatedGenMsg.Source resumePV = resumeSource(List.of(lastPV), from);
+        if (pvIndex == pvNames.size() - 1) {
+            return resumePV.open();
+        }
+        return new ConcatenatedGenMsg(
+                List.of(resumePV, resumeSource(pvNames.subList(pvIndex + 1, pvNames.size()), startTime)));
+    }
+
+    private boolean readAhead() throws IOException {
+        while (nextMsg == null && current != null) {
+            EpicsMessage msg;
+            try {
+                if (!currentIt.hasNext()) {
+                    return false;
+                }
+                msg = currentIt.next();
+            } catch (RuntimeIOException ex) {
+                resumeAfter(causeOf(ex));
+                continue;
+            }
+            String pvName = msg.getPayloadInfo().getPvname();
+            if (!isOverlap(pvName, msg.getEpochSeconds(), msg.getNanos())) {
+                nextMsg = msg;
+                setLast(pvName, msg.getEpochSeconds(), msg.getNanos());
+            }
+        }
+        return nextMsg != null;
+    }
+
+    @Override
+    public PayloadInfo getPayLoadInfo() {
+        return current != null ? current.getPayLoadInfo() : null;
+    }
+
+    @Override
+    public void onInfoChange(InfoChangeHandler handler) {
+        this.infoChangeHandler = handler;
+        if (current != null) {
+            current.onInfoChange(handler);
+        }
+    }
+
+    @Override
+    public Iterator<EpicsMessage> iterator() {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return readAhead();
+                } catch (IOException ex) {
+                    throw new RuntimeIOException("Exception resuming the retrieval", ex);
+                }
+            }
+
+            @Override
+            public EpicsMessage next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("End of file");
+                }
+                EpicsMessage ret = nextMsg;
+                nextMsg = null;
+                return ret;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * If the iterator has read an event ahead, that event is returned in a batch by itself.
+     */
+    @Override
+    public int nextBatch(EventBatch batch) throws IOException {
+        if (nextMsg != null) {
+            batch.reset(nextMsg.getPayloadInfo());
+            batch.add(nextMsg);
+            nextMsg = null;
+            return 1;
+        }
+        while (current != null) {
+            int size;
+            try {
+                size = current.nextBatch(batch);
+            } catch (IOException ex) {
+                resumeAfter(ex);
+                continue;
+            } catch (RuntimeIOException ex) {
+                resumeAfter(causeOf(ex));
+                continue;
+            }
+            if (size == 0) {
+                return 0;
+            }
+            String pvName = batch.getPayloadInfo().getPvname();
+            long[] epochSeconds = batch.getEpochSeconds();
+            int[] nanos = batch.getNanos();
+            int overlap = 0;
+            while (overlap < size && isOverlap(pvName, epochSeconds[overlap], nanos[overlap])) {
+                overlap++;
+            }
+            if (overlap == size) {
+                continue;
+            }
+            if (overlap > 0) {
+                batch.dropFirst(overlap);
+                size -= overlap;
+            }
+            setLast(pvName, epochSeconds[size - 1], nanos[size - 1]);
+            return size;
+        }
+        return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+            currentIt = null;
+        }
+    }
+}
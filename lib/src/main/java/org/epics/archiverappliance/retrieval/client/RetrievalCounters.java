@@ -0,0 +1,181 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RetrievalMetrics that add up the numbers using LongAdders; this is cheap enough to share between all the retrievals of an application.
+ * The getters return the totals so far; these can be polled by a metrics library; for example, as function counters.
+ * @author mshankar
+ *
+ */
+public class RetrievalCounters implements RetrievalMetrics {
+    private final LongAdder responses = new LongAdder();
+    private final LongAdder responseHeaderNanos = new LongAdder();
+    private final LongAccumulator maxResponseHeaderNanos = new LongAccumulator(Math::max, 0);
+    // Indexed by the status code / 100; so 2 is for the 2xx codes.
+    private final LongAdder[] responsesByStatusClass = new LongAdder[6];
+    private final LongAdder firstBytes = new LongAdder();
+    private final LongAdder firstByteNanos = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder linesFramed = new LongAdder();
+    private final LongAdder escapeSequences = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder eventsParsed = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+
+    public RetrievalCounters() {
+        for (int i = 0; i < responsesByStatusClass.length; i++) {
+            responsesByStatusClass[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void onResponseHeaders(long nanos, int statusCode) {
+        responses.increment();
+        responseHeaderNanos.add(nanos);
+        maxResponseHeaderNanos.accumulate(nanos);
+        int statusClass = statusCode / 100;
+        if (statusClass >= 0 && statusClass < responsesByStatusClass.length) {
+            responsesByStatusClass[statusClass].increment();
+        }
+    }
+
+    @Override
+    public void onFirstByte(long nanos) {
+        firstBytes.increment();
+        firstByteNanos.add(nanos);
+    }
+
+    @Override
+    public void onBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    @Override
+    public void onLinesFramed(long lines) {
+        linesFramed.add(lines);
+    }
+
+    @Override
+    public void onEscapeSequences(long count) {
+        escapeSequences.add(count);
+    }
+
+    @Override
+    public void onChunk(PayloadInfo info) {
+        chunks.increment();
+    }
+
+    @Override
+    public void onParse(long events, long nanos) {
+        eventsParsed.add(events);
+        parseNanos.add(nanos);
+    }
+
+    @Override
+    public void onParseFailure(PayloadInfo info) {
+        parseFailures.increment();
+    }
+
+    /**
+     * @return The number of responses whose headers have arrived, regardless of the status code.
+     */
+    public long getResponseCount() {
+        return responses.sum();
+    }
+
+    /**
+     * @param statusCode - Any status code in the class; for example, 200 or 500.
+     * @return The number of responses with a status code in the same class (2xx, 4xx...) as this one.
+     */
+    public long getResponseCount(int statusCode) {
+        int statusClass = statusCode / 100;
+        if (statusClass < 0 || statusClass >= responsesByStatusClass.length) {
+            return 0;
+        }
+        return responsesByStatusClass[statusClass].sum();
+    }
+
+    /**
+     * @return The total of the times from sending the requests to their response headers
+     */
+    public long getResponseHeaderNanos() {
+        return responseHeaderNanos.sum();
+    }
+
+    /**
+     * @return The longest time from sending a request to its response headers
+     */
+    public long getMaxResponseHeaderNanos() {
+        return maxResponseHeaderNanos.get();
+    }
+
+    /**
+     * @return The number of responses whose first body byte has been read
+     */
+    public long getFirstByteCount() {
+        return firstBytes.sum();
+    }
+
+    /**
+     * @return The total of the times from sending the requests to the first byte of their response bodies
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getLinesFramed() {
+        return linesFramed.sum();
+    }
+
+    public long getEscapeSequences() {
+        return escapeSequences.sum();
+    }
+
+    /**
+     * @return The number of chunks; that is, the number of PayloadInfo lines.
+     */
+    public long getChunkCount() {
+        return chunks.sum();
+    }
+
+    public long getEventsParsed() {
+        return eventsParsed.sum();
+    }
+
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    public long getParseFailures() {
+        return parseFailures.sum();
+    }
+
+    /**
+     * Set all the counters back to 0; note that updates that happen during this may be lost.
+     */
+    public void reset() {
+        responses.reset();
+        responseHeaderNanos.reset();
+        maxResponseHeaderNanos.reset();
+        for (LongAdder counter : responsesByStatusClass) {
+            counter.reset();
+        }
+        firstBytes.reset();
+        firstByteNanos.reset();
+        bytesRead.reset();
+        linesFramed.reset();
+        escapeSequences.reset();
+        chunks.reset();
+        eventsParsed.reset();
+        parseNanos.reset();
+        parseFailures.reset();
+    }
+}
@@ -0,0 +1,64 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+
+/**
+ * A listener for the numbers that show where the time goes in a retrieval; see {@link RetrievalCounters} for an implementation.
+ * The arguments are primitives or objects that already exist; so nothing is allocated to report these.
+ * The counts from decoding are accumulated in the iterator and reported in bulk; at chunk boundaries, every few thousand lines, at the end of the stream and on close.
+ * Methods may be called from several threads at the same time (for example, from the HttpClient's threads and from the executor of a ParallelGenMsg); so implementations must be thread safe.
+ * All the methods do nothing by default; to bridge into a metrics library, override the methods of interest and update the library's counters and timers.
+ * @author mshankar
+ *
+ */
+public interface RetrievalMetrics {
+    /**
+     * A listener that ignores everything; this is the default.
+     */
+    RetrievalMetrics NONE = new RetrievalMetrics() {};
+
+    /**
+     * The response headers of a request have arrived.
+     * @param nanos - The time from sending the request
+     * @param statusCode - The HTTP status code
+     */
+    default void onResponseHeaders(long nanos, int statusCode) {}
+
+    /**
+     * The first byte of a response body has been read.
+     * @param nanos - The time from sending the request
+     */
+    default void onFirstByte(long nanos) {}
+
+    /**
+     * @param bytes - The number of bytes read from the stream since the last call; for compressed responses, this is after inflating them.
+     */
+    default void onBytesRead(long bytes) {}
+
+    /**
+     * @param lines - The number of lines framed since the last call; this includes the PayloadInfo lines and the empty lines between chunks.
+     */
+    default void onLinesFramed(long lines) {}
+
+    /**
+     * @param count - The number of escape sequences unescaped since the last call
+     */
+    default void onEscapeSequences(long count) {}
+
+    /**
+     * A new chunk has started; this is called for the first chunk as well.
+     */
+    default void onChunk(PayloadInfo info) {}
+
+    /**
+     * @param events - The number of events decoded since the last call
+     * @param nanos - The time spent decoding these; for batches, this includes framing the lines of the batch.
+     */
+    default void onParse(long events, long nanos) {}
+
+    /**
+     * An event could not be parsed and was skipped.
+     * @param info - The PayloadInfo of the chunk with the event
+     */
+    default void onParseFailure(PayloadInfo info) {}
+}
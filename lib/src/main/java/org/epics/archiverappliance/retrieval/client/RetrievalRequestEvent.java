@@ -0,0 +1,42 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A JFR event for each HTTP request sent by RawDataRetrieval; the duration is the time from sending the request to its response headers.
+ * The response body is read afterwards as the events are consumed; see {@link ChunkDecodeEvent} for that.
+ * @author mshankar
+ *
+ */
+@Name(RetrievalRequestEvent.NAME)
+@Label("Retrieval Request")
+@Category({"EPICS Archiver Appliance", "Retrieval Client"})
+@Description("An HTTP request for the data of one or more PVs")
+final class RetrievalRequestEvent extends Event {
+    static final String NAME = "org.epics.archiverappliance.retrieval.client.Request";
+
+    @Label("URL")
+    String url;
+
+    @Label("PV Count")
+    int pvCount;
+
+    @Label("Status Code")
+    @Description("The HTTP status code; 0 if the request failed before the response headers arrived")
+    int statusCode;
+
+    /**
+     * Commit this event if it is enabled and above the threshold; call end when the response headers arrive.
+     */
+    void report(String url, int pvCount) {
+        if (shouldCommit()) {
+            this.url = url;
+            this.pvCount = pvCount;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How {@link RawDataRetrieval} splits the time range of a request into sub-ranges that are fetched concurrently.
+ * The appliance partitions the data for a PV by year (see {@code PayloadInfo.year}) and further by time within each storage stage.
+ * The sub-ranges are aligned to these partitions in UTC so that each request reads as few partitions as possible.
+ * @author mshankar
+ *
+ */
+public enum TimeRangeSplit {
+    /**
+     * Fetch the whole time range in one request; this is the default.
+     */
+    NONE,
+    /**
+     * Split at the start of each year.
+     */
+    YEAR,
+    /**
+     * Split at the start of each month.
+     */
+    MONTH,
+    /**
+     * Split into one sub-range per concurrent request; the sub-ranges are a whole number of days.
+     */
+    ADAPTIVE;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * @param startTime - The start of the time range
+     * @param endTime - The end of the time range
+     * @param maxConcurrentRequests - The number of sub-ranges for ADAPTIVE.
+     * @return The boundaries of the sub-ranges; this starts with the start time and ends with the end time.
+     */
+    List<Timestamp> split(Timestamp startTime, Timestamp endTime, int maxConcurrentRequests) {
+        List<Timestamp> boundaries = new ArrayList<Timestamp>();
+        boundaries.add(startTime);
+        Instant start = startTime.toInstant();
+        Instant end = endTime.toInstant();
+        if (this != NONE && start.isBefore(end)) {
+            ZonedDateTime boundary = start.atZone(ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+            long days = 1;
+            switch (this) {
+                case YEAR -> boundary = boundary.withDayOfYear(1);
+                case MONTH -> boundary = boundary.withDayOfMonth(1);
+                default -> {
+                    long rangeDays = Duration.between(start, end).getSeconds() / SECONDS_PER_DAY + 1;
+                    days = Math.max(1, (rangeDays + maxConcurrentRequests - 1) / Math.max(1, maxConcurrentRequests));
+                }
+            }
+            while (true) {
+                boundary = switch (this) {
+                    case YEAR -> boundary.plusYears(1);
+                    case MONTH -> boundary.plusMonths(1);
+                    default -> boundary.plusDays(days);
+                };
+                Instant next = boundary.toInstant();
+                if (!next.isBefore(end)) {
+                    break;
+                }
+                boundaries.add(Timestamp.from(next));
+            }
+        }
+        boundaries.add(endTime);
+        return boundaries;
+    }
+}
@@ -0,0 +1,310 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the asynchronous API on RawDataRetrieval against a local server that returns the sample data.
+ * @author mshankar
+ *
+ */
+public class AsyncRetrievalTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+    private SampleDataServer server;
+    private RawDataRetrieval retrieval;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SampleDataServer();
+        retrieval = new RawDataRetrieval(server.getDataURL());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    /**
+     * Collects the batches; requests one batch at a time unless told otherwise.
+     */
+    private static class BatchCollector implements Flow.Subscriber<EventBatch> {
+        final List<EventBatch> batches = new ArrayList<EventBatch>();
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        private final boolean requestMore;
+        private final long initialRequest;
+        Flow.Subscription subscription;
+
+        BatchCollector(boolean requestMore) {
+            this(requestMore, 1);
+        }
+
+        BatchCollector(boolean requestMore, long initialRequest) {
+            this.requestMore = requestMore;
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(EventBatch item) {
+            synchronized (batches) {
+                batches.add(item);
+            }
+            if (requestMore) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(null);
+        }
+
+        int batchCount() {
+            synchronized (batches) {
+                return batches.size();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncIterator() throws Exception {
+        try (GenMsgIterator strm = retrieval
+                .getDataForPVsAsync(List.of("onedaysdbrdouble"), START, END, false, null)
+                .get(60, TimeUnit.SECONDS)) {
+            int eventCount = 0;
+            for (EpicsMessage msg : strm) {
+                msg.getTimestamp();
+                eventCount++;
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    /**
+     * The future should complete when the headers arrive; the body is read by the thread that uses the iterator.
+     */
+    @Test
+    public void testAsyncIteratorDoesNotWaitForTheBody() throws Exception {
+        server.bodyDelayMillis = 3000;
+        long start = System.currentTimeMillis();
+        try (GenMsgIterator strm = retrieval
+                .getDataForPVsAsync(List.of("onedaysdbrdouble"), START, END, false, null)
+                .get(2, TimeUnit.SECONDS)) {
+            assertTrue("The body has not arrived yet", System.currentTimeMillis() - start < 3000);
+            assertEquals("onedaysdbrdouble", strm.getPayLoadInfo().getPvname());
+            int eventCount = 0;
+            for (EpicsMessage msg : strm) {
+                msg.getTimestamp();
+                eventCount++;
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    /**
+     * PVs are split into several requests like getDataForPVs; the later requests are sent as the iterator gets to them.
+     */
+    @Test
+    public void testAsyncIteratorForPVGroups() throws Exception {
+        retrieval.setConcurrentRequests(1, 1);
+        List<String> requested = List.of("SCALAR_DOUBLE_sampledata", "SCALAR_INT_sampledata", "onedaysdbrdouble");
+        List<String> pvNames = new ArrayList<String>();
+        int eventCount = 0;
+        try (GenMsgIterator strm = retrieval
+                .getDataForPVsAsync(requested, START, END, false, null)
+                .get(60, TimeUnit.SECONDS)) {
+            assertEquals("Only the first request is sent", 1, server.requestCount.get());
+            for (EpicsMessage msg : strm) {
+                String pvName = msg.getPayloadInfo().getPvname();
+                if (pvNames.isEmpty() || !pvNames.get(pvNames.size() - 1).equals(pvName)) {
+                    pvNames.add(pvName);
+                }
+                eventCount++;
+            }
+        }
+        assertEquals(requested, pvNames);
+        assertEquals(3, server.requestCount.get());
+        assertEquals(86400 + 2 * 366, eventCount);
+    }
+
+    @Test
+    public void testAsyncIteratorError() throws Exception {
+        try {
+            retrieval
+                    .getDataForPVsAsync(List.of("nonexistentpv"), START, END, false, null)
+                    .get(60, TimeUnit.SECONDS);
+            fail("Expecting an exception for a PV that does not exist");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+            assertTrue(ex.getCause().getMessage(), ex.getCause().getMessage().contains("404"));
+        }
+        assertNull(retrieval.getDataForPV("nonexistentpv", START, END));
+    }
+
+    @Test
+    public void testPublisher() throws Exception {
+        for (String pvName : new String[] {
+            "onedaysdbrdouble",
+            "multipleChunksInSameYear",
+            "multipleChunksOfRandomSizeInSameYear",
+            "WAVEFORM_DOUBLE_sampledata",
+            "SCALAR_STRING_sampledata"
+        }) {
+            List<Long> expected = new ArrayList<Long>();
+            try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/" + pvName);
+                    InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+                for (EpicsMessage msg : is) {
+                    expected.add(msg.getEpochSeconds() * 1_000_000_000L + msg.getNanos());
+                }
+            }
+            BatchCollector collector = new BatchCollector(true);
+            retrieval
+                    .publishDataForPVs(List.of(pvName), START, END, false, null, 100)
+                    .subscribe(collector);
+            collector.done.get(60, TimeUnit.SECONDS);
+            List<Long> actual = new ArrayList<Long>();
+            for (EventBatch batch : collector.batches) {
+                assertTrue("Batch is larger than its capacity", batch.size() <= 100);
+                for (int i = 0; i < batch.size(); i++) {
+                    actual.add(batch.getEpochSeconds()[i] * 1_000_000_000L + batch.getNanos()[i]);
+                }
+            }
+            assertEquals("Events for " + pvName, expected, actual);
+        }
+    }
+
+    @Test
+    public void testPublisherForMultiplePVs() throws Exception {
+        BatchCollector collector = new BatchCollector(true);
+        List<String> requested = List.of("SCALAR_DOUBLE_sampledata", "SCALAR_INT_sampledata");
+        retrieval.publishDataForPVs(requested, START, END, false, null, 1000).subscribe(collector);
+        collector.done.get(60, TimeUnit.SECONDS);
+        List<String> pvNames = new ArrayList<String>();
+        for (EventBatch batch : collector.batches) {
+            String pvName = batch.getPayloadInfo().getPvname();
+            if (pvNames.isEmpty() || !pvNames.get(pvNames.size() - 1).equals(pvName)) {
+                pvNames.add(pvName);
+            }
+        }
+        assertEquals(2, pvNames.size());
+    }
+
+    @Test
+    public void testPublisherBackpressure() throws Exception {
+        BatchCollector collector = new BatchCollector(false);
+        retrieval
+                .publishDataForPVs(List.of("onedaysdbrdouble"), START, END, false, null, 10)
+                .subscribe(collector);
+        Thread.sleep(500);
+        assertEquals("We requested only one batch", 1, collector.batchCount());
+        collector.subscription.request(5);
+        Thread.sleep(500);
+        assertEquals("We requested six batches in all", 6, collector.batchCount());
+        collector.subscription.cancel();
+        assertTrue("Cancelling should not complete the subscriber", !collector.done.isDone());
+    }
+
+    /**
+     * Cancelling should return the line buffer of the decoder to the pool.
+     */
+    @Test
+    public void testPublisherCancelReleasesBuffers() throws Exception {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024, false);
+        retrieval.setBufferPool(pool);
+        BatchCollector collector = new BatchCollector(false);
+        retrieval
+                .publishDataForPVs(List.of("onedaysdbrdouble"), START, END, false, null, 10)
+                .subscribe(collector);
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (collector.batchCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, collector.batchCount());
+        assertEquals("The line buffer is in use", 1, pool.getAcquireCount());
+        assertEquals("The line buffer is in use", 0, pool.getReleaseCount());
+        collector.subscription.cancel();
+        // This is done by the drain loop; which may be running on the HttpClient's thread.
+        while (pool.getReleaseCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("The line buffer is returned on cancel", 1, pool.getReleaseCount());
+        assertTrue("Cancelling should not complete the subscriber", !collector.done.isDone());
+    }
+
+    /**
+     * A subscriber that requests everything up front should be completed without another request.
+     */
+    @Test
+    public void testPublisherUnboundedRequest() throws Exception {
+        for (String pvName : new String[] {"onedaysdbrdouble", "multipleChunksInSameYear"}) {
+            BatchCollector collector = new BatchCollector(false, Long.MAX_VALUE);
+            retrieval
+                    .publishDataForPVs(List.of(pvName), START, END, false, null, 1000)
+                    .subscribe(collector);
+            collector.done.get(60, TimeUnit.SECONDS);
+            int eventCount = 0;
+            for (EventBatch batch : collector.batches) {
+                eventCount += batch.size();
+            }
+            assertEquals("Events for " + pvName, pvName.equals("onedaysdbrdouble") ? 86400 : 366, eventCount);
+        }
+    }
+
+    /**
+     * A subscriber that requests exactly the number of batches in the response should be completed after the last one.
+     * For onedaysdbrdouble, the last batch is full; so it can be sent before the end of the response has arrived.
+     * multipleChunksInSameYear has one event per chunk and ends with a chunk without events.
+     */
+    @Test
+    public void testPublisherExactDemand() throws Exception {
+        for (String pvName : new String[] {"onedaysdbrdouble", "multipleChunksInSameYear"}) {
+            int batchCount = pvName.equals("onedaysdbrdouble") ? 86400 / 100 : 366;
+            BatchCollector collector = new BatchCollector(false, batchCount);
+            retrieval
+                    .publishDataForPVs(List.of(pvName), START, END, false, null, 100)
+                    .subscribe(collector);
+            collector.done.get(60, TimeUnit.SECONDS);
+            assertEquals("Batches for " + pvName, batchCount, collector.batchCount());
+        }
+    }
+
+    @Test
+    public void testPublisherError() throws Exception {
+        BatchCollector collector = new BatchCollector(true);
+        retrieval
+                .publishDataForPVs(List.of("nonexistentpv"), START, END, false, null, 100)
+                .subscribe(collector);
+        try {
+            collector.done.get(60, TimeUnit.SECONDS);
+            fail("Expecting an error for a PV that does not exist");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause().getMessage(), ex.getCause().getMessage().contains("404"));
+        }
+    }
+}
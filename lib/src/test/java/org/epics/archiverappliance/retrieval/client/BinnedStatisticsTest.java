@@ -0,0 +1,221 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Test the statistics of the events in fixed time bins.
+ * @author mshankar
+ *
+ */
+public class BinnedStatisticsTest {
+    private static GenMsgIterator open(String fileName) throws IOException {
+        return new InputStreamBackedGenMsg(new FileInputStream("src/test/resources/sampledata/" + fileName));
+    }
+
+    /**
+     * The event times in seconds and the values; for waveforms, a value for each element.
+     */
+    private record Sample(long epochSeconds, double value, int severity) {}
+
+    private static List<Sample> readSamples(String fileName, boolean everyElement) throws IOException {
+        List<Sample> samples = new ArrayList<Sample>();
+        try (GenMsgIterator strm = open(fileName)) {
+            for (EpicsMessage msg : strm) {
+                int elements = everyElement ? msg.getValueCount() : 1;
+                for (int i = 0; i < elements; i++) {
+                    samples.add(new Sample(msg.getEpochSeconds(), msg.getNumberAt(i).doubleValue(), msg.getSeverity()));
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Check the statistics of each bin against the samples using a two pass computation.
+     */
+    private static void check(
+            BinnedStatistics stats, List<Sample> samples, long startSeconds, long endSeconds, long binSeconds) {
+        for (int bin = 0; bin < stats.getBinCount(); bin++) {
+            List<Double> values = new ArrayList<Double>();
+            for (Sample sample : samples) {
+                long offset = sample.epochSeconds() - startSeconds;
+                boolean inBin = offset >= bin * binSeconds && offset < (bin + 1) * binSeconds;
+                if (inBin && sample.epochSeconds() < endSeconds) {
+                    values.add(sample.value());
+                }
+            }
+            assertEquals("Count in bin " + bin, values.size(), stats.getCounts()[bin]);
+            if (values.isEmpty()) {
+                assertTrue(Double.isNaN(stats.getMeans()[bin]));
+                continue;
+            }
+            double sum = 0;
+            for (double value : values) {
+                sum += value;
+            }
+            double mean = sum / values.size();
+            double squares = 0;
+            for (double value : values) {
+                squares += (value - mean) * (value - mean);
+            }
+            double tolerance = 1e-9 * Math.max(1, Math.abs(mean));
+            assertEquals(mean, stats.getMeans()[bin], tolerance);
+            if (values.size() > 1) {
+                assertEquals(squares / (values.size() - 1), stats.getVariances()[bin], 1e-9 * Math.max(1, squares));
+            }
+            assertEquals(values.stream().mapToDouble(v -> v).min().getAsDouble(), stats.getMins()[bin], 0);
+            assertEquals(values.stream().mapToDouble(v -> v).max().getAsDouble(), stats.getMaxs()[bin], 0);
+            assertEquals(values.get(0), stats.getFirsts()[bin], 0);
+            assertEquals(values.get(values.size() - 1), stats.getLasts()[bin], 0);
+        }
+    }
+
+    @Test
+    public void testHourlyStatistics() throws Exception {
+        List<Sample> samples = readSamples("onedaysdbrdouble", false);
+        long startSeconds = samples.get(0).epochSeconds() + 1800;
+        long endSeconds = startSeconds + 20 * 3600 + 60;
+        BinnedStatistics stats;
+        try (GenMsgIterator strm = open("onedaysdbrdouble")) {
+            stats = BinnedStatistics.aggregate(
+                    strm,
+                    new Timestamp(startSeconds * 1000),
+                    new Timestamp(endSeconds * 1000),
+                    Duration.ofHours(1),
+                    BinnedStatistics.WaveformReduction.FIRST_ELEMENT);
+        }
+        assertEquals(21, stats.getBinCount());
+        assertEquals(new Timestamp((startSeconds + 3600) * 1000), stats.getBinStart(1));
+        assertEquals(60, stats.getCounts()[20]);
+        check(stats, samples, startSeconds, endSeconds, 3600);
+        for (int bin = 0; bin < stats.getBinCount(); bin++) {
+            long severities = 0;
+            for (int severity = 0; severity < BinnedStatistics.SEVERITY_COUNT; severity++) {
+                severities += stats.getSeverityCount(bin, severity);
+            }
+            long statuses = 0;
+            for (int status = 0; status < BinnedStatistics.STATUS_COUNT; status++) {
+                statuses += stats.getStatusCount(bin, status);
+            }
+            assertEquals(stats.getCounts()[bin], severities);
+            assertEquals(stats.getCounts()[bin], statuses);
+        }
+    }
+
+    /**
+     * A waveform every hour for two days; the number of elements varies from event to event.
+     */
+    private static byte[] waveforms() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(PayloadInfo.newBuilder()
+                    .setType(PayloadType.WAVEFORM_DOUBLE)
+                    .setPvname("TEST:WAVEFORM")
+                    .setYear(2012)
+                    .setElementCount(8)
+                    .build());
+            for (int i = 0; i < 48; i++) {
+                VectorDouble.Builder builder = VectorDouble.newBuilder().setSecondsintoyear(i * 3600).setNano(0);
+                for (int j = 0; j < 4 + i % 5; j++) {
+                    builder.addVal(Math.sin(i + j / 8.0) * 100);
+                }
+                writer.writeEvent(builder.build());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static BinnedStatistics aggregateWaveforms(
+            byte[] data, Timestamp start, Timestamp end, BinnedStatistics.WaveformReduction reduction)
+            throws IOException {
+        try (GenMsgIterator strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data))) {
+            return BinnedStatistics.aggregate(strm, start, end, Duration.ofDays(1), reduction);
+        }
+    }
+
+    @Test
+    public void testWaveforms() throws Exception {
+        byte[] data = waveforms();
+        Timestamp start = Timestamp.from(Instant.parse("2012-01-01T00:00:00Z"));
+        Timestamp end = Timestamp.from(Instant.parse("2012-01-03T00:00:00Z"));
+        long startSeconds = start.getTime() / 1000;
+        long endSeconds = end.getTime() / 1000;
+        List<Sample> elements = new ArrayList<Sample>();
+        List<Sample> firstElements = new ArrayList<Sample>();
+        try (GenMsgIterator strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data))) {
+            for (EpicsMessage msg : strm) {
+                for (int i = 0; i < msg.getValueCount(); i++) {
+                    elements.add(new Sample(msg.getEpochSeconds(), msg.getDouble(i), msg.getSeverity()));
+                }
+                firstElements.add(new Sample(msg.getEpochSeconds(), msg.getDouble(0), msg.getSeverity()));
+            }
+        }
+
+        BinnedStatistics everyElement =
+                aggregateWaveforms(data, start, end, BinnedStatistics.WaveformReduction.EVERY_ELEMENT);
+        assertEquals(2, everyElement.getBinCount());
+        assertTrue(everyElement.getCounts()[0] > 24 * 4);
+        check(everyElement, elements, startSeconds, endSeconds, 24 * 3600);
+
+        BinnedStatistics first =
+                aggregateWaveforms(data, start, end, BinnedStatistics.WaveformReduction.FIRST_ELEMENT);
+        check(first, firstElements, startSeconds, endSeconds, 24 * 3600);
+
+        BinnedStatistics mean = aggregateWaveforms(data, start, end, BinnedStatistics.WaveformReduction.MEAN);
+        assertEquals(24, mean.getCounts()[0]);
+        assertEquals(24, mean.getSeverityCount(0, 0));
+        double sumOfMeans = 0;
+        try (GenMsgIterator strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data))) {
+            for (EpicsMessage msg : strm) {
+                if (msg.getEpochSeconds() - startSeconds < 24 * 3600) {
+                    double sum = 0;
+                    for (int i = 0; i < msg.getValueCount(); i++) {
+                        sum += msg.getDouble(i);
+                    }
+                    sumOfMeans += sum / msg.getValueCount();
+                }
+            }
+        }
+        assertEquals(sumOfMeans / 24, mean.getMeans()[0], 1e-9);
+    }
+
+    @Test
+    public void testSeveralPVs() throws Exception {
+        Timestamp start = Timestamp.valueOf("2012-01-01 00:00:00");
+        Timestamp end = Timestamp.valueOf("2013-01-01 00:00:00");
+        List<String> fileNames = List.of("SCALAR_INT_sampledata", "SCALAR_FLOAT_sampledata", "SCALAR_ENUM_sampledata");
+        List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>();
+        for (String fileName : fileNames) {
+            sources.add(() -> open(fileName));
+        }
+        Map<String, BinnedStatistics> statsByPV;
+        try (GenMsgIterator strm = new ConcatenatedGenMsg(sources)) {
+            statsByPV = PVDemultiplexer.demultiplex(
+                    strm,
+                    info -> new BinnedStatistics(
+                            start, end, Duration.ofDays(7), BinnedStatistics.WaveformReduction.FIRST_ELEMENT),
+                    100);
+        }
+        for (String fileName : fileNames) {
+            BinnedStatistics stats = statsByPV.get(fileName);
+            assertEquals(53, stats.getBinCount());
+            check(stats, readSamples(fileName, false), start.getTime() / 1000, end.getTime() / 1000, 7 * 24 * 3600);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import org.junit.Test;
+
+/**
+ * Test the pool of line and read buffers and lines that are longer than the initial line buffer.
+ * @author mshankar
+ *
+ */
+public class BufferPoolTest {
+    @Test
+    public void testAcquireAndRelease() {
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, BufferPool.roundCapacity(1));
+        assertEquals(64 * 1024, BufferPool.roundCapacity(64 * 1024));
+        assertEquals(128 * 1024, BufferPool.roundCapacity(64 * 1024 + 1));
+
+        BufferPool pool = new BufferPool(1024 * 1024, true);
+        ByteBuffer first = pool.acquire(100_000);
+        assertTrue(first.isDirect());
+        assertEquals(128 * 1024, first.capacity());
+        assertTrue(!pool.acquireHeap(1000).isDirect());
+        first.put((byte) 1);
+        pool.release(first);
+        assertEquals(128 * 1024, pool.getPooledBytes());
+        ByteBuffer second = pool.acquire(128 * 1024);
+        assertTrue(second == first);
+        assertEquals(0, second.position());
+        assertEquals(second.capacity(), second.limit());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(3, pool.getAcquireCount());
+
+        // Buffers larger than a quarter of the pool are not kept and the pool is bounded
+        pool.release(second);
+        pool.release(pool.acquire(512 * 1024));
+        for (int i = 0; i < 10; i++) {
+            pool.release(ByteBuffer.allocateDirect(256 * 1024));
+        }
+        assertEquals(128 * 1024 + 3 * 256 * 1024, pool.getPooledBytes());
+        assertEquals(4, pool.getPooledBufferCount());
+        assertEquals(8, pool.getDiscardCount());
+        assertEquals(512 * 1024, pool.getLargestBufferSize());
+        pool.clear();
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testBuffersAreReused() throws Exception {
+        BufferPool pool = new BufferPool(16 * 1024 * 1024, false);
+        int events = 0;
+        for (int i = 0; i < 10; i++) {
+            try (GenMsgIterator strm = new InputStreamBackedGenMsg(
+                    new FileInputStream("src/test/resources/sampledata/SCALAR_DOUBLE_sampledata"),
+                    RetrievalMetrics.NONE,
+                    pool)) {
+                for (EpicsMessage msg : strm) {
+                    events++;
+                }
+            }
+        }
+        assertEquals(3660, events);
+        // A read buffer and a line buffer for each iterator; only the first iterator allocates these.
+        assertEquals(20, pool.getAcquireCount());
+        assertEquals(18, pool.getHitCount());
+        assertEquals(
+                InputStreamBackedGenMsg.READ_BUFFER_SIZE + LineFramedGenMsg.INITIAL_LINE_BUFFER_SIZE,
+                pool.getAllocatedBytes());
+        assertEquals(2, pool.getPooledBufferCount());
+    }
+
+    @Test
+    public void testLinesLongerThan16MB() throws Exception {
+        byte[] value = new byte[20 * 1024 * 1024];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (i % 251);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(PayloadInfo.newBuilder()
+                    .setType(PayloadType.WAVEFORM_BYTE)
+                    .setPvname("TEST:LARGE_WAVEFORM")
+                    .setYear(2012)
+                    .setElementCount(value.length)
+                    .build());
+            for (int i = 0; i < 2; i++) {
+                writer.writeEvent(VectorChar.newBuilder()
+                        .setSecondsintoyear(i)
+                        .setNano(0)
+                        .setVal(ByteString.copyFrom(value))
+                        .build());
+            }
+        }
+        BufferPool pool = new BufferPool(64 * 1024 * 1024, false);
+        try (GenMsgIterator strm = new InputStreamBackedGenMsg(
+                new ByteArrayInputStream(bytes.toByteArray()), RetrievalMetrics.NONE, pool)) {
+            Iterator<EpicsMessage> it = strm.iterator();
+            for (int i = 0; i < 2; i++) {
+                EpicsMessage msg = it.next();
+                assertEquals(i, msg.getEpochSeconds() - EpicsMessage.startOfYearInEpochSeconds(2012));
+                assertArrayEquals(value, ((VectorChar) msg.getMessage()).getVal().toByteArray());
+            }
+            assertTrue(!it.hasNext());
+        }
+        assertEquals(32 * 1024 * 1024, pool.getLargestBufferSize());
+    }
+}
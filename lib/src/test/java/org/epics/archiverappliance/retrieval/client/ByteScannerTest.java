@@ -0,0 +1,128 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The word at a time scans should find the same bytes as a byte at a time scan.
+ * @author mshankar
+ *
+ */
+public class ByteScannerTest {
+    private static int naiveIndexOfNewlineOrEscape(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == LineFramedGenMsg.NEWLINE_CHAR || data[i] == LineFramedGenMsg.ESCAPE_CHAR) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Random data with a few special bytes; the bytes next to 0x0A and 0x1B (and 0x00, 0x80, 0xFF) catch mistakes in the borrow handling.
+     */
+    private static byte[] randomData(Random random, int length, int specialsPer1000) {
+        byte[] special = {0x0A, 0x1B, 0x0B, 0x09, 0x1A, 0x1C, 0x00, (byte) 0x80, (byte) 0xFF, (byte) 0x8A, (byte) 0x9B};
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(1000) < specialsPer1000) {
+                data[i] = special[random.nextInt(special.length)];
+            } else {
+                data[i] = (byte) (0x20 + random.nextInt(0x5F));
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void testAgainstByteAtATimeScan() {
+        Random random = new Random(1234);
+        for (int specialsPer1000 : new int[] {0, 5, 100, 1000}) {
+            byte[] data = randomData(random, 1000, specialsPer1000);
+            ByteBuffer heap = ByteBuffer.wrap(data);
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            ByteBuffer readOnly = direct.asReadOnlyBuffer();
+            for (int trial = 0; trial < 2000; trial++) {
+                int from = random.nextInt(data.length + 1);
+                int to = from + random.nextInt(Math.min(100, data.length - from + 1));
+                int expected = naiveIndexOfNewlineOrEscape(data, from, to);
+                assertEquals(expected, ByteScanner.indexOfNewlineOrEscape(data, from, to));
+                assertEquals(expected, ByteScanner.indexOfNewlineOrEscape(heap, from, to));
+                assertEquals(expected, ByteScanner.indexOfNewlineOrEscape(readOnly, from, to));
+                for (byte b : new byte[] {LineFramedGenMsg.NEWLINE_CHAR, LineFramedGenMsg.ESCAPE_CHAR, (byte) 0x80}) {
+                    expected = naiveIndexOf(data, from, to, b);
+                    assertEquals(expected, ByteScanner.indexOf(data, from, to, b));
+                    assertEquals(expected, ByteScanner.indexOf(direct, from, to, b));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEveryPositionInAWord() {
+        for (int length = 0; length < 20; length++) {
+            for (int at = 0; at < length; at++) {
+                byte[] data = new byte[length];
+                data[at] = LineFramedGenMsg.ESCAPE_CHAR;
+                // A byte that borrows into the next byte after the match
+                if (at + 1 < length) {
+                    data[at + 1] = 0x1C;
+                }
+                assertEquals(at, ByteScanner.indexOfNewlineOrEscape(data, 0, length));
+                assertEquals(at, ByteScanner.indexOf(data, 0, length, LineFramedGenMsg.ESCAPE_CHAR));
+                assertEquals(length, ByteScanner.indexOf(data, 0, length, LineFramedGenMsg.NEWLINE_CHAR));
+                assertEquals(length, ByteScanner.indexOfNewlineOrEscape(data, at + 1, length));
+            }
+        }
+    }
+
+    /**
+     * Escape sequences and lines that span reads of the input stream; the stream returns a few bytes at a time.
+     */
+    @Test
+    public void testLinesSpanningReads() throws Exception {
+        for (String fileName : List.of("WAVEFORM_DOUBLE_sampledata", "SCALAR_STRING_sampledata", "onedaysdbrdouble")) {
+            byte[] data = Files.readAllBytes(Paths.get("src/test/resources/sampledata", fileName));
+            List<String> expected = new ArrayList<String>();
+            try (MappedFileGenMsg strm = new MappedFileGenMsg(Paths.get("src/test/resources/sampledata", fileName))) {
+                for (EpicsMessage msg : strm) {
+                    expected.add(msg.getMessage().toString());
+                }
+            }
+            Random random = new Random(fileName.hashCode());
+            InputStream smallReads = new FilterInputStream(new ByteArrayInputStream(data)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 1 + random.nextInt(16)));
+                }
+            };
+            List<String> actual = new ArrayList<String>();
+            try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(smallReads)) {
+                for (EpicsMessage msg : strm) {
+                    actual.add(msg.getMessage().toString());
+                }
+            }
+            assertEquals(fileName, expected, actual);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test caching the data for overlapping requests.
+ * @author mshankar
+ *
+ */
+public class CachingDataRetrievalTest {
+    private static final Path DATA_FILE = Paths.get("src/test/resources/sampledata/onedaysdbrdouble");
+    private long firstSecond;
+
+    /**
+     * Serve the data from a file like the server; including the last event before the start time.
+     * This records the time ranges that were requested.
+     */
+    private static class FileDataRetrieval extends DataRetrieval {
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public GenMsgIterator getDataForPVs(
+                List<String> pvNames,
+                Timestamp startTime,
+                Timestamp endTime,
+                boolean useReducedDataSet,
+                Map<String, String> otherParams) {
+            requests.add(startTime.getTime() / 1000 + "-" + endTime.getTime() / 1000);
+            try {
+                MappedFileGenMsg strm = new MappedFileGenMsg(DATA_FILE);
+                strm.skipTo(startTime.getTime() / 1000, startTime.getNanos(), true);
+                return new ConcatenatedGenMsg(List.of(() -> strm), endTime);
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Exception reading " + DATA_FILE, ex);
+            }
+        }
+    }
+
+    /**
+     * Serve the same data as FileDataRetrieval for each PV; with the PV name in the PayloadInfo.
+     * This records the PVs and the time range of each request.
+     */
+    private static class MultiPVDataRetrieval extends DataRetrieval {
+        private final FileDataRetrieval file = new FileDataRetrieval();
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public GenMsgIterator getDataForPVs(
+                List<String> pvNames,
+                Timestamp startTime,
+                Timestamp endTime,
+                boolean useReducedDataSet,
+                Map<String, String> otherParams) {
+            requests.add(String.join(",", pvNames) + " " + startTime.getTime() / 1000 + "-" + endTime.getTime() / 1000);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (PBStreamWriter writer = new PBStreamWriter(bos)) {
+                for (String pvName : pvNames) {
+                    try (GenMsgIterator strm = file.getDataForPV(pvName, startTime, endTime)) {
+                        writer.writeInfo(strm.getPayLoadInfo().toBuilder().setPvname(pvName).build());
+                        for (EpicsMessage msg : strm) {
+                            writer.writeEvent(msg.getMessage());
+                        }
+                    }
+                }
+                writer.flush();
+                return new InputStreamBackedGenMsg(new ByteArrayInputStream(bos.toByteArray()));
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Exception reading " + DATA_FILE, ex);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        try (GenMsgIterator strm = new MappedFileGenMsg(DATA_FILE)) {
+            firstSecond = strm.iterator().next().getEpochSeconds();
+        }
+    }
+
+    private Timestamp at(long secondsFromStart) {
+        return new Timestamp((firstSecond + secondsFromStart) * 1000);
+    }
+
+    private String range(long from, long to) {
+        return (firstSecond + from) + "-" + (firstSecond + to);
+    }
+
+    private static List<String> readAll(GenMsgIterator strm) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getEpochSeconds() + " " + msg.getNanos() + " " + msg.getNumberValue());
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> readWithNames(GenMsgIterator strm) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getEpochSeconds() + " " + msg.getNanos() + " "
+                        + msg.getNumberValue());
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> readBatches(GenMsgIterator strm) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            EventBatch batch = new EventBatch(7);
+            int size;
+            while ((size = strm.nextBatch(batch)) > 0) {
+                for (int i = 0; i < size; i++) {
+                    ret.add(batch.getEpochSeconds()[i] + " " + batch.getNanos()[i] + " " + batch.getValues()[i]);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private List<String> expected(long from, long to) throws IOException {
+        return readAll(new FileDataRetrieval().getDataForPV("test", at(from), at(to)));
+    }
+
+    @Test
+    public void testOnlyMissingRangesAreFetched() throws Exception {
+        FileDataRetrieval source = new FileDataRetrieval();
+        CachingDataRetrieval cache = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+
+        assertEquals(expected(1000, 2000), readAll(cache.getDataForPV("test", at(1000), at(2000))));
+        assertEquals(List.of(range(1000, 2000)), source.requests);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertTrue(cache.getMemoryBytes() > 0);
+
+        // Pan to the right
+        source.requests.clear();
+        assertEquals(expected(1500, 3000), readAll(cache.getDataForPV("test", at(1500), at(3000))));
+        assertEquals(List.of(range(2000, 3000)), source.requests);
+        assertEquals(1, cache.getHitCount());
+
+        // Zoom out; both ends are missing
+        source.requests.clear();
+        assertEquals(expected(500, 3500), readBatches(cache.getDataForPV("test", at(500), at(3500))));
+        assertEquals(List.of(range(500, 1000), range(3000, 3500)), source.requests);
+
+        // Zoom in; everything is cached
+        source.requests.clear();
+        assertEquals(expected(1200, 3200), readAll(cache.getDataForPV("test", at(1200), at(3200))));
+        assertEquals(expected(2999, 3001), readBatches(cache.getDataForPV("test", at(2999), at(3001))));
+        assertEquals(List.of(), source.requests);
+        assertTrue(cache.getBytesSaved() > 0);
+
+        // Other parameters are cached separately
+        assertEquals(
+                expected(1200, 1300),
+                readAll(cache.getDataForPV("test", at(1200), at(1300), false, Map.of("fetchLatestMetadata", "true"))));
+        assertEquals(1, source.requests.size());
+    }
+
+    @Test
+    public void testPartialReadsAreNotCached() throws Exception {
+        FileDataRetrieval source = new FileDataRetrieval();
+        CachingDataRetrieval cache = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+        try (GenMsgIterator strm = cache.getDataForPV("test", at(1000), at(2000))) {
+            strm.iterator().next();
+        }
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(expected(1000, 2000), readAll(cache.getDataForPV("test", at(1000), at(2000))));
+        assertEquals(2, source.requests.size());
+    }
+
+    @Test
+    public void testRecentDataIsNotCached() throws Exception {
+        FileDataRetrieval source = new FileDataRetrieval();
+        CachingDataRetrieval cache = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+        Timestamp future = new Timestamp(System.currentTimeMillis() + 3600 * 1000);
+        readAll(cache.getDataForPV("test", at(1000), future));
+        readAll(cache.getDataForPV("test", at(1000), future));
+        assertEquals(0, cache.getMemoryBytes());
+        assertEquals(2, source.requests.size());
+    }
+
+    @Test
+    public void testEvictionAndSpill() throws Exception {
+        Path spillFolder = Files.createTempDirectory("pbcachetest");
+        try {
+            FileDataRetrieval source = new FileDataRetrieval();
+            long oneRangeSize;
+            CachingDataRetrieval sizer = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+            readAll(sizer.getDataForPV("test", at(0), at(1000)));
+            oneRangeSize = sizer.getMemoryBytes();
+
+            // Room for two ranges in memory and two more in the spill folder
+            CachingDataRetrieval cache =
+                    new CachingDataRetrieval(source, oneRangeSize * 5 / 2, spillFolder, oneRangeSize * 5 / 2);
+            for (int i = 0; i < 5; i++) {
+                readAll(cache.getDataForPV("test", at(i * 10000), at(i * 10000 + 1000)));
+            }
+            assertEquals(3, cache.getSpillCount());
+            assertEquals(1, cache.getEvictionCount());
+            assertTrue(cache.getMemoryBytes() <= oneRangeSize * 5 / 2);
+            assertTrue(cache.getSpillBytes() <= oneRangeSize * 5 / 2);
+            try (Stream<Path> files = Files.list(spillFolder)) {
+                assertEquals(2, files.count());
+            }
+
+            // The first range was evicted; the second is read from the spill folder.
+            source.requests.clear();
+            assertEquals(expected(10500, 11000), readAll(cache.getDataForPV("test", at(10500), at(11000))));
+            assertEquals(List.of(), source.requests);
+            assertEquals(expected(0, 1000), readAll(cache.getDataForPV("test", at(0), at(1000))));
+            assertEquals(List.of(range(0, 1000)), source.requests);
+
+            cache.clear();
+            assertEquals(0, cache.getMemoryBytes());
+            assertEquals(0, cache.getSpillBytes());
+            try (Stream<Path> files = Files.list(spillFolder)) {
+                assertEquals(0, files.count());
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(spillFolder)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(spillFolder);
+        }
+    }
+
+    @Test
+    public void testHitsAndBytesSaved() throws Exception {
+        FileDataRetrieval source = new FileDataRetrieval();
+        CachingDataRetrieval cache = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+        readAll(cache.getDataForPV("test", at(1000), at(2000)));
+        readAll(cache.getDataForPV("test", at(3000), at(4000)));
+        assertEquals(2, cache.getMissCount());
+
+        // Only the part of the range that is replayed is saved; this starts with the last event before the start time.
+        CachingDataRetrieval sizer = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+        readAll(sizer.getDataForPV("test", at(1500), at(2000)));
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (GenMsgIterator strm = source.getDataForPV("test", at(1500), at(2000));
+                PBStreamWriter writer = new PBStreamWriter(header)) {
+            writer.writeInfo(strm.getPayLoadInfo());
+        }
+        assertEquals(expected(1500, 2000), readAll(cache.getDataForPV("test", at(1500), at(2000))));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(sizer.getMemoryBytes() - header.size(), cache.getBytesSaved());
+
+        // The missing range and the second cached range are not read; so these are not counted.
+        source.requests.clear();
+        try (GenMsgIterator strm = cache.getDataForPV("test", at(1000), at(4000))) {
+            strm.iterator().next();
+        }
+        assertEquals(List.of(), source.requests);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testMissingSpillFileIsAMiss() throws Exception {
+        Path spillFolder = Files.createTempDirectory("pbcachetest");
+        try {
+            FileDataRetrieval source = new FileDataRetrieval();
+            CachingDataRetrieval sizer = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+            readAll(sizer.getDataForPV("test", at(0), at(1000)));
+            long oneRangeSize = sizer.getMemoryBytes();
+
+            // The first range is spilled when the second is cached.
+            CachingDataRetrieval cache =
+                    new CachingDataRetrieval(source, oneRangeSize * 3 / 2, spillFolder, oneRangeSize * 5 / 2);
+            readAll(cache.getDataForPV("test", at(0), at(1000)));
+            readAll(cache.getDataForPV("test", at(10000), at(11000)));
+            assertEquals(1, cache.getSpillCount());
+            try (Stream<Path> files = Files.list(spillFolder)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+
+            source.requests.clear();
+            assertEquals(expected(0, 1000), readAll(cache.getDataForPV("test", at(0), at(1000))));
+            assertEquals(List.of(range(0, 1000)), source.requests);
+            assertEquals(0, cache.getHitCount());
+            assertEquals(3, cache.getMissCount());
+            assertEquals(0, cache.getBytesSaved());
+        } finally {
+            try (Stream<Path> files = Files.list(spillFolder)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(spillFolder);
+        }
+    }
+
+    @Test
+    public void testUncachedPVsAreFetchedTogether() throws Exception {
+        MultiPVDataRetrieval source = new MultiPVDataRetrieval();
+        CachingDataRetrieval cache = new CachingDataRetrieval(source, 64 * 1024 * 1024);
+        List<String> pvNames = List.of("a", "b", "c");
+        List<String> expected =
+                readWithNames(new MultiPVDataRetrieval().getDataForPVs(pvNames, at(1000), at(2000), false, null));
+        assertEquals(expected, readWithNames(cache.getDataForPVs(pvNames, at(1000), at(2000), false, null)));
+        assertEquals(List.of("a,b,c " + range(1000, 2000)), source.requests);
+        assertEquals(3, cache.getMissCount());
+
+        // Each PV was cached separately
+        source.requests.clear();
+        assertEquals(expected, readWithNames(cache.getDataForPVs(pvNames, at(1000), at(2000), false, null)));
+        assertEquals(List.of(), source.requests);
+        assertEquals(3, cache.getHitCount());
+
+        // The cached PVs are stitched together with the missing ranges; the uncached PVs are fetched together.
+        pvNames = List.of("b", "d", "e", "a");
+        expected = readWithNames(new MultiPVDataRetrieval().getDataForPVs(pvNames, at(1500), at(2500), false, null));
+        assertEquals(expected, readWithNames(cache.getDataForPVs(pvNames, at(1500), at(2500), false, null)));
+        assertEquals(
+                List.of("b " + range(2000, 2500), "d,e " + range(1500, 2500), "a " + range(2000, 2500)),
+                source.requests);
+    }
+}
@@ -0,0 +1,237 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * Test retrieving gzip and deflate compressed responses.
+ * @author mshankar
+ *
+ */
+public class CompressedTransferTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+    private static final List<String> PV_NAMES =
+            List.of("onedaysdbrdouble", "multipleChunksInSameYear", "SCALAR_STRING_sampledata");
+
+    private static List<String> readAll(GenMsgIterator strm) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getEpochSeconds() + " " + msg.getNanos() + " "
+                        + msg.getSeverity());
+            }
+        }
+        return ret;
+    }
+
+    private static byte[] sampleData(String fileName) throws IOException {
+        return Files.readAllBytes(Paths.get("src/test/resources/sampledata", fileName));
+    }
+
+    @Test
+    public void testCompressedResponses() throws Exception {
+        List<String> expected;
+        long responseSize;
+        try (SampleDataServer server = new SampleDataServer()) {
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            retrieval.setAcceptCompressedResponses(false);
+            expected = readAll(retrieval.getDataForPVs(PV_NAMES, START, END, false, null));
+            assertEquals(null, server.lastAcceptEncoding);
+            responseSize = retrieval.getCompressedByteCount();
+            assertEquals(responseSize, retrieval.getUncompressedByteCount());
+        }
+        long fileSizes = PV_NAMES.size() - 1;
+        for (String pvName : PV_NAMES) {
+            fileSizes += sampleData(pvName).length;
+        }
+        assertEquals(fileSizes, responseSize);
+
+        for (String encoding : new String[] {"gzip", "deflate"}) {
+            for (int readAheadDepth : new int[] {0, 2}) {
+                try (SampleDataServer server = new SampleDataServer()) {
+                    server.contentEncoding = encoding;
+                    RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+                    retrieval.setReadAheadDepth(readAheadDepth);
+                    List<String> actual = readAll(retrieval.getDataForPVs(PV_NAMES, START, END, false, null));
+                    assertEquals("Events using " + encoding, expected, actual);
+                    assertTrue(server.lastAcceptEncoding.contains(encoding));
+                    assertEquals(responseSize, retrieval.getUncompressedByteCount());
+                    long compressedSize = retrieval.getCompressedByteCount();
+                    assertTrue(
+                            "Compressed " + compressedSize + " uncompressed " + responseSize,
+                            compressedSize * 3 < responseSize);
+
+                    actual = readAll(retrieval.getDataForPVsAsync(PV_NAMES, START, END, false, null)
+                            .get());
+                    assertEquals("Events using " + encoding, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGzipMembersAndHeaders() throws Exception {
+        byte[] data = sampleData("multipleChunksInSameYear");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // A header with a file name and a comment
+        bos.write(new byte[] {0x1F, (byte) 0x8B, 8, 8 | 16, 0, 0, 0, 0, 0, 3});
+        bos.write("multipleChunksInSameYear\0A comment\0".getBytes(StandardCharsets.ISO_8859_1));
+        DeflaterOutputStream dos = new DeflaterOutputStream(bos, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+        dos.write(data, 0, 1000);
+        dos.finish();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, 1000);
+        writeInt(bos, (int) crc.getValue());
+        writeInt(bos, 1000);
+        // The rest of the data is a second member
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data, 1000, data.length - 1000);
+        }
+        byte[] compressed = bos.toByteArray();
+
+        try (InputStream is = InflatingInputStream.wrap(new ByteArrayInputStream(compressed), "gzip")) {
+            assertArrayEquals(data, is.readAllBytes());
+        }
+
+        compressed[compressed.length - 6]++;
+        try (InputStream is = InflatingInputStream.wrap(new ByteArrayInputStream(compressed), "gzip")) {
+            is.readAllBytes();
+            fail("Expecting an exception for a corrupt trailer");
+        } catch (IOException ex) {
+            // Expected
+        }
+
+        try (InputStream is = InflatingInputStream.wrap(new ByteArrayInputStream(new byte[0]), "gzip")) {
+            assertEquals(-1, is.read());
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream bos, int value) {
+        for (int i = 0; i < 4; i++) {
+            bos.write((value >>> (8 * i)) & 0xFF);
+        }
+    }
+
+    @Test
+    public void testRawDeflateAndPooling() throws Exception {
+        byte[] data = sampleData("SCALAR_DOUBLE_sampledata");
+        for (boolean nowrap : new boolean[] {false, true}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (DeflaterOutputStream dos =
+                    new DeflaterOutputStream(bos, new Deflater(Deflater.BEST_COMPRESSION, nowrap))) {
+                dos.write(data);
+            }
+            for (int i = 0; i < 3; i++) {
+                try (InputStream is = InflatingInputStream.wrap(new ByteArrayInputStream(bos.toByteArray()), "deflate");
+                        InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(is)) {
+                    List<String> expected = readAll(new InputStreamBackedGenMsg(
+                            new FileInputStream("src/test/resources/sampledata/SCALAR_DOUBLE_sampledata")));
+                    assertEquals(expected, readAll(strm));
+                }
+            }
+            // The inflater is reused
+            assertTrue(InflatingInputStream.pooledInflaters(nowrap) >= 1);
+        }
+        try {
+            InflatingInputStream.wrap(new ByteArrayInputStream(data), "br");
+            fail("Expecting an exception for an unsupported encoding");
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Returns a few bytes at a time and ignores interrupts while doing so; like a slow network connection.
+     */
+    private static class SlowInputStream extends InputStream {
+        private final InputStream is;
+
+        SlowInputStream(InputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return is.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            boolean interrupted = false;
+            long end = System.nanoTime() + 20_000_000L;
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return is.read(b, off, Math.min(len, 256));
+        }
+    }
+
+    /**
+     * When a read ahead stream is closed early, the reader thread could still be inflating.
+     * The pooled Inflater should only be returned once the reader thread is done with it; else, another stream could borrow it while it is in use.
+     */
+    @Test
+    public void testEarlyCloseWithReadAhead() throws Exception {
+        byte[] data = sampleData("onedaysdbrdouble");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(bos)) {
+            gos.write(data);
+        }
+        byte[] compressed = bos.toByteArray();
+        List<Thread> threads = new ArrayList<Thread>();
+        ReadAheadInputStream is = new ReadAheadInputStream(
+                InflatingInputStream.wrap(new SlowInputStream(new ByteArrayInputStream(compressed)), "gzip"),
+                2,
+                1024,
+                r -> {
+                    Thread t = new Thread(r);
+                    threads.add(t);
+                    return t;
+                });
+        try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(is)) {
+            int eventCount = 0;
+            for (EpicsMessage msg : strm) {
+                msg.getTimestamp();
+                if (++eventCount >= 10) {
+                    break;
+                }
+            }
+            assertEquals(10, eventCount);
+        }
+        assertFalse("The reader thread should be done with the stream once it is closed", threads.get(0).isAlive());
+        assertTrue(InflatingInputStream.pooledInflaters(true) >= 1);
+
+        // The pooled inflater is still usable
+        try (InputStream gis = InflatingInputStream.wrap(new ByteArrayInputStream(compressed), "gzip")) {
+            assertArrayEquals(data, gis.readAllBytes());
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test fetching the data for multiple PVs using several concurrent requests.
+ * @author mshankar
+ *
+ */
+public class ConcurrentRetrievalTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+    private static final List<String> PV_NAMES = List.of(
+            "SCALAR_BYTE_sampledata",
+            "SCALAR_DOUBLE_sampledata",
+            "SCALAR_ENUM_sampledata",
+            "SCALAR_FLOAT_sampledata",
+            "SCALAR_INT_sampledata",
+            "SCALAR_SHORT_sampledata",
+            "SCALAR_STRING_sampledata",
+            "multipleChunksInSameYear");
+    private SampleDataServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new SampleDataServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    /**
+     * The PV name and time of each event followed by the PV names passed to the InfoChangeHandler.
+     * The single request calls the InfoChangeHandler when it reads ahead of the last event of a PV; so these are not interleaved.
+     */
+    private static List<String> readAll(GenMsgIterator strm) throws Exception {
+        List<String> ret = new ArrayList<String>();
+        List<String> infos = new ArrayList<String>();
+        try (strm) {
+            strm.onInfoChange(info -> infos.add("Info " + info.getPvname()));
+            infos.add("Info " + strm.getPayLoadInfo().getPvname());
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getEpochSeconds() + " " + msg.getNanos());
+            }
+        }
+        ret.addAll(infos);
+        return ret;
+    }
+
+    @Test
+    public void testSameAsOneRequest() throws Exception {
+        List<String> expected = readAll(new RawDataRetrieval(server.getDataURL())
+                .getDataForPVs(PV_NAMES, START, END, false, null));
+        assertEquals(1, server.requestCount.get());
+
+        for (int pvsPerRequest : new int[] {1, 3}) {
+            server.requestCount.set(0);
+            server.maxActiveRequests.set(0);
+            server.responseDelayMillis = 200;
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            retrieval.setConcurrentRequests(4, pvsPerRequest);
+            List<String> actual = readAll(retrieval.getDataForPVs(PV_NAMES, START, END, false, null));
+            assertEquals("Events using " + pvsPerRequest + " PVs per request", expected, actual);
+            int requestCount = (PV_NAMES.size() + pvsPerRequest - 1) / pvsPerRequest;
+            assertEquals(requestCount, server.requestCount.get());
+            int maxActive = server.maxActiveRequests.get();
+            assertTrue("Requests were not sent concurrently " + maxActive, maxActive > 1);
+            assertTrue("Too many concurrent requests " + maxActive, maxActive <= 4);
+        }
+    }
+
+    @Test
+    public void testSplitLongURLs() throws Exception {
+        List<String> pvNames = Collections.nCopies(400, "WAVEFORM_INT_sampledata");
+        RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+        List<List<String>> groups = retrieval.groupPVs(pvNames, START, END, false, null);
+        assertTrue("Expecting the PVs to be split " + groups.size(), groups.size() > 1);
+        int pvCount = 0;
+        for (List<String> group : groups) {
+            pvCount += group.size();
+        }
+        assertEquals(pvNames.size(), pvCount);
+
+        List<String> events = readAll(retrieval.getDataForPVs(pvNames, START, END, false, null));
+        assertEquals(groups.size(), server.requestCount.get());
+        for (String url : server.requestedURLs) {
+            assertTrue("URL is too long " + url.length(), url.length() <= RawDataRetrieval.MAX_URL_LENGTH);
+        }
+        List<String> oneFile = readAll(new RawDataRetrieval(server.getDataURL())
+                .getDataForPVs(List.of("WAVEFORM_INT_sampledata"), START, END, false, null));
+        assertEquals(oneFile.size() * pvNames.size(), events.size());
+    }
+
+    @Test
+    public void testFailedRequestsAreSkipped() throws Exception {
+        RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+        retrieval.setConcurrentRequests(2, 1);
+        List<String> pvNames = List.of("nonexistentpv", "SCALAR_INT_sampledata", "nonexistentpv");
+        List<String> events = readAll(retrieval.getDataForPVs(pvNames, START, END, false, null));
+        List<String> expected = readAll(new RawDataRetrieval(server.getDataURL())
+                .getDataForPVs(List.of("SCALAR_INT_sampledata"), START, END, false, null));
+        assertEquals(expected, events);
+
+        assertNull(retrieval.getDataForPVs(List.of("nonexistentpv", "nonexistentpv"), START, END, false, null));
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+        retrieval.setConcurrentRequests(4, 1);
+        try (GenMsgIterator strm = retrieval.getDataForPVs(PV_NAMES, START, END, false, null)) {
+            assertNotNull(strm);
+            assertTrue(strm.iterator().hasNext());
+        }
+        // The connections are released; so we can still make requests.
+        assertNotNull(retrieval.getDataForPV("SCALAR_INT_sampledata", START, END));
+    }
+}
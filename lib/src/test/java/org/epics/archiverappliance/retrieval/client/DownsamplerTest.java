@@ -0,0 +1,160 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Test reducing the events of a PV to a fixed number of buckets.
+ * @author mshankar
+ *
+ */
+public class DownsamplerTest {
+    private static GenMsgIterator open(String fileName) throws IOException {
+        return new InputStreamBackedGenMsg(new FileInputStream("src/test/resources/sampledata/" + fileName));
+    }
+
+    private static PVSeries readAll(String fileName) throws IOException {
+        try (GenMsgIterator strm = open(fileName)) {
+            return PVDemultiplexer.collect(strm).values().iterator().next();
+        }
+    }
+
+    private static List<String> toList(PVSeries series) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < series.size(); i++) {
+            ret.add(series.getEpochSeconds()[i] + " " + series.getNanos()[i] + " " + series.getValues()[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * The M4 events of each bucket computed the obvious way; events without a numeric value are skipped.
+     */
+    private static List<String> expectedM4(PVSeries raw, long startSeconds, long endSeconds, int bucketCount) {
+        List<String> ret = new ArrayList<String>();
+        double secondsPerBucket = (endSeconds - startSeconds) / (double) bucketCount;
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            List<Integer> events = new ArrayList<Integer>();
+            for (int i = 0; i < raw.size(); i++) {
+                long seconds = raw.getEpochSeconds()[i];
+                int eventBucket = (int) Math.min(bucketCount - 1, (seconds - startSeconds) / secondsPerBucket);
+                if (seconds >= startSeconds
+                        && seconds <= endSeconds
+                        && eventBucket == bucket
+                        && !Double.isNaN(raw.getValues()[i])) {
+                    events.add(i);
+                }
+            }
+            if (events.isEmpty()) {
+                continue;
+            }
+            int min = events.get(0);
+            int max = events.get(0);
+            for (int i : events) {
+                if (raw.getValues()[i] < raw.getValues()[min]) {
+                    min = i;
+                }
+                if (raw.getValues()[i] > raw.getValues()[max]) {
+                    max = i;
+                }
+            }
+            int previous = -1;
+            int first = events.get(0);
+            int last = events.get(events.size() - 1);
+            for (int i : new int[] {first, Math.min(min, max), Math.max(min, max), last}) {
+                if (i != previous) {
+                    ret.add(raw.getEpochSeconds()[i] + " " + raw.getNanos()[i] + " " + raw.getValues()[i]);
+                }
+                previous = i;
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testM4() throws Exception {
+        PVSeries raw = readAll("onedaysdbrdouble");
+        long startSeconds = raw.getEpochSeconds()[0] + 100;
+        long endSeconds = raw.getEpochSeconds()[raw.size() - 1] - 100;
+        Timestamp start = new Timestamp(startSeconds * 1000);
+        Timestamp end = new Timestamp(endSeconds * 1000);
+        for (int bucketCount : new int[] {1, 7, 2000}) {
+            Downsampler downsampler;
+            try (GenMsgIterator strm = open("onedaysdbrdouble")) {
+                downsampler = Downsampler.downsample(strm, start, end, bucketCount);
+            }
+            List<String> m4 = toList(downsampler.getSeries(Downsampler.Reduction.M4));
+            assertEquals(expectedM4(raw, startSeconds, endSeconds, bucketCount), m4);
+            assertTrue(m4.size() <= 4 * bucketCount);
+
+            long total = 0;
+            for (long count : downsampler.getCounts()) {
+                total += count;
+            }
+            assertEquals(endSeconds - startSeconds + 1, total);
+
+            // The other reductions are subsets of M4
+            List<String> minMax = toList(downsampler.getSeries(Downsampler.Reduction.MIN_MAX));
+            List<String> firstLast = toList(downsampler.getSeries(Downsampler.Reduction.FIRST_LAST));
+            assertTrue(minMax.size() <= 2 * bucketCount && m4.containsAll(minMax));
+            assertTrue(firstLast.size() <= 2 * bucketCount && m4.containsAll(firstLast));
+            assertEquals(m4.get(0), firstLast.get(0));
+            assertEquals(m4.get(m4.size() - 1), firstLast.get(firstLast.size() - 1));
+        }
+    }
+
+    @Test
+    public void testLTTB() throws Exception {
+        PVSeries raw = readAll("onedaysdbrdouble");
+        Timestamp start = new Timestamp(raw.getEpochSeconds()[0] * 1000);
+        Timestamp end = new Timestamp((raw.getEpochSeconds()[raw.size() - 1] + 1) * 1000);
+        Downsampler downsampler = new Downsampler(start, end, 500);
+        try (GenMsgIterator strm = open("onedaysdbrdouble")) {
+            PVDemultiplexer.demultiplex(strm, info -> downsampler, 1000);
+        }
+        PVSeries lttb = downsampler.getSeries(Downsampler.Reduction.LTTB);
+        assertEquals(500, lttb.size());
+        assertEquals("onedaysdbrdouble", lttb.getPayloadInfo().getPvname());
+        List<String> m4 = toList(downsampler.getSeries(Downsampler.Reduction.M4));
+        List<String> points = toList(lttb);
+        assertTrue(m4.containsAll(points));
+        assertEquals(m4.get(0), points.get(0));
+        assertEquals(m4.get(m4.size() - 1), points.get(points.size() - 1));
+        for (int i = 1; i < lttb.size(); i++) {
+            assertTrue(lttb.getEpochSeconds()[i] > lttb.getEpochSeconds()[i - 1]);
+        }
+    }
+
+    @Test
+    public void testSeveralPVs() throws Exception {
+        Timestamp start = Timestamp.valueOf("2012-01-01 00:00:00");
+        Timestamp end = Timestamp.valueOf("2013-01-01 00:00:00");
+        List<String> fileNames =
+                List.of("SCALAR_DOUBLE_sampledata", "SCALAR_STRING_sampledata", "SCALAR_INT_sampledata");
+        List<ConcatenatedGenMsg.Source> sources = new ArrayList<ConcatenatedGenMsg.Source>();
+        for (String fileName : fileNames) {
+            sources.add(() -> open(fileName));
+        }
+        Map<String, Downsampler> downsamplers;
+        try (GenMsgIterator strm = new ConcatenatedGenMsg(sources)) {
+            downsamplers = PVDemultiplexer.demultiplex(strm, info -> new Downsampler(start, end, 12), 100);
+        }
+        assertEquals(Set.copyOf(fileNames), new HashSet<String>(downsamplers.keySet()));
+        for (String fileName : fileNames) {
+            Downsampler downsampler = downsamplers.get(fileName);
+            List<String> expected = expectedM4(
+                    readAll(fileName), start.getTime() / 1000, end.getTime() / 1000, downsampler.getBucketCount());
+            assertEquals(fileName, expected, toList(downsampler.getSeries(Downsampler.Reduction.M4)));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Batches should return the same events as the iterator.
+ * @author mshankar
+ *
+ */
+public class EventBatchTest {
+
+    /**
+     * Test the batches against the iterator for each DBR type.
+     * @throws Exception
+     */
+    @Test
+    public void testBatchesForDBRTypes() throws Exception {
+        for (PayloadType payloadType : PayloadType.values()) {
+            compareBatchesWithIterator("src/test/resources/sampledata/" + payloadType + "_sampledata", 100);
+        }
+    }
+
+    /**
+     * A days worth of data in batches of various sizes.
+     * @throws Exception
+     */
+    @Test
+    public void testOneDaysWorthOfDBRDoubleData() throws Exception {
+        for (int batchSize : new int[] {1, 7, 1000, 100000}) {
+            int eventCount = compareBatchesWithIterator("src/test/resources/sampledata/onedaysdbrdouble", batchSize);
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    /**
+     * Batches should not span chunks; this file has a header after each data point.
+     * @throws Exception
+     */
+    @Test
+    public void testBatchesDoNotSpanChunks() throws Exception {
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/multipleChunksInSameYear");
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            EventBatch batch = new EventBatch(10);
+            int eventCount = 0;
+            int batchCount = 0;
+            while (is.nextBatch(batch) > 0) {
+                eventCount += batch.size();
+                batchCount++;
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 366, eventCount);
+            assertEquals("Each chunk has one event; so we expect one batch per chunk", 366, batchCount);
+        }
+    }
+
+    /**
+     * Mix calls to the iterator and to nextBatch; no event should be lost or repeated.
+     * @throws Exception
+     */
+    @Test
+    public void testMixingBatchesAndIterator() throws Exception {
+        List<Long> expected = new ArrayList<Long>();
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/singleFileWithWellKnownPoints");
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : is) {
+                expected.add(msg.getEpochSeconds());
+            }
+        }
+        List<Long> actual = new ArrayList<Long>();
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/singleFileWithWellKnownPoints");
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            EventBatch batch = new EventBatch(5);
+            var it = is.iterator();
+            boolean useBatch = true;
+            while (true) {
+                if (useBatch) {
+                    if (is.nextBatch(batch) == 0) break;
+                    for (int i = 0; i < batch.size(); i++) {
+                        actual.add(batch.getEpochSeconds()[i]);
+                    }
+                } else {
+                    if (!it.hasNext()) break;
+                    actual.add(it.next().getEpochSeconds());
+                }
+                useBatch = !useBatch;
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    /**
+     * An iterator that only implements the iterator; nextBatch uses the default implementation.
+     */
+    private static GenMsgIterator iteratorOnly(GenMsgIterator strm) {
+        return new GenMsgIterator() {
+            @Override
+            public PayloadInfo getPayLoadInfo() {
+                return strm.getPayLoadInfo();
+            }
+
+            @Override
+            public void onInfoChange(InfoChangeHandler handler) {
+                strm.onInfoChange(handler);
+            }
+
+            @Override
+            public Iterator<EpicsMessage> iterator() {
+                return strm.iterator();
+            }
+
+            @Override
+            public void close() throws IOException {
+                strm.close();
+            }
+        };
+    }
+
+    /**
+     * The default nextBatch should return the same events as the iterator and should not span chunks.
+     * @throws Exception
+     */
+    @Test
+    public void testDefaultNextBatch() throws Exception {
+        List<Long> expected = new ArrayList<Long>();
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/onedaysdbrdouble");
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : is) {
+                expected.add(msg.getEpochSeconds());
+            }
+        }
+        List<Long> actual = new ArrayList<Long>();
+        try (GenMsgIterator strm = iteratorOnly(new InputStreamBackedGenMsg(
+                new FileInputStream("src/test/resources/sampledata/onedaysdbrdouble")))) {
+            EventBatch batch = new EventBatch(1000);
+            while (strm.nextBatch(batch) > 0) {
+                assertEquals("onedaysdbrdouble", batch.getPayloadInfo().getPvname());
+                for (int i = 0; i < batch.size(); i++) {
+                    actual.add(batch.getEpochSeconds()[i]);
+                }
+            }
+        }
+        assertEquals(expected, actual);
+
+        try (GenMsgIterator strm = iteratorOnly(new InputStreamBackedGenMsg(
+                new FileInputStream("src/test/resources/sampledata/multipleChunksInSameYear")))) {
+            EventBatch batch = new EventBatch(10);
+            int eventCount = 0;
+            int batchCount = 0;
+            while (strm.nextBatch(batch) > 0) {
+                eventCount += batch.size();
+                batchCount++;
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 366, eventCount);
+            assertEquals("Each chunk has one event; so we expect one batch per chunk", 366, batchCount);
+        }
+    }
+
+    private static int compareBatchesWithIterator(String fileName, int batchSize) throws Exception {
+        List<EpicsMessage> expected = new ArrayList<EpicsMessage>();
+        try (FileInputStream fis = new FileInputStream(fileName);
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : is) {
+                expected.add(msg);
+            }
+        }
+        int eventCount = 0;
+        try (FileInputStream fis = new FileInputStream(fileName);
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            EventBatch batch = new EventBatch(batchSize);
+            while (is.nextBatch(batch) > 0) {
+                assertTrue("Batch is larger than its capacity", batch.size() <= batchSize);
+                for (int i = 0; i < batch.size(); i++) {
+                    EpicsMessage msg = expected.get(eventCount);
+                    String context = " at event " + eventCount + " in " + fileName;
+                    assertEquals(
+                            "PV name" + context,
+                            msg.getPayloadInfo().getPvname(),
+                            batch.getPayloadInfo().getPvname());
+                    assertEquals("Epoch seconds" + context, msg.getEpochSeconds(), batch.getEpochSeconds()[i]);
+                    assertEquals("Nanos" + context, msg.getNanos(), batch.getNanos()[i]);
+                    assertEquals("Severity" + context, msg.getSeverity(), batch.getSeverities()[i]);
+                    assertEquals("Status" + context, msg.getStatus(), batch.getStatuses()[i]);
+                    // Strings, V4 generic bytes and empty waveforms have no value in a batch.
+                    double expectedValue = EventBatch.hasNumericValue(msg.getPayloadInfo().getType())
+                                    && msg.getValueCount() > 0
+                            ? msg.getDouble()
+                            : Double.NaN;
+                    assertEquals("Value" + context, expectedValue, batch.getValues()[i], 0.0);
+                    eventCount++;
+                }
+            }
+        }
+        assertEquals("Event count for " + fileName, expected.size(), eventCount);
+        return eventCount;
+    }
+}
@@ -0,0 +1,194 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorDouble;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+/**
+ * Test the JFR events for requests, chunks and large lines.
+ * @author mshankar
+ *
+ */
+public class JfrEventsTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Run the task with our events enabled and return the events that were recorded.
+     */
+    private static List<RecordedEvent> record(Task task) throws Exception {
+        Path file = Files.createTempFile("retrieval", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : List.of(
+                    RetrievalRequestEvent.NAME,
+                    ChunkDecodeEvent.NAME,
+                    LargeLineEvent.NAME,
+                    LineBufferGrowthEvent.NAME)) {
+                recording.enable(name).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            task.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> ret = new ArrayList<RecordedEvent>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals(name)) {
+                ret.add(event);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The number of events for each PV
+     */
+    private static Map<String, Long> countEvents(GenMsgIterator strm) throws IOException {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.merge(msg.getPayloadInfo().getPvname(), 1L, Long::sum);
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testRequestAndChunkEvents() throws Exception {
+        List<String> pvNames = List.of("multipleChunksInSameYear", "onedaysdbrdouble");
+        byte[] sampleData = Files.readAllBytes(Path.of("src/test/resources/sampledata", pvNames.get(0)));
+        Map<String, Long> expected = countEvents(new InputStreamBackedGenMsg(new ByteArrayInputStream(sampleData)));
+        Map<String, Long> counts = new HashMap<String, Long>();
+        List<RecordedEvent> events;
+        try (SampleDataServer server = new SampleDataServer()) {
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            events = record(() -> {
+                counts.putAll(countEvents(retrieval.getDataForPVs(pvNames, START, END, false, null)));
+                retrieval.setConcurrentRequests(2, 1);
+                List<String> withMissingPV = List.of("SCALAR_INT_sampledata", "NoSuchPV");
+                countEvents(retrieval.getDataForPVs(withMissingPV, START, END, false, null));
+            });
+        }
+
+        List<RecordedEvent> requests = ofType(events, RetrievalRequestEvent.NAME);
+        assertEquals(3, requests.size());
+        Map<String, Integer> statusByPV = new HashMap<String, Integer>();
+        for (RecordedEvent request : requests) {
+            String url = request.getString("url");
+            if (url.contains("pv=onedaysdbrdouble")) {
+                assertEquals(2, request.getInt("pvCount"));
+            } else {
+                assertEquals(1, request.getInt("pvCount"));
+            }
+            statusByPV.put(url.replaceAll(".*pv=([^&]*).*", "$1"), request.getInt("statusCode"));
+        }
+        assertEquals(Map.of("onedaysdbrdouble", 200, "SCALAR_INT_sampledata", 200, "NoSuchPV", 404), statusByPV);
+
+        Map<String, Long> eventsByPV = new HashMap<String, Long>();
+        int chunks = 0;
+        for (RecordedEvent chunk : ofType(events, ChunkDecodeEvent.NAME)) {
+            eventsByPV.merge(chunk.getString("pvName"), chunk.getLong("events"), Long::sum);
+            assertEquals(chunk.getLong("events") == 0, chunk.getLong("bytes") == 0);
+            if (chunk.getString("pvName").equals("multipleChunksInSameYear")) {
+                chunks++;
+            }
+        }
+        assertTrue(chunks > 1);
+        assertEquals(counts.get("onedaysdbrdouble"), eventsByPV.get("onedaysdbrdouble"));
+        assertEquals(expected.get("multipleChunksInSameYear"), eventsByPV.get("multipleChunksInSameYear"));
+        assertEquals(366L, (long) eventsByPV.get("SCALAR_INT_sampledata"));
+    }
+
+    /**
+     * A few waveforms with this many elements; each event is a line of about 8 bytes per element.
+     */
+    private static byte[] waveforms(int elementCount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(PayloadInfo.newBuilder()
+                    .setType(PayloadType.WAVEFORM_DOUBLE)
+                    .setPvname("TEST:LARGE_WAVEFORM")
+                    .setYear(2012)
+                    .setElementCount(elementCount)
+                    .build());
+            for (int i = 0; i < 3; i++) {
+                VectorDouble.Builder builder = VectorDouble.newBuilder().setSecondsintoyear(i).setNano(0);
+                for (int j = 0; j < elementCount; j++) {
+                    builder.addVal(i + j / 10.0);
+                }
+                writer.writeEvent(builder.build());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testLargeLineEvents() throws Exception {
+        byte[] data = waveforms(100_000);
+        List<RecordedEvent> events = record(() -> {
+            assertEquals(3L, (long) countEvents(new InputStreamBackedGenMsg(new ByteArrayInputStream(data)))
+                    .get("TEST:LARGE_WAVEFORM"));
+        });
+        List<RecordedEvent> largeLines = ofType(events, LargeLineEvent.NAME);
+        assertEquals(3, largeLines.size());
+        for (RecordedEvent largeLine : largeLines) {
+            assertEquals("TEST:LARGE_WAVEFORM", largeLine.getString("pvName"));
+            assertTrue(largeLine.getLong("size") > 800_000);
+            assertTrue(largeLine.getInt("reads") >= 3);
+        }
+        assertTrue(largeLines.get(1).getLong("escapeSequences") > 0);
+        // The line buffer starts smaller than these lines and grows
+        assertTrue(ofType(events, LineBufferGrowthEvent.NAME).size() > 0);
+    }
+
+    @Test
+    public void testLineBufferGrowthEvents() throws Exception {
+        byte[] data = waveforms(20_000);
+        List<RecordedEvent> events = record(() -> {
+            IncrementalGenMsg strm = new IncrementalGenMsg();
+            strm.append(ByteBuffer.wrap(data));
+            strm.complete();
+            int count = 0;
+            EventBatch batch;
+            while ((batch = strm.decodeBatch(10)) != null) {
+                count += batch.size();
+            }
+            strm.close();
+            assertEquals(3, count);
+        });
+        List<RecordedEvent> growths = ofType(events, LineBufferGrowthEvent.NAME);
+        assertEquals(1, growths.size());
+        assertEquals(64 * 1024, growths.get(0).getLong("previousSize"));
+        assertTrue(growths.get(0).getLong("newSize") >= 160_000);
+        assertEquals(1, ofType(events, ChunkDecodeEvent.NAME).size());
+    }
+}
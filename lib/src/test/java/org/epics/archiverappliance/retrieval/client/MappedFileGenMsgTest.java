@@ -0,0 +1,226 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * The memory mapped iterator should return the same events as the stream iterator; regardless of the size of the mapping window.
+ * @author mshankar
+ *
+ */
+public class MappedFileGenMsgTest {
+    private static final String[] FILES = {
+        "onedaysdbrdouble",
+        "multipleChunksInSameYear",
+        "multipleChunksOfRandomSizeInSameYear",
+        "singleFileWithWellKnownPoints",
+        "WAVEFORM_DOUBLE_sampledata",
+        "WAVEFORM_STRING_sampledata",
+        "V4_GENERIC_BYTES_sampledata"
+    };
+
+    @Test
+    public void testSameEventsAsStream() throws Exception {
+        for (String fileName : FILES) {
+            Path path = Paths.get("src/test/resources/sampledata/" + fileName);
+            List<String> expected = new ArrayList<String>();
+            try (FileInputStream fis = new FileInputStream(path.toFile());
+                    InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+                for (EpicsMessage msg : is) {
+                    expected.add(describe(msg));
+                }
+            }
+            // Small windows force remapping in the middle of lines and growing the window for long lines.
+            for (int windowSize : new int[] {16, 1000, 64 * 1024, MappedFileGenMsg.DEFAULT_WINDOW_SIZE}) {
+                List<String> actual = new ArrayList<String>();
+                try (MappedFileGenMsg mf = new MappedFileGenMsg(path, windowSize)) {
+                    for (EpicsMessage msg : mf) {
+                        actual.add(describe(msg));
+                    }
+                }
+                assertEquals("Events for " + fileName + " with a window of " + windowSize, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        Path path = Paths.get("src/test/resources/sampledata/onedaysdbrdouble");
+        try (MappedFileGenMsg mf = new MappedFileGenMsg(path, 4096)) {
+            EventBatch batch = new EventBatch(1000);
+            int eventCount = 0;
+            while (mf.nextBatch(batch) > 0) {
+                eventCount += batch.size();
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    /**
+     * Seek should return the same events as filtering the events from the stream; for a single chunk (bisection) and for multiple chunks (linear scan).
+     * @throws Exception
+     */
+    @Test
+    public void testSeek() throws Exception {
+        for (String fileName :
+                new String[] {"onedaysdbrdouble", "multipleChunksInSameYear", "WAVEFORM_DOUBLE_sampledata"}) {
+            Path path = Paths.get("src/test/resources/sampledata/" + fileName);
+            List<EpicsMessage> all = new ArrayList<EpicsMessage>();
+            try (FileInputStream fis = new FileInputStream(path.toFile());
+                    InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+                for (EpicsMessage msg : is) {
+                    all.add(msg);
+                }
+            }
+            Timestamp first = all.get(0).getTimestamp();
+            Timestamp last = all.get(all.size() - 1).getTimestamp();
+            List<Timestamp> seekTimes = new ArrayList<Timestamp>();
+            seekTimes.add(new Timestamp(first.getTime() - 86400 * 1000L));
+            seekTimes.add(first);
+            seekTimes.add(all.get(all.size() / 3).getTimestamp());
+            // Between two events
+            seekTimes.add(new Timestamp(all.get(all.size() / 2).getTimestamp().getTime() + 1));
+            // Seek backwards
+            seekTimes.add(all.get(all.size() / 4).getTimestamp());
+            seekTimes.add(last);
+            seekTimes.add(new Timestamp(last.getTime() + 1000));
+            for (int windowSize : new int[] {1000, MappedFileGenMsg.DEFAULT_WINDOW_SIZE}) {
+                try (MappedFileGenMsg mf = new MappedFileGenMsg(path, windowSize)) {
+                    for (Timestamp seekTime : seekTimes) {
+                        mf.seek(seekTime);
+                        List<String> expected = new ArrayList<String>();
+                        for (EpicsMessage msg : all) {
+                            if (!msg.getTimestamp().before(seekTime)) {
+                                expected.add(describe(msg));
+                            }
+                        }
+                        List<String> actual = new ArrayList<String>();
+                        for (EpicsMessage msg : mf) {
+                            actual.add(describe(msg));
+                        }
+                        assertEquals("Seek to " + seekTime + " in " + fileName, expected, actual);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A file that ends with an escape character is truncated.
+     * @throws Exception
+     */
+    /**
+     * Skipping to a time right after opening the file should start with the first event if it is at or after the time.
+     * If the last event before the time is kept, this could be the first event as well; the offset of the line with this event is returned.
+     */
+    @Test
+    public void testSkipToAfterOpening() throws Exception {
+        Path path = Paths.get("src/test/resources/sampledata/onedaysdbrdouble");
+        List<EpicsMessage> all = new ArrayList<EpicsMessage>();
+        try (FileInputStream fis = new FileInputStream(path.toFile());
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : is) {
+                all.add(msg);
+            }
+        }
+        long firstOffset;
+        try (MappedFileGenMsg mf = new MappedFileGenMsg(path)) {
+            Timestamp first = all.get(0).getTimestamp();
+            firstOffset = mf.skipTo(Math.floorDiv(first.getTime(), 1000), first.getNanos(), false);
+            assertEquals(describe(all.get(0)), describe(mf.iterator().next()));
+        }
+        for (boolean keepPreceding : new boolean[] {false, true}) {
+            try (MappedFileGenMsg mf = new MappedFileGenMsg(path)) {
+                Timestamp second = all.get(1).getTimestamp();
+                long offset = mf.skipTo(Math.floorDiv(second.getTime(), 1000), second.getNanos(), keepPreceding);
+                EpicsMessage expected = all.get(keepPreceding ? 0 : 1);
+                assertEquals(describe(expected), describe(mf.iterator().next()));
+                if (keepPreceding) {
+                    assertEquals(firstOffset, offset);
+                } else {
+                    assertTrue(offset > firstOffset);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEscapeAtEndOfFile() throws Exception {
+        byte[] data = Files.readAllBytes(Paths.get("src/test/resources/sampledata/singleFileWithWellKnownPoints"));
+        byte[] truncated = new byte[data.length];
+        System.arraycopy(data, 0, truncated, 0, data.length - 1);
+        truncated[data.length - 1] = LineFramedGenMsg.ESCAPE_CHAR;
+        Path path = Files.createTempFile("truncated", ".pb");
+        try {
+            Files.write(path, truncated);
+            try (MappedFileGenMsg mf = new MappedFileGenMsg(path)) {
+                for (EpicsMessage msg : mf) {
+                    msg.getTimestamp();
+                }
+                fail("Expecting an exception for an escape character at the end of the file");
+            } catch (RuntimeIOException ex) {
+                assertEquals(IOException.class, ex.getCause().getClass());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testLineBufferReleasedWhenOpeningFails() throws Exception {
+        Path path = Files.createTempFile("notpb", ".pb");
+        BufferPool defaultPool = BufferPool.getDefault();
+        BufferPool pool = new BufferPool(1024 * 1024, false);
+        BufferPool.setDefault(pool);
+        try {
+            Files.write(path, new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, '\n'});
+            try {
+                new MappedFileGenMsg(path).close();
+                fail("Expecting an exception for a file that does not start with a PayloadInfo");
+            } catch (IOException ex) {
+                // Expected
+            }
+            assertEquals(1, pool.getAcquireCount());
+            assertEquals(pool.getAcquireCount(), pool.getReleaseCount());
+        } finally {
+            BufferPool.setDefault(defaultPool);
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testMetricsReportedOnClose() throws Exception {
+        long[] lines = new long[1];
+        try (MappedFileGenMsg mf = new MappedFileGenMsg(Paths.get("src/test/resources/sampledata/onedaysdbrdouble"))) {
+            mf.setMetrics(new RetrievalMetrics() {
+                @Override
+                public void onLinesFramed(long count) {
+                    lines[0] += count;
+                }
+            });
+            Iterator<EpicsMessage> it = mf.iterator();
+            for (int i = 0; i < 10; i++) {
+                it.next();
+            }
+        }
+        // The ten events that were read and the event that was read ahead; the PayloadInfo was read before we started listening.
+        assertEquals(11, lines[0]);
+    }
+
+    private static String describe(EpicsMessage msg) throws IOException {
+        return msg.getPayloadInfo().getPvname() + " " + msg.getTimestamp() + " " + msg.getSeverity() + " "
+                + msg.getStatus() + " " + msg.getMessage().toByteString();
+    }
+}
@@ -0,0 +1,252 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Test merging the events from several sources in timestamp order.
+ * @author mshankar
+ *
+ */
+public class MergingGenMsgTest {
+    private static final List<String> FILES = List.of(
+            "SCALAR_DOUBLE_sampledata",
+            "multipleChunksInSameYear",
+            "SCALAR_INT_sampledata",
+            "WAVEFORM_DOUBLE_sampledata",
+            "multipleChunksOfRandomSizeInSameYear",
+            "SCALAR_STRING_sampledata");
+
+    /**
+     * An event; the source is the index of the file it came from.
+     */
+    private record Event(long epochSeconds, int nanos, int source, String pvName) {}
+
+    private static GenMsgIterator open(String fileName) throws IOException {
+        return new InputStreamBackedGenMsg(new FileInputStream("src/test/resources/sampledata/" + fileName));
+    }
+
+    private static List<GenMsgIterator> openAll() throws IOException {
+        List<GenMsgIterator> sources = new ArrayList<GenMsgIterator>();
+        for (String fileName : FILES) {
+            sources.add(open(fileName));
+        }
+        return sources;
+    }
+
+    /**
+     * The events from all the files sorted by time; the sort is stable, so ties are in the order of the files.
+     */
+    private static List<Event> expectedEvents() throws IOException {
+        List<Event> expected = new ArrayList<Event>();
+        for (int i = 0; i < FILES.size(); i++) {
+            try (GenMsgIterator strm = open(FILES.get(i))) {
+                for (EpicsMessage msg : strm) {
+                    expected.add(new Event(msg.getEpochSeconds(), msg.getNanos(), i, msg.getPayloadInfo().getPvname()));
+                }
+            }
+        }
+        Collections.sort(expected, Comparator.comparingLong(Event::epochSeconds).thenComparingInt(Event::nanos));
+        return expected;
+    }
+
+    private static int sourceOf(List<PayloadInfo> infos, PayloadInfo info) {
+        for (int i = 0; i < infos.size(); i++) {
+            if (infos.get(i).getPvname().equals(info.getPvname())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown PV " + info.getPvname());
+    }
+
+    @Test
+    public void testMergeInTimeOrder() throws Exception {
+        List<Event> expected = expectedEvents();
+        List<GenMsgIterator> sources = openAll();
+        List<PayloadInfo> sourceInfos = new ArrayList<PayloadInfo>();
+        for (GenMsgIterator source : sources) {
+            sourceInfos.add(source.getPayLoadInfo());
+        }
+        List<Event> actual = new ArrayList<Event>();
+        int[] infoChanges = new int[1];
+        try (MergingGenMsg merged = new MergingGenMsg(sources)) {
+            merged.onInfoChange(info -> infoChanges[0]++);
+            PayloadInfo previousInfo = merged.getPayLoadInfo();
+            int expectedInfoChanges = 0;
+            for (EpicsMessage msg : merged) {
+                PayloadInfo info = msg.getPayloadInfo();
+                assertTrue(info == merged.getPayLoadInfo());
+                if (info != previousInfo) {
+                    expectedInfoChanges++;
+                    previousInfo = info;
+                }
+                actual.add(new Event(
+                        msg.getEpochSeconds(), msg.getNanos(), sourceOf(sourceInfos, info), info.getPvname()));
+            }
+            assertEquals(expectedInfoChanges, infoChanges[0]);
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        List<Event> expected = expectedEvents();
+        List<Event> actual = new ArrayList<Event>();
+        List<GenMsgIterator> sources = openAll();
+        List<PayloadInfo> sourceInfos = new ArrayList<PayloadInfo>();
+        for (GenMsgIterator source : sources) {
+            sourceInfos.add(source.getPayLoadInfo());
+        }
+        try (MergingGenMsg merged = new MergingGenMsg(sources)) {
+            EventBatch batch = new EventBatch(5);
+            // Mix batches and the iterator
+            boolean useIterator = false;
+            while (true) {
+                if (useIterator) {
+                    if (!merged.iterator().hasNext()) {
+                        break;
+                    }
+                    EpicsMessage msg = merged.iterator().next();
+                    PayloadInfo info = msg.getPayloadInfo();
+                    actual.add(new Event(
+                            msg.getEpochSeconds(), msg.getNanos(), sourceOf(sourceInfos, info), info.getPvname()));
+                } else {
+                    int size = merged.nextBatch(batch);
+                    if (size == 0) {
+                        break;
+                    }
+                    PayloadInfo info = batch.getPayloadInfo();
+                    for (int i = 0; i < size; i++) {
+                        actual.add(new Event(
+                                batch.getEpochSeconds()[i],
+                                batch.getNanos()[i],
+                                sourceOf(sourceInfos, info),
+                                info.getPvname()));
+                    }
+                }
+                useIterator = !useIterator;
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testEmptyAndSingleSource() throws Exception {
+        try (MergingGenMsg merged = new MergingGenMsg(List.of())) {
+            assertFalse(merged.iterator().hasNext());
+            assertEquals(0, merged.nextBatch(new EventBatch(10)));
+        }
+        int eventCount = 0;
+        try (MergingGenMsg merged = new MergingGenMsg(List.of(open("onedaysdbrdouble")))) {
+            for (EpicsMessage msg : merged) {
+                msg.getTimestamp();
+                eventCount++;
+            }
+        }
+        assertEquals(86400, eventCount);
+    }
+
+    /**
+     * Count the calls to close; if failOnRead is set, reading the first event fails.
+     */
+    private static GenMsgIterator tracked(GenMsgIterator strm, AtomicInteger closeCount, boolean failOnRead) {
+        return new GenMsgIterator() {
+            @Override
+            public PayloadInfo getPayLoadInfo() {
+                return strm.getPayLoadInfo();
+            }
+
+            @Override
+            public void onInfoChange(InfoChangeHandler handler) {
+                strm.onInfoChange(handler);
+            }
+
+            @Override
+            public Iterator<EpicsMessage> iterator() {
+                Iterator<EpicsMessage> it = strm.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        if (failOnRead) {
+                            throw new RuntimeIOException("Simulated failure", new IOException("Connection reset"));
+                        }
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public EpicsMessage next() {
+                        return it.next();
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                closeCount.incrementAndGet();
+                strm.close();
+            }
+        };
+    }
+
+    /**
+     * If reading the first event of a source fails, all the sources should be closed once.
+     */
+    @Test
+    public void testSourcesClosedWhenPrimingFails() throws Exception {
+        List<AtomicInteger> closeCounts = new ArrayList<AtomicInteger>();
+        List<GenMsgIterator> sources = new ArrayList<GenMsgIterator>();
+        List<String> fileNames = List.of("onedaysdbrdouble", "SCALAR_INT_sampledata", "SCALAR_DOUBLE_sampledata");
+        for (int i = 0; i < fileNames.size(); i++) {
+            AtomicInteger closeCount = new AtomicInteger();
+            closeCounts.add(closeCount);
+            sources.add(tracked(open(fileNames.get(i)), closeCount, i == 1));
+        }
+        try {
+            new MergingGenMsg(sources).close();
+            fail("Expecting the failure reading the second source");
+        } catch (RuntimeIOException ex) {
+            assertEquals("Connection reset", ex.getCause().getMessage());
+        }
+        for (int i = 0; i < closeCounts.size(); i++) {
+            assertEquals("Source " + i + " is closed once", 1, closeCounts.get(i).get());
+        }
+    }
+
+    @Test
+    public void testMergedDataForPVs() throws Exception {
+        try (SampleDataServer server = new SampleDataServer()) {
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            List<String> pvNames = List.of("SCALAR_DOUBLE_sampledata", "nonexistentpv", "SCALAR_INT_sampledata");
+            Timestamp start = new Timestamp(0);
+            Timestamp end = new Timestamp(System.currentTimeMillis());
+            List<String> actual = new ArrayList<String>();
+            try (GenMsgIterator strm = retrieval.getMergedDataForPVs(pvNames, start, end, false, null)) {
+                for (EpicsMessage msg : strm) {
+                    actual.add(msg.getEpochSeconds() + " " + msg.getPayloadInfo().getPvname());
+                }
+            }
+            List<String> expected = new ArrayList<String>();
+            try (GenMsgIterator doubles = open("SCALAR_DOUBLE_sampledata");
+                    GenMsgIterator ints = open("SCALAR_INT_sampledata")) {
+                for (EpicsMessage msg : new MergingGenMsg(List.of(doubles, ints))) {
+                    expected.add(msg.getEpochSeconds() + " " + msg.getPayloadInfo().getPvname());
+                }
+            }
+            assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarByte;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarEnum;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarFloat;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarInt;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarShort;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorChar;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Events written using PBStreamWriter should read back the same; and for the sample data, the bytes should be the same as well.
+ * @author mshankar
+ *
+ */
+public class PBStreamWriterTest {
+    private static final Path SAMPLE_DATA = Paths.get("src/test/resources/sampledata");
+
+    private static List<String> events(GenMsgIterator strm) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getMessage());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Read each sample data file and write it back out; the server uses the same framing; so the bytes should be identical.
+     * Chunks without events (the last one in multipleChunksInSameYear) can't be seen in the events; so the output only has to be a prefix of the file.
+     */
+    @Test
+    public void testRoundTripSampleData() throws Exception {
+        List<String> fileNames = new ArrayList<String>();
+        for (PayloadType payloadType : PayloadType.values()) {
+            fileNames.add(payloadType + "_sampledata");
+        }
+        fileNames.addAll(List.of("multipleChunksInSameYear", "onedaysdbrdouble"));
+        for (String fileName : fileNames) {
+            byte[] data = Files.readAllBytes(SAMPLE_DATA.resolve(fileName));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data));
+                    PBStreamWriter writer = new PBStreamWriter(bytes)) {
+                writer.writeInfo(strm.getPayLoadInfo());
+                for (EpicsMessage msg : strm) {
+                    writer.write(msg);
+                }
+            }
+            byte[] written = bytes.toByteArray();
+            assertTrue(fileName, written.length > 0);
+            assertArrayEquals(fileName, Arrays.copyOf(data, written.length), written);
+            assertEquals(
+                    fileName,
+                    events(new InputStreamBackedGenMsg(new ByteArrayInputStream(data))),
+                    events(new InputStreamBackedGenMsg(new ByteArrayInputStream(written))));
+        }
+    }
+
+    /**
+     * Write batches to a FileChannel; the events that are read back should be the same as the ones in the batches.
+     */
+    @Test
+    public void testBatchesToFileChannel() throws Exception {
+        for (String fileName : List.of("onedaysdbrdouble", "SCALAR_INT_sampledata", "SCALAR_BYTE_sampledata")) {
+            Path file = Files.createTempFile("pbwriter", ".pb");
+            try {
+                try (InputStreamBackedGenMsg strm =
+                                new InputStreamBackedGenMsg(new FileInputStream(SAMPLE_DATA.toFile() + "/" + fileName));
+                        PBStreamWriter writer = new PBStreamWriter(FileChannel.open(file, StandardOpenOption.WRITE))) {
+                    EventBatch batch = new EventBatch(999);
+                    while (strm.nextBatch(batch) > 0) {
+                        writer.write(batch);
+                    }
+                }
+                // Field values and repeat counts are not in batches; so compare the columns.
+                try (InputStreamBackedGenMsg expected =
+                                new InputStreamBackedGenMsg(new FileInputStream(SAMPLE_DATA.toFile() + "/" + fileName));
+                        MappedFileGenMsg actual = new MappedFileGenMsg(file)) {
+                    assertEquals(expected.getPayLoadInfo(), actual.getPayLoadInfo());
+                    Iterator<EpicsMessage> actualIt = actual.iterator();
+                    int count = 0;
+                    for (EpicsMessage msg : expected) {
+                        EpicsMessage other = actualIt.next();
+                        assertEquals(fileName, msg.getEpochSeconds(), other.getEpochSeconds());
+                        assertEquals(fileName, msg.getNanos(), other.getNanos());
+                        assertEquals(fileName, msg.getDouble(), other.getDouble(), 0.0);
+                        assertEquals(fileName, msg.getSeverity(), other.getSeverity());
+                        assertEquals(fileName, msg.getStatus(), other.getStatus());
+                        count++;
+                    }
+                    assertTrue(!actualIt.hasNext());
+                    assertTrue(count > 0);
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The event built using the generated class for the values in the batch; severity and status are only set if they are not 0.
+     */
+    private static MessageLite buildEvent(EventBatch batch, int i, long startOfYearEpochSeconds) {
+        int secondsIntoYear = (int) (batch.getEpochSeconds()[i] - startOfYearEpochSeconds);
+        int nanos = batch.getNanos()[i];
+        int severity = batch.getSeverities()[i];
+        int status = batch.getStatuses()[i];
+        long longValue = batch.getLongValues()[i];
+        double value = batch.getValues()[i];
+        return switch (batch.getPayloadInfo().getType()) {
+            case SCALAR_BYTE -> {
+                ScalarByte.Builder builder = ScalarByte.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal(ByteString.copyFrom(new byte[] {(byte) longValue}));
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            case SCALAR_DOUBLE -> {
+                ScalarDouble.Builder builder = ScalarDouble.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal(value);
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            case SCALAR_ENUM -> {
+                ScalarEnum.Builder builder = ScalarEnum.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal((int) longValue);
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            case SCALAR_FLOAT -> {
+                ScalarFloat.Builder builder = ScalarFloat.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal((float) value);
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            case SCALAR_INT -> {
+                ScalarInt.Builder builder = ScalarInt.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal((int) longValue);
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            case SCALAR_SHORT -> {
+                ScalarShort.Builder builder = ScalarShort.newBuilder()
+                        .setSecondsintoyear(secondsIntoYear)
+                        .setNano(nanos)
+                        .setVal((int) longValue);
+                if (severity != 0) {
+                    builder.setSeverity(severity);
+                }
+                if (status != 0) {
+                    builder.setStatus(status);
+                }
+                yield builder.build();
+            }
+            default -> throw new IllegalArgumentException(
+                    "Unexpected type " + batch.getPayloadInfo().getType());
+        };
+    }
+
+    /**
+     * Batches are encoded without the generated classes; the bytes should be the same as the events built using these.
+     */
+    @Test
+    public void testBatchEncoding() throws Exception {
+        for (PayloadType payloadType : List.of(
+                PayloadType.SCALAR_BYTE,
+                PayloadType.SCALAR_DOUBLE,
+                PayloadType.SCALAR_ENUM,
+                PayloadType.SCALAR_FLOAT,
+                PayloadType.SCALAR_INT,
+                PayloadType.SCALAR_SHORT)) {
+            String fileName = payloadType + "_sampledata";
+            ByteArrayOutputStream fromBatches = new ByteArrayOutputStream();
+            ByteArrayOutputStream fromMessages = new ByteArrayOutputStream();
+            int eventCount = 0;
+            try (InputStreamBackedGenMsg strm =
+                            new InputStreamBackedGenMsg(new FileInputStream(SAMPLE_DATA.toFile() + "/" + fileName));
+                    PBStreamWriter batchWriter = new PBStreamWriter(fromBatches);
+                    PBStreamWriter messageWriter = new PBStreamWriter(fromMessages)) {
+                EventBatch batch = new EventBatch(100);
+                PayloadInfo info = null;
+                while (strm.nextBatch(batch) > 0) {
+                    batchWriter.write(batch);
+                    if (batch.getPayloadInfo() != info) {
+                        info = batch.getPayloadInfo();
+                        messageWriter.writeInfo(info);
+                    }
+                    long startOfYearEpochSeconds =
+                            EpicsMessage.startOfYearInEpochSeconds(batch.getPayloadInfo().getYear());
+                    for (int i = 0; i < batch.size(); i++) {
+                        messageWriter.writeEvent(buildEvent(batch, i, startOfYearEpochSeconds));
+                        eventCount++;
+                    }
+                }
+            }
+            assertTrue(fileName, eventCount > 0);
+            assertArrayEquals(fileName, fromMessages.toByteArray(), fromBatches.toByteArray());
+        }
+    }
+
+    /**
+     * Every byte value, in runs and on its own, longer than the channel buffer; with a second chunk.
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        PayloadInfo info = PayloadInfo.newBuilder()
+                .setType(PayloadType.WAVEFORM_BYTE)
+                .setPvname("TEST:BYTES")
+                .setYear(2012)
+                .build();
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int length : new int[] {0, 1, 7, 8, 9, 256, 1000, PBStreamWriter.CHANNEL_BUFFER_SIZE + 17}) {
+            byte[] value = new byte[length];
+            for (int i = 0; i < length; i++) {
+                value[i] = (byte) (i % 3 == 0 ? LineFramedGenMsg.CARRIAGERETURN_CHAR : i * 7);
+            }
+            values.add(value);
+        }
+        Path file = Files.createTempFile("pbwriter", ".pb");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (PBStreamWriter streamWriter = new PBStreamWriter(bytes);
+                    PBStreamWriter channelWriter =
+                            new PBStreamWriter(FileChannel.open(file, StandardOpenOption.WRITE))) {
+                for (PBStreamWriter writer : List.of(streamWriter, channelWriter)) {
+                    for (int chunk = 0; chunk < 2; chunk++) {
+                        writer.writeInfo(info.toBuilder().setYear(2012 + chunk).build());
+                        for (int i = 0; i < values.size(); i++) {
+                            writer.writeEvent(VectorChar.newBuilder()
+                                    .setSecondsintoyear(i)
+                                    .setNano(0)
+                                    .setVal(ByteString.copyFrom(values.get(i)))
+                                    .build());
+                        }
+                    }
+                }
+                channelWriter.flush();
+                assertEquals(streamWriter.getBytesWritten(), channelWriter.getBytesWritten());
+            }
+            assertArrayEquals(bytes.toByteArray(), Files.readAllBytes(file));
+            try (InputStreamBackedGenMsg strm =
+                    new InputStreamBackedGenMsg(new ByteArrayInputStream(bytes.toByteArray()))) {
+                List<Integer> years = new ArrayList<Integer>();
+                int i = 0;
+                for (EpicsMessage msg : strm) {
+                    byte[] value = ((VectorChar) msg.getMessage()).getVal().toByteArray();
+                    assertArrayEquals(values.get(i % values.size()), value);
+                    years.add(msg.getPayloadInfo().getYear());
+                    i++;
+                }
+                assertEquals(2 * values.size(), i);
+                assertEquals(2013, (int) years.get(years.size() - 1));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Batches of waveforms only hold the first element; so these can't be written.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnsupportedBatch() throws Exception {
+        try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(
+                        new FileInputStream(SAMPLE_DATA.toFile() + "/WAVEFORM_DOUBLE_sampledata"));
+                PBStreamWriter writer = new PBStreamWriter(new ByteArrayOutputStream())) {
+            EventBatch batch = new EventBatch(10);
+            assertTrue(strm.nextBatch(batch) > 0);
+            writer.write(batch);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Test routing the events in a multi-PV response to a series for each PV.
+ * @author mshankar
+ *
+ */
+public class PVDemultiplexerTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+
+    /**
+     * The time and severity of each event in a sample data file.
+     */
+    private static List<String> eventsInFile(String fileName) throws Exception {
+        List<String> ret = new ArrayList<String>();
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/" + fileName);
+                InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getEpochSeconds() + " " + msg.getNanos() + " " + msg.getSeverity());
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> eventsInSeries(PVSeries series) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < series.size(); i++) {
+            ret.add(series.getEpochSeconds()[i] + " " + series.getNanos()[i] + " " + series.getSeverities()[i]);
+        }
+        return ret;
+    }
+
+    @Test
+    public void testCollect() throws Exception {
+        List<String> pvNames = List.of(
+                "SCALAR_DOUBLE_sampledata",
+                "multipleChunksInSameYear",
+                "SCALAR_STRING_sampledata",
+                "WAVEFORM_DOUBLE_sampledata");
+        try (SampleDataServer server = new SampleDataServer();
+                GenMsgIterator strm =
+                        new RawDataRetrieval(server.getDataURL()).getDataForPVs(pvNames, START, END, false, null)) {
+            Map<String, PVSeries> seriesByPV = PVDemultiplexer.collect(strm);
+            assertEquals(pvNames.size(), seriesByPV.size());
+            for (String pvName : pvNames) {
+                // The sample data files contain the data for a PV with a different name.
+                String archivedName;
+                try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/" + pvName);
+                        InputStreamBackedGenMsg file = new InputStreamBackedGenMsg(fis)) {
+                    archivedName = file.getPayLoadInfo().getPvname();
+                }
+                PVSeries series = seriesByPV.get(archivedName);
+                assertEquals("Events for " + pvName, eventsInFile(pvName), eventsInSeries(series));
+                assertEquals(archivedName, series.getPayloadInfo().getPvname());
+            }
+        }
+    }
+
+    @Test
+    public void testChunksForTheSamePVAreMerged() throws Exception {
+        // The same PV is returned twice in one response; the events are appended to the same series.
+        List<String> pvNames = List.of("SCALAR_INT_sampledata", "SCALAR_BYTE_sampledata", "SCALAR_INT_sampledata");
+        try (SampleDataServer server = new SampleDataServer();
+                GenMsgIterator strm =
+                        new RawDataRetrieval(server.getDataURL()).getDataForPVs(pvNames, START, END, false, null)) {
+            Map<String, PVSeries> seriesByPV = PVDemultiplexer.collect(strm);
+            assertEquals(2, seriesByPV.size());
+            List<String> expected = eventsInFile("SCALAR_INT_sampledata");
+            expected.addAll(eventsInFile("SCALAR_INT_sampledata"));
+            PVSeries series = seriesByPV.values().iterator().next();
+            assertEquals(expected, eventsInSeries(series));
+        }
+    }
+
+    @Test
+    public void testSinks() throws Exception {
+        List<String> pvNames = List.of("SCALAR_INT_sampledata", "SCALAR_BYTE_sampledata");
+        try (SampleDataServer server = new SampleDataServer();
+                GenMsgIterator strm =
+                        new RawDataRetrieval(server.getDataURL()).getDataForPVs(pvNames, START, END, false, null)) {
+            int[] ended = new int[1];
+            String[] skippedPV = new String[1];
+            Map<String, PVDemultiplexer.PVSink> sinks = PVDemultiplexer.demultiplex(
+                    strm,
+                    info -> {
+                        if (skippedPV[0] == null) {
+                            // Skip the first PV
+                            skippedPV[0] = info.getPvname();
+                            return null;
+                        }
+                        return new PVDemultiplexer.PVSink() {
+                            @Override
+                            public void accept(EventBatch batch) {
+                                assertTrue(batch.size() <= 7);
+                                assertTrue(!batch.getPayloadInfo().getPvname().equals(skippedPV[0]));
+                            }
+
+                            @Override
+                            public void end() {
+                                ended[0]++;
+                            }
+                        };
+                    },
+                    7);
+            assertEquals(1, sinks.size());
+            assertNull(sinks.get(skippedPV[0]));
+            assertEquals(1, ended[0]);
+        }
+    }
+}
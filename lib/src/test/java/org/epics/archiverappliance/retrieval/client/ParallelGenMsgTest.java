@@ -0,0 +1,88 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+/**
+ * Parsing events in parallel should return the same events in the same order as the sequential iterator.
+ * @author mshankar
+ *
+ */
+public class ParallelGenMsgTest {
+
+    @Test
+    public void testSameEventsAsSequential() throws Exception {
+        List<String> fileNames = new ArrayList<String>();
+        for (PayloadType payloadType : PayloadType.values()) {
+            fileNames.add(payloadType + "_sampledata");
+        }
+        fileNames.add("onedaysdbrdouble");
+        fileNames.add("multipleChunksInSameYear");
+        fileNames.add("multipleChunksOfRandomSizeInSameYear");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (String fileName : fileNames) {
+                String path = "src/test/resources/sampledata/" + fileName;
+                List<String> expectedInfoChanges = new ArrayList<String>();
+                List<String> expected = new ArrayList<String>();
+                try (FileInputStream fis = new FileInputStream(path);
+                        InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+                    is.onInfoChange(info -> expectedInfoChanges.add(info.getPvname() + info.getYear()));
+                    for (EpicsMessage msg : is) {
+                        expected.add(describe(msg));
+                    }
+                }
+                // Small blocks and a small window so that we have many blocks in flight and blocks end in the middle of chunks.
+                for (int linesPerBlock : new int[] {1, 7, ParallelGenMsg.DEFAULT_LINES_PER_BLOCK}) {
+                    List<String> infoChanges = new ArrayList<String>();
+                    List<String> actual = new ArrayList<String>();
+                    try (FileInputStream fis = new FileInputStream(path);
+                            ParallelGenMsg strm =
+                                    new ParallelGenMsg(new InputStreamBackedGenMsg(fis), executor, linesPerBlock, 3)) {
+                        strm.onInfoChange(info -> infoChanges.add(info.getPvname() + info.getYear()));
+                        for (EpicsMessage msg : strm) {
+                            actual.add(describe(msg));
+                        }
+                    }
+                    assertEquals(
+                            "Events in " + fileName + " with " + linesPerBlock + " lines per block", expected, actual);
+                    assertEquals("Info changes in " + fileName, expectedInfoChanges, infoChanges);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/onedaysdbrdouble");
+                ParallelGenMsg strm = new ParallelGenMsg(fis)) {
+            EventBatch batch = new EventBatch(1000);
+            int eventCount = 0;
+            long previous = 0;
+            while (strm.nextBatch(batch) > 0) {
+                for (int i = 0; i < batch.size(); i++) {
+                    assertTrue("Events are not in order", batch.getEpochSeconds()[i] > previous);
+                    previous = batch.getEpochSeconds()[i];
+                }
+                eventCount += batch.size();
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    private static String describe(EpicsMessage msg) throws IOException {
+        return msg.getPayloadInfo().getPvname() + " " + msg.getTimestamp() + " " + msg.getSeverity() + " "
+                + msg.getStatus() + " " + msg.getMessage().toByteString();
+    }
+}
@@ -0,0 +1,175 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Split a days worth of data into hourly partitions in a PlainPB folder structure and read them back.
+ * @author mshankar
+ *
+ */
+public class PlainPBDataRetrievalTest {
+    private static final String PV_NAME = "ARCH:TEST-PV";
+    private Path rootFolder;
+    private final List<EpicsMessage> allEvents = new ArrayList<EpicsMessage>();
+
+    @Before
+    public void setUp() throws Exception {
+        rootFolder = Files.createTempDirectory("plainpb");
+        Path srcFile = Paths.get("src/test/resources/sampledata/onedaysdbrdouble");
+        try (FileInputStream fis = new FileInputStream(srcFile.toFile());
+                InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+            for (EpicsMessage msg : is) {
+                allEvents.add(msg);
+            }
+        }
+        // This is a single chunk; so the first line is the header and each line after that is an event.
+        byte[] data = Files.readAllBytes(srcFile);
+        List<byte[]> lines = new ArrayList<byte[]>();
+        int lineStart = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                byte[] line = new byte[i + 1 - lineStart];
+                System.arraycopy(data, lineStart, line, 0, line.length);
+                lines.add(line);
+                lineStart = i + 1;
+            }
+        }
+        assertEquals(allEvents.size() + 1, lines.size());
+        Path folder = rootFolder.resolve("ARCH/TEST");
+        Files.createDirectories(folder);
+        ByteArrayOutputStream partition = null;
+        int currentHour = -1;
+        for (int i = 0; i < allEvents.size(); i++) {
+            int hour = Instant.ofEpochSecond(allEvents.get(i).getEpochSeconds())
+                    .atOffset(ZoneOffset.UTC)
+                    .getHour();
+            if (hour != currentHour) {
+                writePartition(folder, partition, currentHour);
+                partition = new ByteArrayOutputStream();
+                partition.write(lines.get(0));
+                currentHour = hour;
+            }
+            partition.write(lines.get(i + 1));
+        }
+        writePartition(folder, partition, currentHour);
+        // These should never be opened
+        Files.write(folder.resolve("PV:2011_02_02.pb"), new byte[] {1, 2, 3});
+        Files.write(folder.resolve("PV:2010.pb"), new byte[] {1, 2, 3});
+    }
+
+    private static void writePartition(Path folder, ByteArrayOutputStream partition, int hour) throws IOException {
+        if (partition != null) {
+            Files.write(folder.resolve(String.format("PV:2011_02_01_%02d.pb", hour)), partition.toByteArray());
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(rootFolder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testPartitionPruning() throws Exception {
+        PlainPBDataRetrieval retrieval = new PlainPBDataRetrieval(rootFolder);
+        List<Path> partitions = retrieval.findPartitions(
+                PV_NAME,
+                Timestamp.from(Instant.parse("2011-02-01T01:30:00Z")),
+                Timestamp.from(Instant.parse("2011-02-01T03:00:00Z")));
+        List<String> names = new ArrayList<String>();
+        for (Path partition : partitions) {
+            names.add(partition.getFileName().toString());
+        }
+        assertEquals(List.of("PV:2011_02_01_01.pb", "PV:2011_02_01_02.pb", "PV:2011_02_01_03.pb"), names);
+        assertTrue(retrieval
+                .findPartitions(
+                        PV_NAME,
+                        Timestamp.from(Instant.parse("2012-01-01T00:00:00Z")),
+                        Timestamp.from(Instant.parse("2012-02-01T00:00:00Z")))
+                .isEmpty());
+    }
+
+    @Test
+    public void testTimeRanges() throws Exception {
+        PlainPBDataRetrieval retrieval = new PlainPBDataRetrieval(rootFolder);
+        checkTimeRange(retrieval, "2011-02-01T00:00:00Z", "2011-02-01T23:59:59Z");
+        checkTimeRange(retrieval, "2011-02-01T01:30:00.500Z", "2011-02-01T03:15:00Z");
+        checkTimeRange(retrieval, "2011-02-01T10:00:00Z", "2011-02-01T10:10:00Z");
+        checkTimeRange(retrieval, "2011-02-01T22:59:59Z", "2011-02-01T23:00:01Z");
+        assertNull(retrieval.getDataForPV(
+                "ARCH:TEST-NONEXISTENT",
+                Timestamp.from(Instant.parse("2011-02-01T00:00:00Z")),
+                Timestamp.from(Instant.parse("2011-02-02T00:00:00Z"))));
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        PlainPBDataRetrieval retrieval = new PlainPBDataRetrieval(rootFolder);
+        Timestamp start = Timestamp.from(Instant.parse("2011-02-01T01:30:00Z"));
+        Timestamp end = Timestamp.from(Instant.parse("2011-02-01T05:45:00Z"));
+        int expectedCount = expectedEvents(start, end).size();
+        try (GenMsgIterator strm = retrieval.getDataForPV(PV_NAME, start, end)) {
+            EventBatch batch = new EventBatch(1000);
+            int eventCount = 0;
+            long previous = 0;
+            while (strm.nextBatch(batch) > 0) {
+                for (int i = 0; i < batch.size(); i++) {
+                    assertTrue("Events are not in order", batch.getEpochSeconds()[i] > previous);
+                    previous = batch.getEpochSeconds()[i];
+                }
+                eventCount += batch.size();
+            }
+            assertEquals(expectedCount, eventCount);
+        }
+    }
+
+    private void checkTimeRange(PlainPBDataRetrieval retrieval, String startStr, String endStr) throws Exception {
+        Timestamp start = Timestamp.from(Instant.parse(startStr));
+        Timestamp end = Timestamp.from(Instant.parse(endStr));
+        List<Timestamp> expected = expectedEvents(start, end);
+        List<Timestamp> actual = new ArrayList<Timestamp>();
+        List<String> infoChanges = new ArrayList<String>();
+        try (GenMsgIterator strm = retrieval.getDataForPV(PV_NAME, start, end)) {
+            strm.onInfoChange(info -> infoChanges.add(info.getPvname()));
+            for (EpicsMessage msg : strm) {
+                actual.add(msg.getTimestamp());
+            }
+        }
+        assertEquals("Events from " + startStr + " to " + endStr, expected, actual);
+        assertEquals(
+                "Expecting an info change for each partition after the first",
+                retrieval.findPartitions(PV_NAME, start, end).size() - 1,
+                infoChanges.size());
+    }
+
+    private List<Timestamp> expectedEvents(Timestamp start, Timestamp end) throws IOException {
+        List<Timestamp> expected = new ArrayList<Timestamp>();
+        for (EpicsMessage msg : allEvents) {
+            Timestamp ts = msg.getTimestamp();
+            if (!ts.before(start) && !ts.after(end)) {
+                expected.add(ts);
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,127 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The read ahead stream should return the same bytes as the underlying stream and report its errors.
+ * @author mshankar
+ *
+ */
+public class ReadAheadInputStreamTest {
+
+    /**
+     * Returns a few bytes at a time; like a slow network connection.
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final InputStream is;
+        private final Random random = new Random(42);
+
+        TrickleInputStream(InputStream is) {
+            this.is = is;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return is.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return is.read(b, off, Math.min(len, 1 + random.nextInt(300)));
+        }
+    }
+
+    @Test
+    public void testSameBytes() throws Exception {
+        byte[] data = Files.readAllBytes(Paths.get("src/test/resources/sampledata/onedaysdbrdouble"));
+        for (int depth : new int[] {1, 2, 8}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ReadAheadInputStream is = new ReadAheadInputStream(
+                    new TrickleInputStream(new ByteArrayInputStream(data)), depth, 100, Thread::new)) {
+                byte[] buf = new byte[777];
+                int bytesRead;
+                while ((bytesRead = is.read(buf)) != -1) {
+                    out.write(buf, 0, bytesRead);
+                }
+            }
+            assertArrayEquals("Bytes with a depth of " + depth, data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        try (FileInputStream fis = new FileInputStream("src/test/resources/sampledata/onedaysdbrdouble");
+                InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(new ReadAheadInputStream(fis, 4))) {
+            int eventCount = 0;
+            for (EpicsMessage msg : strm) {
+                msg.getTimestamp();
+                eventCount++;
+            }
+            assertEquals("Event count is not what we expect. We got " + eventCount, 86400, eventCount);
+        }
+    }
+
+    @Test
+    public void testErrorAfterData() throws Exception {
+        InputStream failing = new InputStream() {
+            int count = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (count++ < 1000) {
+                    return 'a';
+                }
+                throw new IOException("Connection reset");
+            }
+        };
+        try (ReadAheadInputStream is = new ReadAheadInputStream(failing, 2, 64, Thread::new)) {
+            int bytesRead = 0;
+            try {
+                while (is.read() != -1) {
+                    bytesRead++;
+                }
+                fail("Expecting the exception from the underlying stream");
+            } catch (IOException ex) {
+                assertEquals("Connection reset", ex.getMessage());
+            }
+            assertEquals("We should get all the data before the error", 1000, bytesRead);
+        }
+    }
+
+    @Test
+    public void testCloseStopsReader() throws Exception {
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'a';
+            }
+        };
+        List<Thread> threads = new ArrayList<Thread>();
+        ReadAheadInputStream is = new ReadAheadInputStream(endless, 2, 64, r -> {
+            Thread t = new Thread(r);
+            threads.add(t);
+            return t;
+        });
+        assertEquals('a', is.read());
+        // The reader is now blocked on a full ring
+        Thread.sleep(100);
+        is.close();
+        threads.get(0).join(5000);
+        assertFalse("The reader thread should exit on close", threads.get(0).isAlive());
+    }
+}
@@ -0,0 +1,98 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Retrievals whose connection is dropped part way through the response should return the same events as the ones that are not.
+ * @author mshankar
+ *
+ */
+public class ResumingRetrievalTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+    private static final List<String> PV_NAMES =
+            List.of("SCALAR_DOUBLE_sampledata", "onedaysdbrdouble", "multipleChunksInSameYear");
+
+    private static List<String> events(GenMsgIterator strm, boolean useBatches) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            if (useBatches) {
+                EventBatch batch = new EventBatch(1000);
+                while (strm.nextBatch(batch) > 0) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        ret.add(batch.getPayloadInfo().getPvname() + " " + batch.getEpochSeconds()[i] + " "
+                                + batch.getNanos()[i] + " " + batch.getValues()[i]);
+                    }
+                }
+            } else {
+                for (EpicsMessage msg : strm) {
+                    ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getEpochSeconds() + " " + msg.getNanos()
+                            + " " + msg.getDouble());
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testResumeAfterDroppedConnections() throws Exception {
+        try (SampleDataServer server = new SampleDataServer()) {
+            server.applyTimeRange = true;
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            retrieval.setAcceptCompressedResponses(false);
+            List<String> expected = events(retrieval.getDataForPVs(PV_NAMES, START, END, false, null), false);
+            assertTrue(expected.size() > 86400);
+
+            retrieval.setResumeOnFailure(3, 1);
+            for (boolean useBatches : new boolean[] {false, true}) {
+                int requestsBefore = server.requestCount.get();
+                // Each response is cut off part way through onedaysdbrdouble
+                server.failAfterBytes = 300_000;
+                server.failuresToInject.set(4);
+                GenMsgIterator strm = retrieval.getDataForPVs(PV_NAMES, START, END, false, null);
+                assertTrue(strm instanceof ResumingGenMsg);
+                assertEquals(expected, events(strm, useBatches));
+                assertEquals(4, ((ResumingGenMsg) strm).getResumeCount());
+                assertEquals(0, server.failuresToInject.get());
+                // The PVs after the one that was cut off are fetched in a separate request after the last failure
+                assertEquals(6, server.requestCount.get() - requestsBefore);
+            }
+        }
+    }
+
+    @Test
+    public void testGiveUpAfterMaxAttempts() throws Exception {
+        SampleDataServer server = new SampleDataServer();
+        try {
+            server.applyTimeRange = true;
+            server.failAfterBytes = 300_000;
+            server.failuresToInject.set(1);
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            retrieval.setAcceptCompressedResponses(false);
+            retrieval.setResumeOnFailure(2, 1);
+            int events = 0;
+            try (GenMsgIterator strm = retrieval.getDataForPVs(List.of("onedaysdbrdouble"), START, END, false, null)) {
+                for (EpicsMessage msg : strm) {
+                    if (events++ == 0) {
+                        // The server goes away; so the attempts to resume fail.
+                        server.close();
+                    }
+                }
+                fail("Expecting an exception once we run out of attempts");
+            } catch (RuntimeIOException ex) {
+                assertTrue(ex.getCause() instanceof IOException);
+            }
+            assertTrue(events > 1000 && events < 86400);
+        } finally {
+            server.close();
+        }
+    }
+}
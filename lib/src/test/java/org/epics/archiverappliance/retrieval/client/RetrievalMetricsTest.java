@@ -0,0 +1,161 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.ScalarDouble;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+
+/**
+ * Test the numbers that are reported to RetrievalMetrics.
+ * @author mshankar
+ *
+ */
+public class RetrievalMetricsTest {
+    private static final Timestamp START = new Timestamp(0);
+    private static final Timestamp END = new Timestamp(System.currentTimeMillis());
+
+    private static byte[] sampleData(String fileName) throws IOException {
+        return Files.readAllBytes(Paths.get("src/test/resources/sampledata", fileName));
+    }
+
+    private static int count(GenMsgIterator strm, boolean useBatches) throws IOException {
+        int events = 0;
+        try (strm) {
+            if (useBatches) {
+                EventBatch batch = new EventBatch(100);
+                while (strm.nextBatch(batch) > 0) {
+                    events += batch.size();
+                }
+            } else {
+                for (EpicsMessage msg : strm) {
+                    events++;
+                }
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testDecodeMetrics() throws Exception {
+        for (String fileName : List.of("multipleChunksInSameYear", "onedaysdbrdouble", "SCALAR_STRING_sampledata")) {
+            byte[] data = sampleData(fileName);
+            long newlines = 0;
+            long escapes = 0;
+            long chunks = 1;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == LineFramedGenMsg.NEWLINE_CHAR) {
+                    newlines++;
+                    if (i + 1 < data.length && data[i + 1] == LineFramedGenMsg.NEWLINE_CHAR) {
+                        chunks++;
+                    }
+                } else if (data[i] == LineFramedGenMsg.ESCAPE_CHAR) {
+                    escapes++;
+                }
+            }
+            for (boolean useBatches : new boolean[] {false, true}) {
+                RetrievalCounters counters = new RetrievalCounters();
+                int events = count(new InputStreamBackedGenMsg(new ByteArrayInputStream(data), counters), useBatches);
+                assertEquals(fileName, data.length, counters.getBytesRead());
+                // The last read at the end of the stream is an empty line.
+                assertEquals(fileName, newlines + 1, counters.getLinesFramed());
+                assertEquals(fileName, escapes, counters.getEscapeSequences());
+                assertEquals(fileName, chunks, counters.getChunkCount());
+                assertEquals(fileName, events, counters.getEventsParsed());
+                assertTrue(counters.getParseNanos() > 0);
+                assertEquals(0, counters.getParseFailures());
+                assertEquals(0, counters.getResponseCount());
+            }
+        }
+    }
+
+    @Test
+    public void testParseFailures() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(PayloadInfo.newBuilder()
+                    .setType(PayloadType.SCALAR_DOUBLE)
+                    .setPvname("TEST:DOUBLE")
+                    .setYear(2012)
+                    .build());
+            for (int i = 0; i < 10; i++) {
+                writer.writeEvent(ScalarDouble.newBuilder()
+                        .setSecondsintoyear(i)
+                        .setNano(0)
+                        .setVal(i)
+                        .build());
+                if (i % 5 == 0) {
+                    // A line that is not a valid event
+                    bytes.write(new byte[] {-1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, LineFramedGenMsg.NEWLINE_CHAR});
+                }
+            }
+        }
+        byte[] data = bytes.toByteArray();
+        for (boolean useBatches : new boolean[] {false, true}) {
+            RetrievalCounters counters = new RetrievalCounters();
+            assertEquals(10, count(new InputStreamBackedGenMsg(new ByteArrayInputStream(data), counters), useBatches));
+            assertEquals(10, counters.getEventsParsed());
+            assertEquals(2, counters.getParseFailures());
+        }
+    }
+
+    @Test
+    public void testRequestMetrics() throws Exception {
+        List<String> pvNames = List.of("multipleChunksInSameYear", "SCALAR_DOUBLE_sampledata", "onedaysdbrdouble");
+        long responseSize = 0;
+        for (String pvName : pvNames) {
+            responseSize += sampleData(pvName).length;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (SampleDataServer server = new SampleDataServer()) {
+            RetrievalCounters counters = new RetrievalCounters();
+            RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+            retrieval.setMetrics(counters);
+            int events = count(retrieval.getDataForPVs(pvNames, START, END, false, null), false);
+            assertEquals(1, counters.getResponseCount());
+            assertEquals(1, counters.getResponseCount(200));
+            assertEquals(1, counters.getFirstByteCount());
+            assertTrue(counters.getFirstByteNanos() >= counters.getResponseHeaderNanos());
+            // The responses for the PVs are separated by a newline
+            assertEquals(responseSize + pvNames.size() - 1, counters.getBytesRead());
+            assertEquals(events, counters.getEventsParsed());
+
+            counters.reset();
+            retrieval.setConcurrentRequests(2, 1);
+            assertEquals(events, count(retrieval.getDataForPVs(pvNames, START, END, false, null), true));
+            assertEquals(3, counters.getResponseCount(200));
+            assertEquals(3, counters.getFirstByteCount());
+            assertEquals(responseSize, counters.getBytesRead());
+            assertEquals(events, counters.getEventsParsed());
+
+            counters.reset();
+            assertNull(retrieval.getDataForPVs(List.of("NoSuchPV"), START, END, false, null));
+            assertEquals(1, counters.getResponseCount(404));
+            assertEquals(0, counters.getResponseCount(200));
+            assertEquals(0, counters.getFirstByteCount());
+
+            // The events are parsed on the executor
+            counters.reset();
+            RawDataRetrieval parallel = new RawDataRetrieval(server.getDataURL(), executor);
+            parallel.setMetrics(counters);
+            assertEquals(events, count(parallel.getDataForPVs(pvNames, START, END, false, null), false));
+            assertEquals(1, counters.getResponseCount(200));
+            assertEquals(events, counters.getEventsParsed());
+            assertTrue(counters.getParseNanos() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
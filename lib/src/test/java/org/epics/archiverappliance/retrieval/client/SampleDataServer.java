@@ -0,0 +1,218 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand in for the retrieval servlet for tests; the sample data file with the same name as the PV is returned for each pv parameter.
+ * The files are concatenated, with an empty line between them, like the response for multiple PVs.
+ * The response is written in small pieces so that the client sees it arrive over time.
+ * Requests for PVs that do not have a sample data file get a 404.
+ * If applyTimeRange is set, only the events in the from/to range, and the last event before it, are returned.
+ * Dropped connections are simulated by cutting off the next few responses after failAfterBytes bytes.
+ * @author mshankar
+ *
+ */
+class SampleDataServer implements Closeable {
+    private static final Path SAMPLE_DATA = Paths.get("src/test/resources/sampledata");
+    private final HttpServer server;
+    final AtomicInteger requestCount = new AtomicInteger();
+    final AtomicInteger activeRequests = new AtomicInteger();
+    final AtomicInteger maxActiveRequests = new AtomicInteger();
+    // Simulate the time the server takes to look up the PVs
+    volatile long responseDelayMillis = 0;
+    // Simulate a server that sends the headers before it has the data
+    volatile long bodyDelayMillis = 0;
+    // If set, the response is compressed using this encoding when the client accepts it
+    volatile String contentEncoding = null;
+    volatile String lastAcceptEncoding = null;
+    volatile boolean applyTimeRange = false;
+    volatile int failAfterBytes = 0;
+    // The number of responses that are still to be cut off
+    final AtomicInteger failuresToInject = new AtomicInteger();
+    final List<String> requestedURLs = new ArrayList<String>();
+
+    SampleDataServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/retrieval/data/getData.raw", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "Sample data server");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    String getDataURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/retrieval/data/getData.raw";
+    }
+
+    static List<String> getPVNames(String query) {
+        List<String> pvNames = new ArrayList<String>();
+        for (String param : query.split("&")) {
+            if (param.startsWith("pv=")) {
+                pvNames.add(URLDecoder.decode(param.substring(3), StandardCharsets.UTF_8));
+            }
+        }
+        return pvNames;
+    }
+
+    private static Timestamp getTime(String query, String name) {
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return Timestamp.from(
+                        Instant.parse(URLDecoder.decode(param.substring(name.length() + 1), StandardCharsets.UTF_8)));
+            }
+        }
+        throw new IllegalArgumentException("No " + name + " in " + query);
+    }
+
+    /**
+     * Re-encode the data with only the events in the time range; like the server, this includes the last event before the start time.
+     */
+    private static byte[] filter(byte[] data, Timestamp from, Timestamp to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(new ByteArrayInputStream(data));
+                PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(strm.getPayLoadInfo());
+            strm.skipTo(Math.floorDiv(from.getTime(), 1000), from.getNanos(), true);
+            for (EpicsMessage msg : strm) {
+                if (msg.getTimestamp().after(to)) {
+                    break;
+                }
+                writer.write(msg);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), Math::max);
+        try {
+            if (responseDelayMillis > 0) {
+                Thread.sleep(responseDelayMillis);
+            }
+            respond(exchange);
+        } catch (InterruptedException ex) {
+            exchange.close();
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        synchronized (requestedURLs) {
+            requestedURLs.add(exchange.getRequestURI().toString());
+        }
+        List<Path> files = new ArrayList<Path>();
+        for (String pvName : getPVNames(query)) {
+            Path file = SAMPLE_DATA.resolve(pvName);
+            if (!Files.exists(file)) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            files.add(file);
+        }
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        lastAcceptEncoding = acceptEncoding;
+        String encoding = contentEncoding;
+        boolean compress = encoding != null && acceptEncoding != null && acceptEncoding.contains(encoding);
+        if (compress) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        if (failuresToInject.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+            respondAndFail(exchange, query, files);
+            return;
+        }
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+        try (OutputStream os = compress ? compressed(body, encoding) : body) {
+            if (bodyDelayMillis > 0) {
+                Thread.sleep(bodyDelayMillis);
+            }
+            boolean first = true;
+            for (Path file : files) {
+                if (!first) {
+                    os.write('\n');
+                }
+                first = false;
+                byte[] data = Files.readAllBytes(file);
+                if (applyTimeRange) {
+                    data = filter(data, getTime(query, "from"), getTime(query, "to"));
+                }
+                for (int i = 0; i < data.length; i += 8192) {
+                    os.write(data, i, Math.min(8192, data.length - i));
+                    os.flush();
+                }
+            }
+        } catch (IOException ex) {
+            // The client went away
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send the headers for the whole response but only failAfterBytes of the body; the connection is then closed.
+     */
+    private void respondAndFail(HttpExchange exchange, String query, List<Path> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Path file : files) {
+            if (bytes.size() > 0) {
+                bytes.write('\n');
+            }
+            byte[] data = Files.readAllBytes(file);
+            if (applyTimeRange) {
+                data = filter(data, getTime(query, "from"), getTime(query, "to"));
+            }
+            bytes.write(data);
+        }
+        byte[] data = bytes.toByteArray();
+        exchange.sendResponseHeaders(200, data.length);
+        try {
+            OutputStream os = exchange.getResponseBody();
+            os.write(data, 0, Math.min(failAfterBytes, data.length));
+            os.flush();
+            // This closes the connection as the body is incomplete.
+            exchange.close();
+        } catch (IOException ex) {
+            // Expected
+        }
+    }
+
+    private static OutputStream compressed(OutputStream os, String encoding) throws IOException {
+        return switch (encoding) {
+            case "gzip" -> new GZIPOutputStream(os, 8192, true);
+            case "deflate" -> new DeflaterOutputStream(os, new Deflater(), 8192, true);
+            default -> throw new IOException("Unsupported encoding " + encoding);
+        };
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -222,6 +222,39 @@ public class SinglePVRetrievalTest {
         }
     }
 
+    /**
+     * The reflection free accessors should return the same values as the Number accessors for each DBR type.
+     * @throws Exception
+     */
+    @Test
+    public void testTypedAccessorsForDBRTypes() throws Exception {
+        for (PayloadType payloadType : PayloadType.values()) {
+            if (payloadType == PayloadType.V4_GENERIC_BYTES
+                    || payloadType == PayloadType.SCALAR_STRING
+                    || payloadType == PayloadType.WAVEFORM_STRING) continue;
+            try (FileInputStream fis =
+                            new FileInputStream("src/test/resources/sampledata/" + payloadType + "_sampledata");
+                    InputStreamBackedGenMsg is = new InputStreamBackedGenMsg(fis)) {
+                for (EpicsMessage msg : is) {
+                    assertEquals(
+                            "Epoch seconds for " + payloadType,
+                            msg.getTimestamp().getTime() / 1000,
+                            msg.getEpochSeconds());
+                    assertEquals("Nanos for " + payloadType, msg.getTimestamp().getNanos(), msg.getNanos());
+                    Number expected;
+                    try {
+                        expected = msg.getNumberValue();
+                    } catch (IndexOutOfBoundsException ex) {
+                        // Some of the sample waveforms are empty
+                        continue;
+                    }
+                    assertEquals("Value for " + payloadType, expected.doubleValue(), msg.getDouble(), 0.0);
+                    assertEquals("Value for " + payloadType, expected.longValue(), msg.getLong());
+                }
+            }
+        }
+    }
+
     /**
      * Test a days worth of data.
      * @throws Exception
@@ -0,0 +1,105 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Test splitting the time range of a request into sub-ranges that are fetched concurrently.
+ * @author mshankar
+ *
+ */
+public class TimeRangeSplitTest {
+    private static Timestamp ts(String instant) {
+        return Timestamp.from(Instant.parse(instant));
+    }
+
+    private static List<Timestamp> ts(String... instants) {
+        List<Timestamp> ret = new ArrayList<Timestamp>();
+        for (String instant : instants) {
+            ret.add(ts(instant));
+        }
+        return ret;
+    }
+
+    @Test
+    public void testBoundaries() {
+        Timestamp start = ts("2011-06-15T10:00:00Z");
+        Timestamp end = ts("2013-03-01T00:00:00Z");
+        assertEquals(ts("2011-06-15T10:00:00Z", "2013-03-01T00:00:00Z"), TimeRangeSplit.NONE.split(start, end, 4));
+        assertEquals(
+                ts("2011-06-15T10:00:00Z", "2012-01-01T00:00:00Z", "2013-01-01T00:00:00Z", "2013-03-01T00:00:00Z"),
+                TimeRangeSplit.YEAR.split(start, end, 4));
+        assertEquals(
+                ts("2012-01-15T00:00:00Z", "2012-02-01T00:00:00Z", "2012-03-01T00:00:00Z", "2012-04-01T00:00:00Z"),
+                TimeRangeSplit.MONTH.split(ts("2012-01-15T00:00:00Z"), ts("2012-04-01T00:00:00Z"), 4));
+        assertEquals(
+                ts(
+                        "2012-01-01T12:00:00Z",
+                        "2012-01-04T00:00:00Z",
+                        "2012-01-07T00:00:00Z",
+                        "2012-01-10T00:00:00Z",
+                        "2012-01-11T00:00:00Z"),
+                TimeRangeSplit.ADAPTIVE.split(ts("2012-01-01T12:00:00Z"), ts("2012-01-11T00:00:00Z"), 4));
+        // Ranges that are shorter than a partition are not split
+        assertEquals(2, TimeRangeSplit.YEAR.split(start, ts("2011-12-31T00:00:00Z"), 4).size());
+        assertEquals(2, TimeRangeSplit.ADAPTIVE.split(start, ts("2011-06-15T23:00:00Z"), 4).size());
+        assertEquals(2, TimeRangeSplit.MONTH.split(end, start, 4).size());
+    }
+
+    /**
+     * The PV name, time and value of each event.
+     */
+    private static List<String> readAll(GenMsgIterator strm) throws Exception {
+        List<String> ret = new ArrayList<String>();
+        try (strm) {
+            for (EpicsMessage msg : strm) {
+                ret.add(msg.getPayloadInfo().getPvname() + " " + msg.getEpochSeconds() + " " + msg.getNanos() + " "
+                        + msg.getNumberValue());
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    public void testSameAsOneRequest() throws Exception {
+        Timestamp start = ts("2011-12-20T00:00:00Z");
+        Timestamp end = ts("2012-11-20T05:00:00Z");
+        try (SampleDataServer server = new SampleDataServer()) {
+            server.applyTimeRange = true;
+            List<String> expected = readAll(new RawDataRetrieval(server.getDataURL())
+                    .getDataForPVs(
+                            List.of("SCALAR_DOUBLE_sampledata", "multipleChunksInSameYear", "SCALAR_INT_sampledata"),
+                            start,
+                            end,
+                            false,
+                            null));
+            assertTrue(expected.size() > 900);
+
+            // The PV without data is skipped
+            List<String> pvNames = List.of(
+                    "SCALAR_DOUBLE_sampledata", "multipleChunksInSameYear", "nonexistentpv", "SCALAR_INT_sampledata");
+            for (TimeRangeSplit split : TimeRangeSplit.values()) {
+                if (split == TimeRangeSplit.NONE) {
+                    continue;
+                }
+                server.requestCount.set(0);
+                server.maxActiveRequests.set(0);
+                RawDataRetrieval retrieval = new RawDataRetrieval(server.getDataURL());
+                retrieval.setConcurrentRequests(4, 1);
+                retrieval.setTimeRangeSplit(split);
+                List<String> actual = readAll(retrieval.getDataForPVs(pvNames, start, end, false, null));
+                assertEquals("Events using " + split, expected, actual);
+                int rangeCount = split.split(start, end, 4).size() - 1;
+                assertTrue("Not split using " + split, rangeCount > 1);
+                assertEquals(pvNames.size() * rangeCount, server.requestCount.get());
+                assertTrue(server.maxActiveRequests.get() <= 4);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadType;
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorShort;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.EnumSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * The bulk waveform accessors should return the same values as getNumberAt.
+ * @author mshankar
+ *
+ */
+public class WaveformAccessorTest {
+    private static final Set<PayloadType> INTEGRAL_TYPES = EnumSet.of(
+            PayloadType.SCALAR_BYTE,
+            PayloadType.SCALAR_ENUM,
+            PayloadType.SCALAR_INT,
+            PayloadType.SCALAR_SHORT,
+            PayloadType.WAVEFORM_BYTE,
+            PayloadType.WAVEFORM_ENUM,
+            PayloadType.WAVEFORM_INT,
+            PayloadType.WAVEFORM_SHORT);
+
+    @Test
+    public void testAccessorsForDBRTypes() throws Exception {
+        for (PayloadType payloadType : PayloadType.values()) {
+            if (payloadType == PayloadType.SCALAR_STRING
+                    || payloadType == PayloadType.WAVEFORM_STRING
+                    || payloadType == PayloadType.V4_GENERIC_BYTES) {
+                continue;
+            }
+            int eventCount = 0;
+            try (InputStreamBackedGenMsg strm = new InputStreamBackedGenMsg(
+                    new FileInputStream("src/test/resources/sampledata/" + payloadType + "_sampledata"))) {
+                for (EpicsMessage msg : strm) {
+                    int valueCount = msg.getValueCount();
+                    double[] doubles = new double[valueCount];
+                    assertEquals(payloadType.toString(), valueCount, msg.copyDoubles(doubles));
+                    DoubleBuffer doubleBuffer = msg.getDoubleBuffer();
+                    assertTrue(doubleBuffer.isReadOnly());
+                    assertEquals(valueCount, doubleBuffer.remaining());
+                    for (int i = 0; i < valueCount; i++) {
+                        double expected = msg.getNumberAt(i).doubleValue();
+                        assertEquals(payloadType + " element " + i, expected, doubles[i], 0.0);
+                        assertEquals(payloadType + " element " + i, expected, doubleBuffer.get(i), 0.0);
+                    }
+                    if (INTEGRAL_TYPES.contains(payloadType)) {
+                        int[] ints = new int[valueCount];
+                        assertEquals(payloadType.toString(), valueCount, msg.copyInts(ints));
+                        IntBuffer intBuffer = msg.getIntBuffer();
+                        assertTrue(intBuffer.isReadOnly());
+                        for (int i = 0; i < valueCount; i++) {
+                            assertEquals(payloadType + " element " + i, msg.getNumberAt(i).intValue(), ints[i]);
+                            assertEquals(payloadType + " element " + i, ints[i], intBuffer.get(i));
+                        }
+                    } else {
+                        try {
+                            msg.copyInts(new int[valueCount]);
+                            fail("Expecting floating point values to not be copied into an int array");
+                        } catch (UnsupportedOperationException ex) {
+                            // Expected
+                        }
+                    }
+                    eventCount++;
+                }
+            }
+            assertTrue(payloadType.toString(), eventCount > 0);
+        }
+    }
+
+    @Test
+    public void testPartialCopies() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PBStreamWriter writer = new PBStreamWriter(bytes)) {
+            writer.writeInfo(PayloadInfo.newBuilder()
+                    .setType(PayloadType.WAVEFORM_SHORT)
+                    .setPvname("TEST:WAVEFORM")
+                    .setYear(2012)
+                    .setElementCount(10)
+                    .build());
+            VectorShort.Builder builder = VectorShort.newBuilder().setSecondsintoyear(0).setNano(0);
+            for (int i = 0; i < 10; i++) {
+                builder.addVal(i - 5);
+            }
+            writer.writeEvent(builder.build());
+        }
+        try (InputStreamBackedGenMsg strm =
+                new InputStreamBackedGenMsg(new ByteArrayInputStream(bytes.toByteArray()))) {
+            EpicsMessage msg = strm.iterator().next();
+            assertEquals(10, msg.getValueCount());
+            assertEquals(3, msg.copyDoubles(new double[3]));
+            double[] doubles = {-10, -10, -10, -10, -10};
+            assertEquals(3, msg.copyDoubles(doubles, 1, 3));
+            assertEquals(-10, doubles[0], 0.0);
+            assertEquals(-10, doubles[4], 0.0);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i - 5, doubles[i + 1], 0.0);
+            }
+            int[] ints = new int[20];
+            assertEquals(10, msg.copyInts(ints, 5, 15));
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i - 5, ints[i + 5]);
+            }
+            assertEquals(0, ints[15]);
+            try {
+                msg.copyInts(ints, 10, 15);
+                fail("Expecting an exception when the range is outside the array");
+            } catch (IndexOutOfBoundsException ex) {
+                // Expected
+            }
+        }
+    }
+}